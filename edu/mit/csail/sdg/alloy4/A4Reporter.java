@@ -37,6 +37,32 @@ public class A4Reporter {
 		parent = reporter;
 	}
 
+	/** The level of the messages sent to scope(). */
+	public static final int SCOPE = 1;
+
+	/** The level of the messages sent to bound(). */
+	public static final int BOUND = 2;
+
+	/** The level of the messages sent to debug(). */
+	public static final int DEBUG = 3;
+
+	/** Returns whether this reporter does anything with messages of the given level (SCOPE, BOUND, or DEBUG);
+	 * callers can skip building an expensive message if this returns false.
+	 * <p> By default, only the plain A4Reporter (such as NOP) ignores them, so subclasses that override debug() or bound() keep receiving everything;
+	 * a subclass that filters messages by verbosity should override this method accordingly.
+	 */
+	public boolean isEnabled (int level) {
+		if (parent != null) return parent.isEnabled(level);
+		return getClass() != A4Reporter.class;
+	}
+
+	/** Helper method that concatenates the String value of each part. */
+	private static String concat (Object[] parts) {
+		StringBuilder sb = new StringBuilder();
+		for(Object x: parts) sb.append(x);
+		return sb.toString();
+	}
+
 	/** This method is called at various points to report the current progress;
 	 * it is intended as a debugging aid for the developers; the messages are generally not useful for end users.
 	 */
@@ -44,6 +70,13 @@ public class A4Reporter {
 		if (parent != null) parent.debug(msg);
 	}
 
+	/** If isEnabled(DEBUG), this concatenates the String value of each part and calls debug(String);
+	 * otherwise, it returns without calling toString() on any of them (so large formulas or bounds can be passed in as-is).
+	 */
+	public final void debug (Object... parts) {
+		if (isEnabled(DEBUG)) debug(concat(parts));
+	}
+
 	/** This method is called by the parser to report parser events. */
 	public void parse (String msg) {
 		if (parent != null) parent.parse(msg);
@@ -69,6 +102,21 @@ public class A4Reporter {
 		if (parent != null) parent.bound(msg);
 	}
 
+	/** If isEnabled(BOUND), this concatenates the String value of each part and calls bound(String);
+	 * otherwise, it returns without calling toString() on any of them.
+	 */
+	public final void bound (Object... parts) {
+		if (isEnabled(BOUND)) bound(concat(parts));
+	}
+
+	/** This method is called by TranslateAlloyToKodkod.execute_commands() just before it begins working on each command.
+	 *
+	 * @param command - the command that is about to be executed
+	 */
+	public void executing (Object command) {
+		if (parent != null) parent.executing(command);
+	}
+
 	/** This method is called by the translator just before it begins generating CNF.
 	 *
 	 * @param solver - the solver chosen by the user (eg. SAT4J, MiniSat...)
@@ -143,4 +191,37 @@ public class A4Reporter {
 		if (parent != null) parent.write(expr);
 	}
 
+	/** This method is called when one phase of the analysis has finished; the phases are
+	 * "parse" and "resolve" (by CompUtil), "scope" and "bounds" (by the translator),
+	 * "simplify", "translate" (generating the CNF) and "solve" (running the SAT solver) for each solve,
+	 * "rename" for each state that is renamed, and "write" for each XML file that is written.
+	 *
+	 * @param name - the name of the phase
+	 * @param wallNanos - the wall-clock time the phase took, in nanoseconds
+	 * @param cpuNanos - the CPU time the current thread spent in the phase, in nanoseconds (or -1 if unknown)
+	 * @param allocatedBytes - the number of bytes the current thread allocated in the phase (or -1 if unknown)
+	 */
+	public void phase (String name, long wallNanos, long cpuNanos, long allocatedBytes) {
+		if (parent != null) parent.phase(name, wallNanos, cpuNanos, allocatedBytes);
+	}
+
+	/** This method is called to report the size of the work done in the phase that is about to be reported to phase()
+	 * (for example, the number of files parsed, or the number of atoms renamed).
+	 *
+	 * @param name - the name of the counter
+	 * @param value - the value of the counter
+	 */
+	public void count (String name, long value) {
+		if (parent != null) parent.count(name, value);
+	}
+
+	/** This method is called by the portfolio SAT solver each time one of the SAT solvers it raced has answered first.
+	 *
+	 * @param solver - the id of the SAT solver that answered first
+	 * @param solvingTime - the time (in milliseconds) it took to answer
+	 */
+	public void raced (String solver, long solvingTime) {
+		if (parent != null) parent.raced(solver, solvingTime);
+	}
+
 }
@@ -16,11 +16,10 @@
 package edu.mit.csail.sdg.alloy4;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.zip.Deflater;
 
 /** Mutable; implements a growable array of bytes.
  *
@@ -79,12 +78,14 @@ public final class ByteBuffer {
       return write(Long.toString(x)).w(' ');
    }
 
-   /** Write the given number into this byte buffer (truncated to the range -32767..+32767), followed by a space. */
+   /** Write the given number into this byte buffer (truncated to the range -1000000000..+1000000000), followed by a space.
+    * <p> (A tiled PDF drawing can be much wider than 32767 units, so the numbers cannot be truncated to that range.)
+    */
    public strictfp ByteBuffer writes(double x) {
       // These extreme values shouldn't happen, but we want to protect against them
-      if (Double.isNaN(x)) return write("0 "); else if (x>32767) return write("32767 "); else if (x<-32767) return write("-32767 ");
+      if (Double.isNaN(x)) return write("0 "); else if (x>1000000000) return write("1000000000 "); else if (x<-1000000000) return write("-1000000000 ");
       long num = (long)(x * 1000000);
-      if (num>=32767000000L) return write("32767 "); else if (num<=(-32767000000L)) return write("-32767 ");
+      if (num>=1000000000000000L) return write("1000000000 "); else if (num<=(-1000000000000000L)) return write("-1000000000 ");
       // Now, regular doubles... let's allow up to 6 digits after the decimal point
       if (num<0) { w('-'); num = -num; }
       String str = Long.toString(num);
@@ -97,26 +98,17 @@ public final class ByteBuffer {
       return write(str.substring(0, str.length()-6)).w('.').write(str.substring(str.length()-6)).w(' ');
    }
 
-   /** Write the entire content into the given file using Flate compression (see RFC1951) then return the number of bytes written. */
-   public long dumpFlate(RandomAccessFile os) throws IOException {
-      Deflater zip = new Deflater(Deflater.BEST_COMPRESSION);
-      byte[] output = new byte[8192];
-      Iterator<byte[]> it = list.iterator(); // when null, that means we have told the Deflater that no more input would be coming
-      long ans = 0; // the number of bytes written out so far
-      while(true) {
-         if (it!=null && zip.needsInput() && it.hasNext()) {
-            byte[] in = it.next();
-            if (in == list.getLast()) { zip.setInput(in, 0, n); it=null; zip.finish(); } else { zip.setInput(in, 0, SIZE); }
-         }
-         if (it==null && zip.finished()) break;
-         int count = zip.deflate(output);
-         if (count > 0) {
-            ans = ans + count;
-            if (ans < 0) throw new IOException("Data too large to be written to the output file.");
-            os.write(output, 0, count);
-         }
-      }
-      return ans;
+   /** Returns the number of bytes currently stored in this byte buffer. */
+   public long size() { return ((long)(list.size()-1)) * SIZE + n; }
+
+   /** Write the entire content into the given stream as-is, then empty this byte buffer (so that it can be reused). */
+   public void flush(OutputStream os) throws IOException {
+      byte[] last = list.getLast();
+      for(byte[] x: list) if (x!=last) os.write(x);
+      if (n>0) os.write(last, 0, n);
+      list.clear();
+      list.add(last);
+      n = 0;
    }
 
    /** Write the entire content into the given file as-is, then return the number of bytes written. */
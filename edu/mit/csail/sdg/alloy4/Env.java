@@ -55,6 +55,9 @@ public final class Env<K,V> {
    /** Constructs an initially empty environment. */
    public Env () { }
 
+   /** Returns true if no key is mapped to any value. */
+   public boolean isEmpty() { return map1.isEmpty(); }
+
    /** Returns true if the key is mapped to one or more values. */
    public boolean has (K key) { return map1.containsKey(key); }
 
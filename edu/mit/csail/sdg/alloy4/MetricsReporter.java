@@ -0,0 +1,212 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Mutable; this reporter forwards every message to another reporter, and records the phases and counters it sees
+ * so that they can be exported as JSON afterwards (one entry per command that was solved).
+ *
+ * <p> "parse" and "resolve" are recorded for the whole run; "rename" and "write" are recorded for the last command solved;
+ * every other phase is recorded for the command being solved (which ends when resultSAT, resultUNSAT or resultCNF is called).
+ * A counter is recorded together with the next phase that is reported.
+ *
+ * <p><b>Thread Safety:</b>  Safe.
+ */
+
+public final class MetricsReporter extends A4Reporter {
+
+   /** Mutable; the phases and counters recorded for one command, or for the work that does not belong to any command. */
+   private static final class Record {
+      /** The command, or null if this is not for a command. */
+      private String command;
+      /** The outcome ("SAT", "UNSAT" or "CNF"), or null if it is not known yet. */
+      private String outcome;
+      /** This maps each phase to {number of calls, wall nanos, cpu nanos, allocated bytes}; a total is -1 if any part of it is unknown. */
+      private final Map<String,long[]> phases = new LinkedHashMap<String,long[]>();
+      /** This maps each counter to its total. */
+      private final Map<String,Long> counts = new LinkedHashMap<String,Long>();
+   }
+
+   /** The phases and counters that do not belong to any command. */
+   private final Record global = new Record();
+
+   /** The records for each command, in the order they were solved. */
+   private final List<Record> commands = new ArrayList<Record>();
+
+   /** The record of the command being solved, or null if we have not seen the first phase of the next command yet. */
+   private Record current = null;
+
+   /** The counters reported since the last phase. */
+   private final Map<String,Long> pending = new LinkedHashMap<String,Long>();
+
+   /** Constructs a MetricsReporter that forwards every message to the given reporter (if null, we use A4Reporter.NOP). */
+   public MetricsReporter(A4Reporter reporter) {
+      super(reporter!=null ? reporter : A4Reporter.NOP);
+   }
+
+   /** Add "value" to the given counter. */
+   private static void add(Map<String,Long> counts, String name, long value) {
+      Long old = counts.get(name);
+      counts.put(name, old==null ? value : (old+value));
+   }
+
+   /** Add "value" to a total that is -1 if any part of it is unknown. */
+   private static long add(long total, long value) {
+      return (total<0 || value<0) ? -1 : (total+value);
+   }
+
+   /** Returns the record of the command being solved, starting a new one if necessary. */
+   private Record current() {
+      if (current==null) { current = new Record(); commands.add(current); }
+      return current;
+   }
+
+   /** {@inheritDoc} */
+   @Override public void phase(String name, long wallNanos, long cpuNanos, long allocatedBytes) {
+      synchronized(this) {
+         Record r;
+         if (name.equals("parse") || name.equals("resolve")) r = global;
+         else if (name.equals("rename") || name.equals("write")) r = commands.size()>0 ? commands.get(commands.size()-1) : global;
+         else r = current();
+         long[] x = r.phases.get(name);
+         if (x==null) r.phases.put(name, new long[]{1, wallNanos, cpuNanos, allocatedBytes});
+         else { x[0]++; x[1]=add(x[1], wallNanos); x[2]=add(x[2], cpuNanos); x[3]=add(x[3], allocatedBytes); }
+         for(Map.Entry<String,Long> e: pending.entrySet()) add(r.counts, e.getKey(), e.getValue());
+         pending.clear();
+      }
+      super.phase(name, wallNanos, cpuNanos, allocatedBytes);
+   }
+
+   /** {@inheritDoc} */
+   @Override public void count(String name, long value) {
+      synchronized(this) { add(pending, name, value); }
+      super.count(name, value);
+   }
+
+   /** {@inheritDoc} */
+   @Override public void solve(int primaryVars, int totalVars, int clauses) {
+      synchronized(this) { add(pending, "primaryVars", primaryVars); add(pending, "vars", totalVars); add(pending, "clauses", clauses); }
+      super.solve(primaryVars, totalVars, clauses);
+   }
+
+   /** {@inheritDoc} */
+   @Override public void raced(String solver, long solvingTime) {
+      synchronized(this) { add(pending, "won by " + solver, 1); }
+      super.raced(solver, solvingTime);
+   }
+
+   /** Record the outcome of the command being solved. */
+   private synchronized void result(Object command, String outcome) {
+      Record r = current();
+      r.command = (command!=null) ? command.toString() : null;
+      r.outcome = outcome;
+      for(Map.Entry<String,Long> e: pending.entrySet()) add(r.counts, e.getKey(), e.getValue());
+      pending.clear();
+      current = null;
+   }
+
+   /** {@inheritDoc} */
+   @Override public void resultCNF(String filename) {
+      result(null, "CNF");
+      super.resultCNF(filename);
+   }
+
+   /** {@inheritDoc} */
+   @Override public void resultSAT(Object command, long solvingTime, Object solution) {
+      result(command, "SAT");
+      super.resultSAT(command, solvingTime, solution);
+   }
+
+   /** {@inheritDoc} */
+   @Override public void resultUNSAT(Object command, long solvingTime, Object solution) {
+      result(command, "UNSAT");
+      super.resultUNSAT(command, solvingTime, solution);
+   }
+
+   /** Write the given String as a JSON string literal. */
+   private static void quote(StringBuilder sb, String str) {
+      sb.append('\"');
+      for(int i=0; i<str.length(); i++) {
+         char c = str.charAt(i);
+         if (c=='\"' || c=='\\') sb.append('\\').append(c);
+         else if (c=='\n') sb.append("\\n");
+         else if (c=='\t') sb.append("\\t");
+         else if (c<32 || c>126) sb.append(String.format("\\u%04x", (int)c));
+         else sb.append(c);
+      }
+      sb.append('\"');
+   }
+
+   /** Write the phases and counters of the given record as JSON fields (without the enclosing braces). */
+   private static void toJSON(StringBuilder sb, Record r, String indent) {
+      sb.append(indent).append("\"phases\": {");
+      boolean first = true;
+      for(Map.Entry<String,long[]> e: r.phases.entrySet()) {
+         long[] x = e.getValue();
+         sb.append(first ? "\n" : ",\n").append(indent).append("  ");
+         quote(sb, e.getKey());
+         sb.append(": {\"calls\": ").append(x[0]).append(", \"wallNanos\": ").append(x[1]);
+         // Kodkod only reports the wall time of translate and solve, so we leave out the totals that could not be measured
+         if (x[2]>=0) sb.append(", \"cpuNanos\": ").append(x[2]);
+         if (x[3]>=0) sb.append(", \"allocatedBytes\": ").append(x[3]);
+         sb.append("}");
+         first = false;
+      }
+      sb.append(first ? "},\n" : "\n" + indent + "},\n");
+      sb.append(indent).append("\"counts\": {");
+      first = true;
+      for(Map.Entry<String,Long> e: r.counts.entrySet()) {
+         sb.append(first ? "" : ", ");
+         quote(sb, e.getKey());
+         sb.append(": ").append(e.getValue());
+         first = false;
+      }
+      sb.append("}");
+   }
+
+   /** Returns everything recorded so far as a JSON object with the fields "phases", "counts" and "commands";
+    * each phase has the fields "calls" and "wallNanos", plus "cpuNanos" and "allocatedBytes" if they could be measured,
+    * and each command has the fields "command", "outcome", "phases" and "counts".
+    */
+   public synchronized String toJSON() {
+      StringBuilder sb = new StringBuilder("{\n");
+      toJSON(sb, global, "  ");
+      sb.append(",\n  \"commands\": [");
+      for(int i=0; i<commands.size(); i++) {
+         Record r = commands.get(i);
+         sb.append(i==0 ? "\n" : ",\n").append("    {\"command\": ");
+         if (r.command==null) sb.append("null"); else quote(sb, r.command);
+         sb.append(", \"outcome\": ");
+         if (r.outcome==null) sb.append("null"); else quote(sb, r.outcome);
+         sb.append(",\n");
+         toJSON(sb, r, "     ");
+         sb.append("}");
+      }
+      sb.append(commands.size()>0 ? "\n  ]\n}\n" : "]\n}\n");
+      return sb.toString();
+   }
+
+   /** Write toJSON() into the given file.
+    * @throws Err if an error occurred in writing the file
+    */
+   public void writeJSON(String filename) throws Err {
+      Util.writeAll(filename, toJSON());
+   }
+}
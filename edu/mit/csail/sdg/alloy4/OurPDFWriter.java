@@ -19,12 +19,21 @@ import java.awt.Color;
 import java.awt.Polygon;
 import java.awt.Shape;
 import java.awt.geom.PathIterator;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 /** Graphical convenience methods for producing PDF files.
  *
- * <p> This implementation explicitly generates a very simple 8.5 inch by 11 inch one-page PDF consisting of graphical operations.
+ * <p> This implementation explicitly generates a very simple PDF consisting of graphical operations on 8.5 inch by 11 inch pages.
+ * The graphical operations are Flate-compressed and written to the file as they are issued (so memory usage does not grow with
+ * the size of the drawing) into a single form object; each page then shows a portion of that drawing, so a large drawing
+ * can be tiled across several pages without repeating the drawing itself once per page.
  * Hopefully this class will no longer be needed in the future once Java comes with better PDF support.
  */
 
@@ -39,27 +48,128 @@ public final strictfp class OurPDFWriter {
    /** The page height (in terms of dots). */
    private final long height;
 
+   /** The dots-per-inch. */
+   private final int dpi;
+
+   /** The scale to apply to the drawing. */
+   private final double scale;
+
+   /** The number of pages across and down (if both are 0, then the drawing is put on a single page the same way as before tiling existed). */
+   private final int columns, rows;
+
+   /** The width and height of the portion of the drawing shown on each page (in terms of the drawing's own coordinates). */
+   private final double tileWidth, tileHeight;
+
    /** Latest color expressed as RGB (-1 if none has been explicitly set so far) */
    private int color = -1;
 
    /** Latest line style (0=normal, 1=bold, 2=dotted, 3=dashed) */
    private int line = 0;
 
-   /** The buffer that will store the list of graphical operations issued so far (null if close() has been called successfully) */
-   private ByteBuffer buf = new ByteBuffer();
+   /** The buffer that will store the graphical operations issued since the last time they were compressed into the file. */
+   private final ByteBuffer buf = new ByteBuffer();
+
+   /** The underlying file (null if close() has been called) */
+   private OutputStream file;
+
+   /** The number of bytes written to the file so far. */
+   private long now = 0;
+
+   /** The byte offset of each object written so far (offset.get(i) is the byte offset of object i+1) */
+   private final List<Long> offset = new ArrayList<Long>();
+
+   /** The compressor used by "content". */
+   private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+   /** The stream that compresses the graphical operations into the file. */
+   private final DeflaterOutputStream content;
+
+   /** The number of compressed bytes written by "content" so far. */
+   private long contentLength = 0;
+
+   /** The first error encountered while writing the graphical operations into the file (or null if none); close() will throw it. */
+   private IOException error = null;
+
+   /** When the drawing is tiled, its /BBox extends this far beyond the given width and height (in terms of the drawing's own coordinates),
+    * so that the strokes along the edge of the drawing are not clipped.
+    */
+   private static final int BBOX_MARGIN = 100;
+
+   /** The object IDs for the font, the pages, the catalog, the drawing, and the drawing's length. */
+   private static final int fontID = 1, pagesID = 2, catalogID = 3, drawingID = 4, lengthID = 5;
 
-   /** Begin a blank PDF file with the given dots-per-inch and the given scale (the given file, if existed, will be overwritten)
+   /** Begin a blank one-page PDF file with the given dots-per-inch and the given scale (the given file, if existed, will be overwritten)
     * @throws IllegalArgumentException if dpi is less than 50 or is greater than 3000
+    * @throws IOException if the file cannot be written
     */
-   public OurPDFWriter(String filename, int dpi, double scale) {
+   public OurPDFWriter(String filename, int dpi, double scale) throws IOException {
+      this(filename, dpi, scale, 0, 0);
+   }
+
+   /** Begin a blank PDF file with the given dots-per-inch and the given scale, for a drawing of the given width and height;
+    * if the scaled drawing does not fit on one page, it will be tiled across as many pages as necessary.
+    * (the given file, if existed, will be overwritten)
+    * @throws IllegalArgumentException if dpi is less than 50 or is greater than 3000
+    * @throws IOException if the file cannot be written
+    */
+   public OurPDFWriter(String filename, int dpi, double scale, double drawingWidth, double drawingHeight) throws IOException {
       if (dpi<50 || dpi>3000) throw new IllegalArgumentException("The DPI must be between 50 and 3000");
       this.filename = filename;
+      this.dpi = dpi;
+      this.scale = scale;
       width = dpi*8L + (dpi/2L); // "8.5 inches"
       height = dpi*11L;          // "11 inches"
-      // Write the default settings, and flip (0, 0) into the top-left corner of the page, scale the page, then leave 0.5" margin
-      buf.write("q\n" + "1 J\n" + "1 j\n" + "[] 0 d\n" + "1 w\n" + "1 0 0 -1 0 ").writes(height).write("cm\n");
-      buf.writes(scale).write("0 0 ").writes(scale).writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
-      buf.write("1 0 0 1 ").writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
+      if (drawingWidth>0 && drawingHeight>0 && scale>0) {
+         tileWidth = (width-dpi) / scale;   // We leave 0.5 inch on the left and right
+         tileHeight = (height-dpi) / scale; // We leave 0.5 inch on the top and bottom
+         columns = Math.max(1, (int) Math.ceil(drawingWidth / tileWidth));
+         rows = Math.max(1, (int) Math.ceil(drawingHeight / tileHeight));
+      } else {
+         tileWidth = tileHeight = columns = rows = 0;
+      }
+      // The form clips everything outside its /BBox, so the /BBox must cover the whole drawing when it is tiled,
+      // or else the portion of the drawing that is visible on the single page (see page() for how the page is mapped)
+      String bbox;
+      if (columns>0) {
+         bbox = (-BBOX_MARGIN) + " " + (-BBOX_MARGIN) + " "
+               + (long)Math.ceil(drawingWidth+BBOX_MARGIN) + " " + (long)Math.ceil(drawingHeight+BBOX_MARGIN);
+      } else if (scale>0) {
+         long min = (long)Math.floor(-dpi/2.0 - dpi/(2*scale)); // the top-left corner of the page, in the drawing's coordinates
+         bbox = min + " " + min + " "
+               + (long)Math.ceil((width-dpi/2.0)/scale - dpi/2.0) + " " + (long)Math.ceil((height-dpi/2.0)/scale - dpi/2.0);
+      } else {
+         bbox = "-32767 -32767 32767 32767";
+      }
+      file = new BufferedOutputStream(new FileOutputStream(filename), 65536);
+      boolean done = false;
+      try {
+         // Write %PDF-1.3, followed by a non-ASCII comment to force the PDF into binary mode
+         byte[] head = new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '3', 10, '%', -127, 10, 10};
+         file.write(head);
+         now = head.length;
+         // Reserve the IDs for the font, the pages, and the catalog; they will be written by close()
+         offset.add(0L); offset.add(0L); offset.add(0L);
+         // Begin the drawing
+         offset.add(now);
+         out(drawingID + " 0 obj << /Type /XObject /Subtype /Form /BBox [" + bbox + "]"
+               + " /Resources << /Font << /F1 " + fontID + " 0 R >> >>"
+               + " /Length " + lengthID + " 0 R /Filter /FlateDecode >> stream\r\n");
+         content = new DeflaterOutputStream(new OutputStream() {
+            @Override public void write(int b) throws IOException { file.write(b); contentLength++; now++; }
+            @Override public void write(byte[] b, int off, int len) throws IOException { file.write(b, off, len); contentLength += len; now += len; }
+         }, deflater, 65536);
+         done = true;
+      } finally {
+         if (!done) { deflater.end(); Util.close(file); file = null; }
+      }
+   }
+
+   /** If enough graphical operations have accumulated, compress them into the file. */
+   private OurPDFWriter drain() {
+      if (buf.size() >= 65536 && error == null && file != null) {
+         try { buf.flush(content); } catch(IOException ex) { error = ex; }
+      }
+      return this;
    }
 
    /** Changes the color for subsequent graphical drawing. */
@@ -84,11 +194,11 @@ public final strictfp class OurPDFWriter {
    public OurPDFWriter setDashedLine()  { if (line!=3) buf.write("1 w [6 3] 0 d\n"); line=3; return this; }
 
    /** Shifts the coordinate space by the given amount. */
-   public OurPDFWriter shiftCoordinateSpace(int x, int y)  { buf.write("1 0 0 1 ").writes(x).writes(y).write("cm\n"); return this; }
+   public OurPDFWriter shiftCoordinateSpace(int x, int y)  { buf.write("1 0 0 1 ").writes(x).writes(y).write("cm\n"); return drain(); }
 
    /** Draws a line from (x1, y1) to (x2, y2). */
    public OurPDFWriter drawLine(int x1, int y1, int x2, int y2) {
-      buf.writes(x1).writes(y1).write("m ").writes(x2).writes(y2).write("l S\n"); return this;
+      buf.writes(x1).writes(y1).write("m ").writes(x2).writes(y2).write("l S\n"); return drain();
    }
 
    /** Draws a circle of the given radius, centered at (0, 0). */
@@ -99,7 +209,7 @@ public final strictfp class OurPDFWriter {
       buf.writes(     -k).writes( radius).writes(-radius).writes(      k).writes(-radius).write("0 c ");
       buf.writes(-radius).writes(     -k).writes(     -k).writes(-radius).write("0 ")    .writes(-radius).write("c ");
       buf.writes(      k).writes(-radius).writes( radius).writes(     -k).writes(radius) .write(fillOrNot ? "0 c f\n" : "0 c S\n");
-      return this;
+      return drain();
    }
 
    /** Draws a shape. */
@@ -128,25 +238,27 @@ public final strictfp class OurPDFWriter {
          }
       }
       buf.write(fillOrNot ? "f\n" : "S\n");
-      return this;
+      return drain();
    }
 
    /*  PDF File Structure Summary:
     *  ===========================
     *
     *  File should ideally start with the following 13 bytes:  "%PDF-1.3" 10 "%" -127 10 10
-    *  Now comes one or more objects.
-    *  One simple single-page arrangement is to have exactly 5 objects in this order: FONT, CONTENT, PAGE, PAGES, and CATALOG.
+    *  Now comes one or more objects, in any order (the xref table at the end tells the reader where each object begins).
+    *  We use the following arrangement: DRAWING, LENGTH, then for each page: PAGECONTENT and PAGE; then FONT, PAGES, and CATALOG.
+    *  Object IDs 1..5 are FONT, PAGES, CATALOG, DRAWING, LENGTH; each page then uses the next two IDs for its PAGECONTENT and PAGE.
     *
-    *  Font Object (1 because FONT is #1)
-    *  ==================================
+    *  Drawing Object (4 because DRAWING is #4) (5 because LENGTH is #5) (1 because FONT is #1)
+    *  ========================================================================================
     *
-    *  1 0 obj << /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n
+    *  4 0 obj << /Type /XObject /Subtype /Form /BBox [...] /Resources << /Font << /F1 1 0 R >> >> /Length 5 0 R /Filter /FlateDecode >>
+    *  stream\r\n${CONTENT}endstream endobj\n\n
     *
-    *  Content Object (2 because CONTENT is #2) (${LEN} is the number of bytes in ${CONTENT} when compressed)
-    *  ======================================================================================================
+    *  Since the compressed size of ${CONTENT} is not known until we have written all of it,
+    *  /Length refers to a separate object which is written after the stream:
     *
-    *  2 0 obj << /Length ${LEN} /Filter /FlateDecode >> stream\r\n${CONTENT}endstream endobj\n\n
+    *  5 0 obj ${LEN} endobj\n\n
     *
     *  Here is a quick summary of various PDF Graphics operations
     *  ==========================================================
@@ -162,6 +274,7 @@ public final strictfp class OurPDFWriter {
     *  S                       --> assuming we've just described a path, draw the path
     *  f                       --> assuming we've just described a path, fill the path
     *  B                       --> assuming we've just described a path, fill then draw the path
+    *  W n                     --> assuming we've just described a path, intersect the clipping region with it (without drawing it)
     *
     *  q                       --> saves the current graphics state
     *  1 J                     --> sets the round cap
@@ -172,106 +285,143 @@ public final strictfp class OurPDFWriter {
     *  $a $b $c $d $e $f cm    --> appends the given matrix; for example, [1 0 0 1 dx dy] means "translation to dx dy"
     *  $R $G $B RG             --> sets the stroke color (where 0 <= $R <= 1, etc)
     *  $R $G $B rg             --> sets the fill   color (where 0 <= $R <= 1, etc)
+    *  /X1 Do                  --> draws the form object named X1 using the current graphics state
     *  Q                       --> restores the current graphics state
     *
-    *  Page Object (3 because PAGE is #3) (4 beacuse PAGES is #4) (2 because CONTENTS is #2)
-    *  =====================================================================================
+    *  Page Content Object (uncompressed, since it is tiny) (${N} is the number of bytes in ${PAGECONTENT})
+    *  ===================================================================================================
+    *
+    *  ${ID} 0 obj << /Length ${N} >> stream\r\n${PAGECONTENT}endstream endobj\n\n
+    *
+    *  where ${PAGECONTENT} sets up the default settings, flips (0, 0) into the top-left corner of the page, clips to the
+    *  printable area, scales and shifts the coordinate space to bring the desired portion of the drawing into view, then does "/X1 Do"
+    *
+    *  Page Object (2 because PAGES is #2)
+    *  ===================================
+    *
+    *  ${ID} 0 obj << /Type /Page /Parent 2 0 R /Contents ${PAGECONTENTID} 0 R >> endobj\n\n
     *
-    *  3 0 obj << /Type /Page /Parent 4 0 R /Contents 2 0 R >> endobj\n\n
+    *  Font Object (1 because FONT is #1)
+    *  ==================================
+    *
+    *  1 0 obj << /Type /Font /Subtype /Type1 /BaseFont /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n
     *
-    *  Pages Object (4 because PAGES is #4) (3 because PAGE is #3) (${W} is 8.5*DPI, ${H} is 11*DPI) (1 because FONT is #1)
-    *  ====================================================================================================================
+    *  Pages Object (2 because PAGES is #2) (${W} is 8.5*DPI, ${H} is 11*DPI) (1 because FONT is #1) (4 because DRAWING is #4)
+    *  =======================================================================================================================
     *
-    *  4 0 obj << /Type /Pages /Count 1 /Kids [3 0 R] /MediaBox [0 0 ${W} ${H}] /Resources << /Font << /F1 1 0 R >> >> >> endobj\n\n
+    *  2 0 obj << /Type /Pages /Count ${NUMBER OF PAGES} /Kids [${PAGEID} 0 R ...] /MediaBox [0 0 ${W} ${H}]
+    *  /Resources << /Font << /F1 1 0 R >> /XObject << /X1 4 0 R >> >> >> endobj\n\n
     *
-    *  Catalog Object (5 because CATALOG is #5) (4 because PAGES is #4)
+    *  Catalog Object (3 because CATALOG is #3) (2 because PAGES is #2)
     *  ================================================================
     *
-    *  5 0 obj << /Type /Catalog /Pages 4 0 R >> endobj\n\n
+    *  3 0 obj << /Type /Catalog /Pages 2 0 R >> endobj\n\n
     *
-    *  END_OF_FILE format (assuming we have obj1 obj2 obj3 obj4 obj5 where obj5 is the "PDF Catalog")
-    *  ==============================================================================================
+    *  END_OF_FILE format (assuming we have obj1 obj2 ... objN)
+    *  ========================================================
     *
     *  xref\n
-    *  0 6\n                   // 6 is because it's the number of objects plus 1
+    *  0 ${N+1}\n              // N+1 is because it's the number of objects plus 1
     *  0000000000 65535 f\r\n
     *  ${offset1} 00000 n\r\n  // ${offset1} is byte offset of start of obj1, left-padded-with-zero until you get exactly 10 digits
-    *  ${offset2} 00000 n\r\n  // ${offset2} is byte offset of start of obj2, left-padded-with-zero until you get exactly 10 digits
-    *  ${offset3} 00000 n\r\n  // ${offset3} is byte offset of start of obj3, left-padded-with-zero until you get exactly 10 digits
-    *  ${offset4} 00000 n\r\n  // ${offset4} is byte offset of start of obj4, left-padded-with-zero until you get exactly 10 digits
-    *  ${offset5} 00000 n\r\n  // ${offset5} is byte offset of start of obj5, left-padded-with-zero until you get exactly 10 digits
+    *  ...
+    *  ${offsetN} 00000 n\r\n  // ${offsetN} is byte offset of start of objN, left-padded-with-zero until you get exactly 10 digits
     *  trailer\n
     *  <<\n
-    *  /Size 6\n               // 6 is because it's the number of objects plus 1
-    *  /Root 5 0 R\n           // 5 is because it's the Catalog Object's object ID
+    *  /Size ${N+1}\n          // N+1 is because it's the number of objects plus 1
+    *  /Root 3 0 R\n           // 3 is because it's the Catalog Object's object ID
     *  >>\n
     *  startxref\n
     *  ${xref}\n               // $xref is the byte offset of the start of this entire "xref" paragraph
     *  %%EOF\n
     */
 
-   /** Helper method that writes the given String to the output file, then return the number of bytes written. */
-   private static int out(RandomAccessFile file, String string) throws IOException {
+   /** Helper method that writes the given String to the output file. */
+   private void out(String string) throws IOException {
       byte[] array = string.getBytes("UTF-8");
       file.write(array);
-      return array.length;
+      now += array.length;
+   }
+
+   /** Returns the number of pages this PDF will have. */
+   public int getPageCount() { return columns==0 ? 1 : columns*rows; }
+
+   /** Returns the content of a page showing the given portion of the drawing (if col==row==-1, we show the drawing the same way as before tiling existed). */
+   private ByteBuffer page(int col, int row) {
+      ByteBuffer pg = new ByteBuffer();
+      // Write the default settings, and flip (0, 0) into the top-left corner of the page
+      pg.write("q\n" + "1 J\n" + "1 j\n" + "[] 0 d\n" + "1 w\n" + "1 0 0 -1 0 ").writes(height).write("cm\n");
+      if (col<0) {
+         // Scale the page, then leave 0.5" margin
+         pg.writes(scale).write("0 0 ").writes(scale).writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
+         pg.write("1 0 0 1 ").writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
+      } else {
+         // Clip to the area inside the 0.5" margin, scale the page, then bring the tile into view
+         pg.writes(dpi/2.0).writes(dpi/2.0).writes(width-dpi).writes(height-dpi).write("re W n\n");
+         pg.writes(scale).write("0 0 ").writes(scale).writes(dpi/2.0).writes(dpi/2.0).write("cm\n");
+         pg.write("1 0 0 1 ").writes(-col*tileWidth).writes(-row*tileHeight).write("cm\n");
+      }
+      return pg.write("/X1 Do\nQ\n");
    }
 
    /** Close and save this PDF object. */
    public void close() throws IOException {
-      if (buf == null) return; // already closed
-      final boolean compressOrNot = true;
-      RandomAccessFile out = null;
+      if (file == null) return; // already closed
       try {
-         String space = "                    "; // reserve 20 bytes for the file size, which is far far more than enough
-         final long fontID = 1, contentID = 2, pageID = 3, pagesID = 4, catalogID = 5, offset[] = new long[6];
-         // Write %PDF-1.3, followed by a non-ASCII comment to force the PDF into binary mode
-         out = new RandomAccessFile(filename, "rw");
-         out.setLength(0);
-         byte[] head = new byte[]{'%', 'P', 'D', 'F', '-', '1', '.', '3', 10, '%', -127, 10, 10};
-         out.write(head);
-         long now = head.length;
+         if (error != null) throw error;
+         // Finish the drawing
+         buf.flush(content);
+         content.finish();
+         out("endstream endobj\n\n");
+         offset.add(now);
+         out(lengthID + " 0 obj " + contentLength + " endobj\n\n");
+         // Pages
+         StringBuilder kids = new StringBuilder();
+         int n = getPageCount();
+         for(int i = 0; i < n; i++) {
+            ByteBuffer pg = (columns==0) ? page(-1, -1) : page(i % columns, i / columns);
+            int contentID = offset.size()+1, pageID = offset.size()+2;
+            long len = pg.size();
+            offset.add(now);
+            out(contentID + " 0 obj << /Length " + len + " >> stream\r\n");
+            pg.flush(file);
+            now += len;
+            out("endstream endobj\n\n");
+            offset.add(now);
+            out(pageID + " 0 obj << /Type /Page /Parent " + pagesID + " 0 R /Contents " + contentID + " 0 R >> endobj\n\n");
+            kids.append(i==0 ? "" : " ").append(pageID).append(" 0 R");
+         }
          // Font
-         offset[1] = now;
-         now += out(out, fontID + " 0 obj << /Type /Font /Subtype /Type1 /BaseFont"
+         offset.set(fontID-1, now);
+         out(fontID + " 0 obj << /Type /Font /Subtype /Type1 /BaseFont"
                + " /Helvetica /Encoding /WinAnsiEncoding >> endobj\n\n");
-         // Content
-         offset[2] = now;
-         now += out(out, contentID + " 0 obj << /Length " + space
-               + (compressOrNot ? " /Filter /FlateDecode" : "") + " >> stream\r\n");
-         buf.write("Q\n");
-         final long ct = compressOrNot ? buf.dumpFlate(out) : buf.dump(out);
-         now += ct + out(out, "endstream endobj\n\n");
-         // Page
-         offset[3] = now;
-         now += out(out, pageID + " 0 obj << /Type /Page /Parent " + pagesID + " 0 R /Contents " + contentID + " 0 R >> endobj\n\n");
          // Pages
-         offset[4] = now;
-         now += out(out, pagesID + " 0 obj << /Type /Pages /Count 1 /Kids [" + pageID + " 0 R] /MediaBox [0 0 "
-               + width + " " + height + "] /Resources << /Font << /F1 " + fontID + " 0 R >> >> >> endobj\n\n");
+         offset.set(pagesID-1, now);
+         out(pagesID + " 0 obj << /Type /Pages /Count " + n + " /Kids [" + kids + "] /MediaBox [0 0 "
+               + width + " " + height + "] /Resources << /Font << /F1 " + fontID + " 0 R >> /XObject << /X1 " + drawingID + " 0 R >> >> >> endobj\n\n");
          // Catalog
-         offset[5] = now;
-         now += out(out, catalogID + " 0 obj << /Type /Catalog /Pages " + pagesID + " 0 R >> endobj\n\n");
+         offset.set(catalogID-1, now);
+         out(catalogID + " 0 obj << /Type /Catalog /Pages " + pagesID + " 0 R >> endobj\n\n");
          // Xref
-         String xr = "xref\n" + "0 " + offset.length + "\n";
-         for(int i = 0; i < offset.length; i++) {
-            String txt = Long.toString(offset[i]);
-            while(txt.length() < 10) txt = "0" + txt; // must be exactly 10 characters long
-            if (i==0) xr = xr + txt + " 65535 f\r\n"; else xr = xr + txt + " 00000 n\r\n";
+         StringBuilder xr = new StringBuilder("xref\n" + "0 " + (offset.size()+1) + "\n" + "0000000000 65535 f\r\n");
+         for(int i = 0; i < offset.size(); i++) {
+            String txt = Long.toString(offset.get(i));
+            for(int j = txt.length(); j < 10; j++) xr.append('0'); // must be exactly 10 characters long
+            xr.append(txt).append(" 00000 n\r\n");
          }
          // Trailer
-         xr = xr + "trailer\n<<\n/Size " + offset.length + "\n/Root " + catalogID + " 0 R\n>>\n" + "startxref\n" + now + "\n%%EOF\n";
-         out(out, xr);
-         out.seek(offset[2]);
-         out(out, contentID + " 0 obj << /Length " + ct); // move the file pointer back so we can write out the real Content Size
-         out.close();
-         buf = null; // only set buf to null if the file was saved successfully and no exception was thrown
+         xr.append("trailer\n<<\n/Size " + (offset.size()+1) + "\n/Root " + catalogID + " 0 R\n>>\n" + "startxref\n" + now + "\n%%EOF\n");
+         out(xr.toString());
+         file.close();
       } catch(Throwable ex) {
-         Util.close(out);
          if (ex instanceof IOException) throw (IOException)ex;
          if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PDF file to " + filename);
          if (ex instanceof StackOverflowError) throw new IOException("Out of memory trying to save the PDF file to " + filename);
          throw new IOException("Error writing the PDF file to " + filename + " (" + ex + ")");
+      } finally {
+         deflater.end();
+         Util.close(file);
+         file = null;
       }
    }
 }
@@ -16,29 +16,149 @@
 package edu.mit.csail.sdg.alloy4;
 
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
-import javax.imageio.ImageIO;
-
-/** Graphical convenience methods for producing PNG files. */
+/** Mutable; this writes a PNG file one horizontal strip at a time, so that the memory needed is proportional
+ * to the width of the image rather than its area; it also provides a convenience method for writing a BufferedImage in one go.
+ *
+ * <p> Typical usage: construct it with the image dimension, call writeStrip() until every row has been written, then call close().
+ */
 
 public final strictfp class OurPNGWriter {
 
-   /** The constructor is private, since this utility class never needs to be instantiated. */
-   private OurPNGWriter () { }
+   /** The name of the PNG file. */
+   private final String filename;
+
+   /** The underlying file output stream; this is null once close() or abort() has been called. */
+   private OutputStream file;
+
+   /** The stream that emits the compressed scanlines as IDAT chunks. */
+   private final ChunkStream chunks;
+
+   /** The stream that compresses the filtered scanlines into "chunks". */
+   private final DeflaterOutputStream idat;
+
+   /** The compressor used by "idat". */
+   private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+   /** The image width and height in pixels. */
+   private final int width, height;
+
+   /** The number of rows written so far. */
+   private int rows = 0;
+
+   /** The previous scanline (without its filter byte), needed by the "Up" filter; initially all zero as required by the PNG spec. */
+   private byte[] prev;
+
+   /** The current scanline; the first byte is the filter type, followed by 3 bytes (R,G,B) per pixel. */
+   private byte[] line;
+
+   /** This holds one row of pixels as fetched from a strip. */
+   private final int[] pixels;
+
+   /** Begin writing a width*height PNG file with the given horizontal and vertical dots-per-inch;
+    * the PNG signature and the IHDR and pHYs chunks are written immediately.
+    */
+   public OurPNGWriter (String filename, int width, int height, double dpiX, double dpiY) throws IOException {
+      if (width<1 || height<1) throw new IOException("The PNG image must be at least 1 pixel wide and 1 pixel tall.");
+      if (width > (Integer.MAX_VALUE-1)/3) throw new IOException("The PNG image is too wide.");
+      this.filename = filename;
+      this.width = width;
+      this.height = height;
+      this.prev = new byte[width*3];
+      this.line = new byte[width*3+1];
+      this.pixels = new int[width];
+      this.file = new BufferedOutputStream(new FileOutputStream(filename), 65536);
+      boolean done = false;
+      try {
+         file.write(new byte[]{(byte)137, 80, 78, 71, 13, 10, 26, 10});
+         // IHDR: width, height, 8 bits per sample, color type 2 (RGB), deflate compression, adaptive filtering, no interlacing
+         writeChunk(file, "IHDR", new int[]{width>>>24, width>>>16, width>>>8, width, height>>>24, height>>>16, height>>>8, height, 8, 2, 0, 0, 0});
+         int x = (int) (dpiX/0.0254), y = (int) (dpiY/0.0254); // Translate dots-per-inch into dots-per-meter
+         writeChunk(file, "pHYs", new int[]{x>>>24, x>>>16, x>>>8, x, y>>>24, y>>>16, y>>>8, y, 1});
+         chunks = new ChunkStream(file);
+         idat = new DeflaterOutputStream(chunks, deflater, 65536);
+         done = true;
+      } finally {
+         if (!done) abort();
+      }
+   }
+
+   /** Write the top "n" rows of the given strip as the next "n" rows of the image;
+    * the strip must be exactly as wide as the image, and must not contain more rows than remain to be written.
+    */
+   public void writeStrip (BufferedImage strip, int n) throws IOException {
+      if (file==null) throw new IOException("The PNG file has already been closed.");
+      if (strip.getWidth()!=width || n<0 || n>strip.getHeight() || n>height-rows) throw new IOException("Invalid PNG strip.");
+      for(int r=0; r<n; r++) {
+         strip.getRGB(0, r, width, 1, pixels, 0, width);
+         line[0] = 2; // We always use the "Up" filter, which works well for graphs that have lots of vertical runs of the same color
+         for(int i=0, j=1; i<width; i++) {
+            int rgb = pixels[i];
+            line[j] = (byte) ((rgb>>>16) - prev[j-1]); prev[j-1] = (byte)(rgb>>>16); j++;
+            line[j] = (byte) ((rgb>>>8)  - prev[j-1]); prev[j-1] = (byte)(rgb>>>8);  j++;
+            line[j] = (byte) (rgb        - prev[j-1]); prev[j-1] = (byte)rgb;        j++;
+         }
+         idat.write(line, 0, line.length);
+      }
+      rows = rows + n;
+   }
+
+   /** Finish writing the PNG file and close it; if some rows were never written, or if an error occurs,
+    * the file is deleted and an IOException is thrown (so that a failed export never leaves behind a valid-looking image).
+    * (If the file has already been closed, this method does nothing)
+    */
+   public void close () throws IOException {
+      if (file==null) return;
+      if (rows<height) {
+         abort();
+         throw new IOException("The PNG image is incomplete: only " + rows + " of its " + height + " rows were written.");
+      }
+      boolean done = false;
+      try {
+         idat.finish();
+         chunks.flush();
+         writeChunk(file, "IEND", new int[]{});
+         file.close();
+         deflater.end();
+         file = null;
+         done = true;
+      } finally {
+         if (!done) abort();
+      }
+   }
+
+   /** Stop writing the PNG file, then close and delete it; this is meant to be called after an error.
+    * (If the file has already been closed, this method does nothing)
+    */
+   public void abort () {
+      if (file==null) return;
+      deflater.end();
+      Util.close(file);
+      file = null;
+      new File(filename).delete();
+   }
 
    /** Writes the image as a PNG file with the given horizontal and vertical dots-per-inch. */
    public static void writePNG (BufferedImage image, String filename, double dpiX, double dpiY) throws IOException {
+      OurPNGWriter png = null;
       try {
-         ImageIO.write(image, "PNG", new File(filename)); // some versions of Java sometimes throws an exception during saving...
-         setDPI(filename, dpiX, dpiY);
+         png = new OurPNGWriter(filename, image.getWidth(), image.getHeight(), dpiX, dpiY);
+         png.writeStrip(image, image.getHeight());
+         png.close();
       } catch(Throwable ex) {
          if (ex instanceof IOException) throw (IOException)ex;
          if (ex instanceof StackOverflowError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
          if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
          throw new IOException("Error writing the PNG file to " + filename + " (" + ex + ")");
+      } finally {
+         if (png!=null) png.abort(); // This does nothing if the file has been closed successfully
       }
    }
 
@@ -51,10 +171,13 @@ public final strictfp class OurPNGWriter {
     * N bytes: Chunk Data
     * 4 bytes: Checksum (this checksum is computed over the Chunk Type and Chunk Data)
     *
-    * Each PNG must contain an IDAT chunk (this is the actual pixels of the image)
+    * The first chunk must be IHDR, and the last chunk must be IEND.
+    *
+    * Each PNG must contain one or more consecutive IDAT chunks (the concatenation of which is the compressed pixels of the image)
     *
     * Each PNG may contain an optional pHYs chunk that describes the horizontal and vertical dots-per-meter information.
-    * If such a chunk exists, it must come before (though not necessarily immediately before) the IDAT chunk.
+    * If such a chunk exists, it must come before the IDAT chunk; since we write it right after IHDR,
+    * we never need to revisit the file once it has been written.
     *
     * pHYs CHUNK:
     * ===========
@@ -66,50 +189,55 @@ public final strictfp class OurPNGWriter {
     * 4 bytes: Checksum
     */
 
-   /** Modifies the given PNG file to have the given horizontal and vertical dots-per-inch. */
-   private static void setDPI (String filename, double dpiX, double dpiY) throws IOException {
-      RandomAccessFile f = null;
-      try {
-         f = new RandomAccessFile(filename, "rw");
-         for(long total=f.length(), pos=8; pos<total;) { // Jump to the right place for inserting the pHYs chunk, then insert it
-            f.seek(pos);
-            int a1 = f.read(); if (a1 < 0) break;
-            int a2 = f.read(); if (a2 < 0) break;
-            int a3 = f.read(); if (a3 < 0) break;
-            int a4 = f.read(); if (a4 < 0) break;
-            int b1 = f.read(); if (b1 < 0) break;
-            int b2 = f.read(); if (b2 < 0) break;
-            int b3 = f.read(); if (b3 < 0) break;
-            int b4 = f.read(); if (b4 < 0) break;
-            int jump = (a1<<24) | (a2<<16) | (a3<<8) | a4;
-            if (jump<0 || (total-pos)-12<jump) throw new IOException("PNG chunk size exceeds the rest of the file.");
-            if ((b1=='I' && b2=='D' && b3=='A' && b4=='T') || (b1=='p' && b2=='H' && b3=='Y' && b4=='s')) {
-               Util.shift(f, (b1=='p' ? (pos+12+jump) : pos), pos+21); // skip over the existing pHYs chunk if we see it
-               f.seek(pos);
-               writeDPI(f, dpiX, dpiY);
-               f.close();
-               f = null;
-               return; // use a "return" rather than "break" so that we don't enter the line that throws the IOException
-            }
-            pos = pos + 12 + jump;
+   /** Mutable; this buffers the compressed pixels, and emits them as a sequence of IDAT chunks of at most 64K each. */
+   private static final class ChunkStream extends OutputStream {
+      /** The underlying output stream. */
+      private final OutputStream out;
+      /** The buffered bytes. */
+      private final byte[] buf = new byte[65536];
+      /** The number of buffered bytes. */
+      private int n = 0;
+      /** Constructs a ChunkStream that writes to the given stream. */
+      private ChunkStream(OutputStream out) { this.out = out; }
+      /** Buffers one byte. */
+      @Override public void write(int b) throws IOException { if (n==buf.length) flushChunk(); buf[n++] = (byte)b; }
+      /** Buffers "len" bytes starting at b[off]. */
+      @Override public void write(byte[] b, int off, int len) throws IOException {
+         while(len>0) {
+            if (n==buf.length) flushChunk();
+            int k = Math.min(len, buf.length-n);
+            System.arraycopy(b, off, buf, n, k);
+            n = n + k; off = off + k; len = len - k;
          }
-         throw new IOException("PNG is missing the IDAT chunk");
-      } finally {
-         Util.close(f);
       }
+      /** Emits the buffered bytes as an IDAT chunk. */
+      private void flushChunk() throws IOException {
+         if (n==0) return;
+         int crc = (-1);
+         out.write(n>>>24); out.write(n>>>16); out.write(n>>>8); out.write(n);
+         crc = update(crc, 'I'); crc = update(crc, 'D'); crc = update(crc, 'A'); crc = update(crc, 'T');
+         out.write('I'); out.write('D'); out.write('A'); out.write('T');
+         for(int i=0; i<n; i++) crc = update(crc, buf[i]);
+         out.write(buf, 0, n);
+         crc = crc ^ (-1);
+         out.write(crc>>>24); out.write(crc>>>16); out.write(crc>>>8); out.write(crc);
+         n = 0;
+      }
+      /** Emits any remaining bytes (but does not close the underlying stream, since IEND still has to be written). */
+      @Override public void close() throws IOException { flushChunk(); }
+      /** Emits any remaining bytes. */
+      @Override public void flush() throws IOException { flushChunk(); }
    }
 
-   /** Write a "pHYs" chunk into the given file with the given horizontal and vertical dots-per-inch. */
-   private static void writeDPI (RandomAccessFile file, double dpiX, double dpiY) throws IOException {
-      int x = (int) (dpiX/0.0254), y = (int) (dpiY/0.0254); // Translate dots-per-inch into dots-per-meter
-      writeChunk(file, new int[] {'p', 'H', 'Y', 's', x>>>24, x>>>16, x>>>8, x, y>>>24, y>>>16, y>>>8, y, 1});
-   }
+   /** Updates the running CRC with the given byte. */
+   private static int update (int crc, int x) { return table[(crc ^ x) & 255] ^ (crc >>> 8); }
 
-   /** Write the given chunk into the given file;  Note: data.length must be at least 4. */
-   private static void writeChunk (RandomAccessFile file, int[] data) throws IOException {
-      int crc = (-1), len = data.length - 4;
+   /** Write the given chunk with the given 4-letter type into the given stream. */
+   private static void writeChunk (OutputStream file, String type, int[] data) throws IOException {
+      int crc = (-1), len = data.length;
       file.write((len>>>24) & 255); file.write((len>>>16) & 255); file.write((len>>>8) & 255); file.write(len & 255);
-      for(int i=0; i<data.length; i++) { int x = data[i]; crc = table[(crc ^ x) & 255] ^ (crc >>> 8); file.write(x & 255); }
+      for(int i=0; i<4; i++) { int x = type.charAt(i); crc = update(crc, x); file.write(x & 255); }
+      for(int i=0; i<data.length; i++) { int x = data[i]; crc = update(crc, x); file.write(x & 255); }
       crc = crc ^ (-1);
       file.write((crc>>>24) & 255); file.write((crc>>>16) & 255); file.write((crc>>>8) & 255); file.write(crc & 255);
    }
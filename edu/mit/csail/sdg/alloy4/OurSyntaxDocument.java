@@ -27,9 +27,12 @@ import java.util.List;
 import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultEditorKit;
+import javax.swing.SwingUtilities;
 import javax.swing.text.DefaultStyledDocument;
+import javax.swing.text.Element;
 import javax.swing.text.MutableAttributeSet;
 import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.Segment;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.TabSet;
 import javax.swing.text.TabStop;
@@ -49,6 +52,24 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 	/** The "comment mode" at the start of each line (0 = no comment) (1 = block comment) (2 = javadoc comment) (-1 = unknown) */
 	private final List<Integer> comments = new ArrayList<Integer>();
 
+	/** If nonnegative, the first line that needs to be re-colored by the next call to do_update(). */
+	private int damagedFirst = -1;
+
+	/** If nonnegative, the last line that needs to be re-colored by the next call to do_update(). */
+	private int damagedLast = -1;
+
+	/** This re-colors the damaged lines; it is scheduled once per batch of edits (so that a paste or an undo is re-colored only once). */
+	private final Runnable updater = new Runnable() {
+		public void run() {
+			if (damagedFirst < 0) return;
+			try { do_update(); } catch(Exception ex) { comments.clear(); }
+			damagedFirst = damagedLast = -1;
+		}
+	};
+
+	/** This caches a Segment object, so that we can look at the text of a line without copying it. */
+	private final Segment segment = new Segment();
+
 	/** Whether syntax highlighting is currently enabled or not. */
 	private boolean enabled = true;
 
@@ -100,7 +121,7 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 	};
 
 	/** Returns true if array[start .. start+len-1] matches one of the reserved keyword. */
-	private static final boolean do_keyword(String array, int start, int len) {
+	private static final boolean do_keyword(CharSequence array, int start, int len) {
 		if (len >= 2 && len <= 10) for(int i = keywords.length - 1; i >= 0; i--) {
 			String str = keywords[i];
 			if (str.length()==len) for(int j=0; ;j++) if (j==len) return true; else if (str.charAt(j) != array.charAt(start+j)) break;
@@ -130,24 +151,23 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 	 * <p> For example: count("")==1, count("x")==1, count("x\n")==2, and count("x\ny")==2
 	 */
 	public final int do_getLineCount() {
-		String txt = toString();
-		for(int n=txt.length(), ans=1, i=0; ; i++) if (i>=n) return ans; else if (txt.charAt(i)=='\n') ans++;
+		return getDefaultRootElement().getElementCount(); // Swing keeps one paragraph element per line
 	}
 
 	/** Return the starting offset of the given line (If "line" argument is too large, it will return the last line's starting offset)
 	 * <p> For example: given "ab\ncd\n", start(0)==0, start(1)==3, start(2...)==6.  Same thing when given "ab\ncd\ne".
 	 */
 	public final int do_getLineStartOffset(int line) {
-		String txt = toString();
-		for(int n=txt.length(), ans=0, i=0, y=0; ; i++) if (i>=n || y>=line) return ans; else if (txt.charAt(i)=='\n') {ans=i+1; y++;}
+		Element root = getDefaultRootElement();
+		if (line <= 0) return 0; else if (line >= root.getElementCount()) line = root.getElementCount() - 1;
+		return root.getElement(line).getStartOffset();
 	}
 
 	/** Return the line number that the offset is in (If "offset" argument is too large, it will just return do_getLineCount()-1).
 	 * <p> For example: given "ab\ncd\n", offset(0..2)==0, offset(3..5)==1, offset(6..)==2.  Same thing when given "ab\ncd\ne".
 	 */
 	public final int do_getLineOfOffset(int offset) {
-		String txt = toString();
-		for(int n=txt.length(), ans=0, i=0; ; i++) if (i>=n || i>=offset) return ans; else if (txt.charAt(i)=='\n') ans++;
+		return offset <= 0 ? 0 : getDefaultRootElement().getElementIndex(Math.min(offset, getLength()));
 	}
 
 	/** This method is called by Swing to insert a String into this document.
@@ -156,23 +176,23 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 	@Override public void insertString(int offset, String string, AttributeSet attr) throws BadLocationException {
 		if (string.indexOf('\r')>=0) string = Util.convertLineBreak(string); // we don't want '\r'
 		if (!enabled) { super.insertString(offset, string, styleNormal); return; }
-		int startLine = do_getLineOfOffset(offset);
+		int startLine = do_getLineOfOffset(offset), newlines = 0;
 		for(int i = 0; i < string.length(); i++) { // For each inserted '\n' we need to shift the values in "comments" array down
-			if (string.charAt(i)=='\n') { if (startLine < comments.size()-1) comments.add(startLine+1, -1); }
+			if (string.charAt(i)=='\n') { newlines++; if (startLine < comments.size()-1) comments.add(startLine+1, -1); }
 		}
 		super.insertString(offset, string, styleNormal);
-		try { do_update(startLine); } catch(Exception ex) { comments.clear(); }
+		do_damage(startLine, newlines, startLine + newlines);
 	}
 
 	/** This method is called by Swing to delete text from this document. */
 	@Override public void remove(int offset, int length) throws BadLocationException {
 		if (!enabled) { super.remove(offset, length); return; }
-		int i = 0, startLine = do_getLineOfOffset(offset);
-		for(String oldText = toString(); i<length; i++) { // For each deleted '\n' we need to shift the values in "comments" array up
-			if (oldText.charAt(offset+i)=='\n') if (startLine < comments.size()-1) comments.remove(startLine+1);
+		int startLine = do_getLineOfOffset(offset), newlines = do_getLineOfOffset(offset+length) - startLine;
+		for(int i = 0; i < newlines; i++) { // For each deleted '\n' we need to shift the values in "comments" array up
+			if (startLine < comments.size()-1) comments.remove(startLine+1);
 		}
 		super.remove(offset, length);
-		try { do_update(startLine); } catch(Exception ex) { comments.clear(); }
+		do_damage(startLine, -newlines, startLine);
 	}
 
 	/** This method is called by Swing to replace text in this document. */
@@ -181,22 +201,35 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 		if (string != null && string.length() > 0) this.insertString(offset, string, styleNormal);
 	}
 
-	/** Reapply styles assuming the given line has just been modified */
-	private final void do_update(int line) throws BadLocationException  {
-		String content = toString();
-		int lineCount = do_getLineCount();
+	/** Record that the lines from "first" to "last" have been modified, after "shift" lines were inserted (or removed, if negative)
+	 * just after the line "first"; then schedule do_update() to re-color them once the current batch of edits is done.
+	 */
+	private final void do_damage(int first, int shift, int last) {
+		if (damagedFirst < 0) { damagedFirst = first; damagedLast = last; SwingUtilities.invokeLater(updater); return; }
+		if (damagedLast > first) damagedLast = Math.max(first, damagedLast + shift); // the lines after "first" have moved
+		if (damagedFirst > first) damagedFirst = first;
+		if (damagedLast < last) damagedLast = last;
+	}
+
+	/** Reapply styles to the damaged lines (and to the lines after them whose comment mode has changed as a result). */
+	private final void do_update() throws BadLocationException  {
+		int line = damagedFirst, lineCount = do_getLineCount();
 		while(line>0 && (line>=comments.size() || comments.get(line)<0)) line--; // "-1" in comments array are always contiguous
-		int comment = do_reapply(line==0 ? 0 : comments.get(line), content, line);
+		int comment = do_reapply(line==0 ? 0 : comments.get(line), line);
 		for (line++; line < lineCount; line++) { // update each subsequent line until it already starts with its expected comment mode
-			if (line < comments.size() && comments.get(line) == comment) break; else comment = do_reapply(comment, content, line);
+			if (line > damagedLast && line < comments.size() && comments.get(line) == comment) break; else comment = do_reapply(comment, line);
 		}
 	}
 
 	/** Re-color the given line assuming it starts with a given comment mode, then return the comment mode for start of next line. */
-	private final int do_reapply(int comment, final String txt, final int line) {
+	private final int do_reapply(int comment, final int line) throws BadLocationException {
 		while (line >= comments.size()) comments.add(-1); // enlarge array if needed
 		comments.set(line, comment);                      // record the fact that this line starts with the given comment mode
-		for(int n = txt.length(), i = do_getLineStartOffset(line); i < n;) {
+		final Element element = getDefaultRootElement().getElement(line);
+		final int start = element.getStartOffset();
+		final Segment txt = segment;
+		getText(start, Math.min(element.getEndOffset(), getLength()) - start, txt); // the text of this line (including its '\n' if any)
+		for(int n = txt.length(), i = 0; i < n;) {
 			final int oldi = i;
 			final char c = txt.charAt(i);
 			if (c=='\n') break;
@@ -207,10 +240,10 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 				AttributeSet style = (comment==1 ? styleBlock : styleJavadoc);
 				while(i<n && txt.charAt(i)!='\n' && (txt.charAt(i)!='*' || i+1==n || txt.charAt(i+1)!='/')) i = i + 1;
 				if (i<n-1 && txt.charAt(i)=='*' && txt.charAt(i+1)=='/') { i = i + 2; comment = 0; }
-				setCharacterAttributes(oldi, i-oldi, style, false);
+				setCharacterAttributes(start+oldi, i-oldi, style, false);
 			} else if ((c=='/' || c=='-') && i<n-1 && txt.charAt(i+1)==c) {
-				i = txt.indexOf('\n', i);
-				setCharacterAttributes(oldi, i<0 ? (n-oldi) : (i-oldi), styleComment, false);
+				while(i<n && txt.charAt(i)!='\n') i++;
+				setCharacterAttributes(start+oldi, i-oldi, styleComment, false);
 				break;
 			} else if (c=='\"') {
 				for(i++; i<n; i++) {
@@ -218,14 +251,14 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 					if (txt.charAt(i)=='\"') {i++; break;}
 					if (txt.charAt(i)=='\\' && i+1<n && txt.charAt(i+1)!='\n') i++;
 				}
-				setCharacterAttributes(oldi, i-oldi, styleString, false);
+				setCharacterAttributes(start+oldi, i-oldi, styleString, false);
 			} else if (do_iden(c)) {
 				for(i++; i<n && do_iden(txt.charAt(i)); i++) { }
 				AttributeSet style = (c>='0' && c<='9') ? styleNumber : (do_keyword(txt, oldi, i-oldi) ? styleKeyword : styleNormal);
-				setCharacterAttributes(oldi, i-oldi, style, false);
+				setCharacterAttributes(start+oldi, i-oldi, style, false);
 			} else {
 				for(i++; i<n && !do_iden(txt.charAt(i)) && txt.charAt(i)!='\n' && txt.charAt(i)!='-' && txt.charAt(i)!='/'; i++) { }
-				setCharacterAttributes(oldi, i-oldi, styleSymbol, false);
+				setCharacterAttributes(start+oldi, i-oldi, styleSymbol, false);
 			}
 		}
 		return comment;
@@ -235,8 +268,12 @@ class OurSyntaxDocument extends DefaultStyledDocument {
 	private final void do_reapplyAll() {
 		setCharacterAttributes(0, getLength(), styleNormal, true);
 		comments.clear();
-		String content = toString();
-		for(int comment = 0, i = 0, n = do_getLineCount(); i < n; i++)  comment = do_reapply(comment, content, i);
+		damagedFirst = damagedLast = -1;
+		try {
+			for(int comment = 0, i = 0, n = do_getLineCount(); i < n; i++)  comment = do_reapply(comment, i);
+		} catch(BadLocationException ex) {
+			comments.clear(); // cannot happen, since every line is within the document
+		}
 	}
 
 	/** Changes the font and tabsize for the document. */
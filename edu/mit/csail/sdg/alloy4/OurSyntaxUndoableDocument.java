@@ -110,7 +110,7 @@ final class OurSyntaxUndoableDocument extends OurSyntaxDocument {
    @Override public void remove(int offset, int length) throws BadLocationException {
       if (length==0) return;
       if (undone > 0) { now = now - undone;  undone = 0; } // clear the REDO entries
-      String string = toString().substring(offset, offset+length);
+      String string = getText(offset, length);
       super.remove(offset, length);
       if (now > 0 && !insert[now-1]) { // merge with last edit if possible
          if (where[now-1] == offset) { text[now-1] += string; return; }
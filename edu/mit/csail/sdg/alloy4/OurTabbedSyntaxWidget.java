@@ -297,4 +297,20 @@ public final class OurTabbedSyntaxWidget {
 
    /** Highlights the text editor, based on the location information in the Pos object. */
    public void shade(Pos pos) { shade(Util.asList(pos), new Color(0.9f, 0.4f, 0.4f), true); }
+
+   /** Removes all highlights, then highlights the location in the Pos object (if it is in an open text buffer);
+    * unlike shade(Pos), this does not switch tabs, move the caret, or send STATUS_CHANGE, so it is safe to call while the user is typing.
+    */
+   public void shadeQuietly(Pos pos) {
+      for(int i=0; i<tabs.size(); i++) tabs.get(i).clearShade();
+      if (pos!=null && pos.filename.length()>0 && pos.y>0 && pos.x>0) for(int i=0; i<tabs.size(); i++) {
+         OurSyntaxWidget text = tabs.get(i);
+         if (!text.getFilename().equals(pos.filename)) continue;
+         int c = text.getLineStartOffset(pos.y-1) + pos.x - 1;
+         int d = text.getLineStartOffset(pos.y2-1) + pos.x2 - 1;
+         text.shade(new Color(0.9f, 0.4f, 0.4f), c, d+1);
+         break;
+      }
+      adjustLabelColor();
+   }
 }
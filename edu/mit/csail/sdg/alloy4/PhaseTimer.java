@@ -0,0 +1,98 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/** Mutable; measures the wall-clock time, CPU time, and allocation of one phase of the analysis on the current thread,
+ * and reports them to A4Reporter.phase() when the phase is over.
+ *
+ * <p> CPU time and allocation are measured per thread, so start() and stop() must be called from the same thread;
+ * if the JVM cannot measure one of them, it is reported as -1.
+ *
+ * <p><b>Thread Safety:</b>  Can be called only by one thread at a time.
+ */
+
+public final class PhaseTimer {
+
+   /** The ThreadMXBean used for CPU time, or null if this JVM does not support per-thread CPU time. */
+   private static final ThreadMXBean cpuBean;
+
+   /** The ThreadMXBean used for allocation, or null if this JVM does not support per-thread allocation counters. */
+   private static final com.sun.management.ThreadMXBean allocBean;
+
+   static {
+      ThreadMXBean cpu = null;
+      com.sun.management.ThreadMXBean alloc = null;
+      try {
+         ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+         if (bean.isCurrentThreadCpuTimeSupported() && bean.isThreadCpuTimeEnabled()) cpu = bean;
+         if (bean instanceof com.sun.management.ThreadMXBean) {
+            alloc = (com.sun.management.ThreadMXBean)bean;
+            if (!alloc.isThreadAllocatedMemorySupported() || !alloc.isThreadAllocatedMemoryEnabled()) alloc = null;
+         }
+      } catch(Throwable ex) {
+         // Some JVMs do not have the management API or the com.sun.management extension; we then report -1 instead.
+      }
+      cpuBean = cpu;
+      allocBean = alloc;
+   }
+
+   /** The wall-clock time when this phase started (in nanoseconds). */
+   private long wall;
+
+   /** The CPU time of this thread when this phase started (in nanoseconds), or -1 if unknown. */
+   private long cpu;
+
+   /** The number of bytes allocated by this thread when this phase started, or -1 if unknown. */
+   private long alloc;
+
+   /** Constructs a PhaseTimer that starts now; call start() to get one. */
+   private PhaseTimer() { restart(); }
+
+   /** Returns a new PhaseTimer that starts measuring now. */
+   public static PhaseTimer start() { return new PhaseTimer(); }
+
+   /** Returns the CPU time of the current thread (in nanoseconds), or -1 if unknown. */
+   private static long cpuNow() {
+      return cpuBean!=null ? cpuBean.getCurrentThreadCpuTime() : -1;
+   }
+
+   /** Returns the number of bytes allocated so far by the current thread, or -1 if unknown. */
+   private static long allocNow() {
+      return allocBean!=null ? allocBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+   }
+
+   /** Start measuring again from now. */
+   public void restart() {
+      wall = System.nanoTime();
+      cpu = cpuNow();
+      alloc = allocNow();
+   }
+
+   /** Report the time and allocation since this phase started to rep.phase(name, ...), then start measuring the next phase from now.
+    * @param rep - the reporter (if null, nothing is reported)
+    * @param name - the name of the phase that just finished
+    */
+   public void stop(A4Reporter rep, String name) {
+      long w = System.nanoTime(), c = cpuNow(), a = allocNow();
+      if (rep!=null) rep.phase(name, w-wall, (c<0 || cpu<0) ? -1 : c-cpu, (a<0 || alloc<0) ? -1 : a-alloc);
+      wall = w;
+      cpu = c;
+      alloc = a;
+   }
+}
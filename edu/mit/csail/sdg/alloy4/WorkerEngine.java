@@ -15,6 +15,11 @@
 
 package edu.mit.csail.sdg.alloy4;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -27,6 +32,8 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
+import java.util.List;
 
 /** This class allows you to execute tasks in a subprocess, and receive its outputs via callback.
  *
@@ -40,6 +47,10 @@ import java.lang.Thread.UncaughtExceptionHandler;
  * then the same subprocess is reused to execute each subsequent task; however, if the subprocess crashed,
  * the crash will be reported to the parent process via callback, and if we try to execute another task,
  * then a new subprocess will be spawned automatically.
+ *
+ * <p> The subprocess sends its messages in framed batches: each frame is a 4-byte length followed by that many bytes
+ * of messages, and each message is encoded by writeMessage(); Strings, Integers, Booleans, Longs and arrays of them
+ * are written directly, and only other objects (such as exceptions and warnings) go through Java serialization.
  */
 
 public final class WorkerEngine {
@@ -61,6 +72,190 @@ public final class WorkerEngine {
       public void fail();
    }
 
+   /** A WorkerCallback can also implement this interface to be told where each batch of messages from the subprocess
+    * begins and ends, so that it can apply the updates of a whole batch at once. */
+   public interface WorkerBatchCallback extends WorkerCallback {
+      /** This is called before the callback() calls of a batch. */
+      public void beginBatch();
+      /** This is called after the callback() calls of a batch (and before done() if the batch ends the task). */
+      public void endBatch();
+   }
+
+   /** The subprocess sends a batch as soon as it has this many bytes of messages. */
+   private static final int BATCH_BYTES = 32768;
+
+   /** The subprocess sends a batch at most this many milliseconds after its first message was queued. */
+   private static final int BATCH_MILLIS = 40;
+
+   /** Message tags used by writeMessage() and readMessage(). */
+   private static final int TAG_NULL = 0, TAG_STRING = 1, TAG_INT = 2, TAG_BOOLEAN = 3, TAG_LONG = 4, TAG_ARRAY = 5, TAG_OBJECT = 6;
+
+   /** Encode one message; anything that is not null, String, Integer, Boolean, Long or Object[] is Java-serialized. */
+   private static void writeMessage(DataOutputStream out, Object msg) throws IOException {
+      if (msg==null) {
+         out.writeByte(TAG_NULL);
+      } else if (msg instanceof String) {
+         byte[] bytes = ((String)msg).getBytes("UTF-8");
+         out.writeByte(TAG_STRING);
+         out.writeInt(bytes.length);
+         out.write(bytes);
+      } else if (msg instanceof Integer) {
+         out.writeByte(TAG_INT);
+         out.writeInt((Integer)msg);
+      } else if (msg instanceof Boolean) {
+         out.writeByte(TAG_BOOLEAN);
+         out.writeBoolean((Boolean)msg);
+      } else if (msg instanceof Long) {
+         out.writeByte(TAG_LONG);
+         out.writeLong((Long)msg);
+      } else if (msg.getClass()==Object[].class || msg.getClass()==Serializable[].class) {
+         Object[] array = (Object[])msg;
+         out.writeByte(TAG_ARRAY);
+         out.writeInt(array.length);
+         for(Object x: array) writeMessage(out, x);
+      } else {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         ObjectOutputStream oos = new ObjectOutputStream(bytes);
+         oos.writeObject(msg);
+         oos.close();
+         out.writeByte(TAG_OBJECT);
+         out.writeInt(bytes.size());
+         bytes.writeTo(out);
+      }
+   }
+
+   /** Decode one message written by writeMessage(). */
+   private static Object readMessage(DataInputStream in) throws IOException, ClassNotFoundException {
+      int tag = in.readUnsignedByte();
+      switch(tag) {
+         case TAG_NULL: return null;
+         case TAG_STRING: { byte[] bytes = new byte[in.readInt()]; in.readFully(bytes); return new String(bytes, "UTF-8"); }
+         case TAG_INT: return in.readInt();
+         case TAG_BOOLEAN: return in.readBoolean();
+         case TAG_LONG: return in.readLong();
+         case TAG_ARRAY: { Object[] array = new Serializable[in.readInt()]; for(int i=0; i<array.length; i++) array[i] = readMessage(in); return array; }
+         case TAG_OBJECT: {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try { return ois.readObject(); } finally { ois.close(); }
+         }
+      }
+      throw new IOException("Unknown message tag " + tag + " from the subprocess.");
+   }
+
+   /** Read one frame sent by a BatchWriter, and return the messages in it. */
+   private static List<Object> readFrame(DataInputStream in) throws IOException, ClassNotFoundException {
+      byte[] frame = new byte[in.readInt()];
+      in.readFully(frame);
+      DataInputStream data = new DataInputStream(new ByteArrayInputStream(frame));
+      List<Object> ans = new ArrayList<Object>();
+      while(data.available()>0) ans.add(readMessage(data));
+      return ans;
+   }
+
+   /** Mutable; this is the WorkerCallback given to a task in the sub JVM; it encodes each message right away,
+    * then sends the queued messages to the parent JVM as one frame when BATCH_BYTES of them have accumulated,
+    * or BATCH_MILLIS after the first of them was queued, or when flush() is called.
+    *
+    * <p> Consecutive plain log messages {"", text} are merged into one, and of consecutive "R3" messages
+    * (which replace the last line of the log) only the last one is kept.
+    * Frames are written while holding the lock, so if the parent falls behind and the pipe is full,
+    * the task blocks in callback() instead of queueing messages without bound.
+    *
+    * <p><b>Thread Safety:</b>  Safe.
+    */
+   private static final class BatchWriter implements WorkerCallback, Runnable {
+      /** The stream to the parent JVM. */
+      private final OutputStream out;
+      /** The queued messages that have been encoded. */
+      private final ByteArrayOutputStream queue = new ByteArrayOutputStream();
+      /** This writes into the queue. */
+      private final DataOutputStream data = new DataOutputStream(queue);
+      /** If nonnull, the last queued message is {lastKind, lastText} and is not encoded yet (so that it can still be merged). */
+      private String lastKind = null;
+      /** The text of the last queued message, if lastKind!=null. */
+      private final StringBuilder lastText = new StringBuilder();
+      /** The time when the first queued message was queued (only meaningful if size()>0). */
+      private long firstTime;
+      /** True if close() has been called. */
+      private boolean closed;
+      /** Constructs a BatchWriter that writes frames into the given stream, and starts its timer thread. */
+      BatchWriter(OutputStream out) {
+         this.out = out;
+         Thread t = new Thread(this);
+         t.setDaemon(true);
+         t.start();
+      }
+      /** Returns the approximate number of bytes queued. */
+      private int size() { return queue.size() + lastText.length(); }
+      /** Encode the last queued message if it has not been encoded yet. */
+      private void encodeLast() throws IOException {
+         if (lastKind==null) return;
+         writeMessage(data, new Object[]{lastKind, lastText.toString()});
+         lastKind = null;
+         lastText.setLength(0);
+      }
+      /** Queue one message. */
+      private void queue(Object msg) throws IOException {
+         String kind = null, text = null;
+         if (msg instanceof Object[] && ((Object[])msg).length==2) {
+            Object[] array = (Object[])msg;
+            if (("".equals(array[0]) || "R3".equals(array[0])) && array[1] instanceof String) { kind = (String)array[0]; text = (String)array[1]; }
+         }
+         if (kind!=null && kind.equals(lastKind)) {
+            if (kind.length()>0) lastText.setLength(0); // "R3" replaces the previous "R3", whereas "" appends to the previous ""
+            lastText.append(text);
+            return;
+         }
+         if (size()==0) firstTime = System.currentTimeMillis();
+         encodeLast();
+         if (kind==null) { writeMessage(data, msg); return; }
+         lastKind = kind;
+         lastText.append(text);
+      }
+      /** Queue one message, and send the queue if it is big enough (or if msg==null, since that ends the task). */
+      public synchronized void send(Object msg) throws IOException {
+         boolean wasEmpty = (size()==0);
+         queue(msg);
+         if (msg==null || size()>=BATCH_BYTES) flush(); else if (wasEmpty) notifyAll(); // only wake up the timer thread when it has a new deadline
+      }
+      /** Send the queued messages (if any) as one frame. */
+      public synchronized void flush() throws IOException {
+         encodeLast();
+         if (queue.size()==0) return;
+         int n = queue.size();
+         out.write(new byte[]{ (byte)(n>>>24), (byte)(n>>>16), (byte)(n>>>8), (byte)n });
+         queue.writeTo(out);
+         out.flush();
+         queue.reset();
+      }
+      /** Stop the timer thread (after sending the queued messages). */
+      public synchronized void close() throws IOException {
+         closed = true;
+         notifyAll();
+         flush();
+      }
+      /** The timer thread: it sends the queue once its first message has waited BATCH_MILLIS. */
+      public synchronized void run() {
+         try {
+            while(!closed) {
+               if (size()==0) { wait(); continue; }
+               long delay = firstTime + BATCH_MILLIS - System.currentTimeMillis();
+               if (delay>0) wait(delay); else flush();
+            }
+         } catch(Throwable ex) {
+            halt("Callback: "+ex, 1);
+         }
+      }
+      /** {@inheritDoc} */
+      public void callback(Object msg) { try { send(msg); } catch(IOException ex) { halt("Callback: "+ex, 1); } }
+      /** {@inheritDoc} */
+      public void done() { }
+      /** {@inheritDoc} */
+      public void fail() { }
+   }
+
    /** This wraps the given InputStream such that the resulting object's "close()" method does nothing;
     * if stream==null, we get an InputStream that always returns EOF. */
    private static InputStream wrap(final InputStream stream) {
@@ -179,26 +374,32 @@ public final class WorkerEngine {
          }
          latest_manager = new Thread(new Runnable() {
             public void run() {
-               ObjectInputStream sub2main = null;
+               DataInputStream sub2main = null;
                ObjectOutputStream main2sub = null;
                try {
                   main2sub = new ObjectOutputStream(wrap(sub.getOutputStream())); main2sub.writeObject(task); main2sub.close();
-                  sub2main = new ObjectInputStream(wrap(sub.getInputStream()));
+                  sub2main = new DataInputStream(new BufferedInputStream(wrap(sub.getInputStream())));
                } catch(Throwable ex) {
                   sub.destroy(); Util.close(main2sub); Util.close(sub2main);
                   synchronized(WorkerEngine.class) { if (latest_sub != sub) return; callback.fail(); return; }
                }
                while(true) {
                   synchronized(WorkerEngine.class) { if (latest_sub != sub) return; }
-                  Object x;
+                  List<Object> batch;
                   try {
-                     x = sub2main.readObject();
+                     batch = readFrame(sub2main);
                   } catch(Throwable ex) {
                      sub.destroy(); Util.close(sub2main);
                      synchronized(WorkerEngine.class) { if (latest_sub != sub) return; callback.callback(ex.getMessage()); for (StackTraceElement t : ex.getStackTrace()) callback.callback(t.toString()); callback.fail(); return; }
                   }
                   synchronized(WorkerEngine.class) {
-                     if (latest_sub != sub) return; if (x==null) {callback.done(); return;} else callback.callback(x);
+                     if (latest_sub != sub) return;
+                     WorkerBatchCallback bc = (callback instanceof WorkerBatchCallback) ? (WorkerBatchCallback)callback : null;
+                     if (bc!=null) bc.beginBatch();
+                     for(Object x: batch) {
+                        if (x==null) { if (bc!=null) bc.endBatch(); callback.done(); return; } else callback.callback(x);
+                     }
+                     if (bc!=null) bc.endBatch();
                   }
                }
             }
@@ -224,7 +425,7 @@ public final class WorkerEngine {
          public void uncaughtException(Thread t, Throwable e) { halt("UncaughtException: "+e, 1); }
       });
       // Redirect System.in, System.out, System.err to no-op (so that if a task tries to read/write to System.in/out/err,
-      // those reads and writes won't mess up the ObjectInputStream/ObjectOutputStream)
+      // those reads and writes won't mess up the task stream and the message frames)
       System.setIn(wrap((InputStream)null));
       System.setOut(new PrintStream(wrap((OutputStream)null)));
       System.setErr(new PrintStream(wrap((OutputStream)null)));
@@ -259,32 +460,24 @@ public final class WorkerEngine {
          }
          t = new Thread(new Runnable() {
             public void run() {
-               ObjectOutputStream x = null;
+               BatchWriter x = new BatchWriter(wrap(out));
                Throwable e = null;
                try {
-                  x = new ObjectOutputStream(wrap(out));
-                  final ObjectOutputStream xx = x;
-                  WorkerCallback y = new WorkerCallback() {
-                     public void callback(Object x) { try {xx.writeObject(x);} catch(IOException ex) {halt("Callback: "+ex, 1);} }
-                     public void done() { }
-                     public void fail() { }
-                  };
-                  task.run(y);
-                  x.writeObject(null);
-                  x.flush();
+                  task.run(x);
+                  x.send(null);
                } catch(Throwable ex) {
                   e=ex;
                }
                for(Throwable t=e; t!=null; t=t.getCause()) if (t instanceof OutOfMemoryError || t instanceof StackOverflowError) {
-                  try { System.gc(); x.writeObject(t); x.flush(); } catch(Throwable ex2) { } finally { halt("Error: "+e, 2); }
+                  try { System.gc(); x.send(t); x.flush(); } catch(Throwable ex2) { } finally { halt("Error: "+e, 2); }
                }
                if (e instanceof Err) {
-                  try { System.gc(); x.writeObject(e); x.writeObject(null); x.flush(); } catch(Throwable t) { halt("Error: "+e, 1); }
+                  try { System.gc(); x.send(e); x.send(null); } catch(Throwable t) { halt("Error: "+e, 1); }
                }
                if (e!=null) {
-                  try { System.gc(); x.writeObject(e); x.flush(); } catch(Throwable t) { } finally { halt("Error: "+e, 1); }
+                  try { System.gc(); x.send(e); x.flush(); } catch(Throwable t) { } finally { halt("Error: "+e, 1); }
                }
-               Util.close(x); // avoid memory leaks
+               try { x.close(); } catch(Throwable ex) { halt("Callback: "+ex, 1); } // stop the timer thread
             }
          });
          t.start();
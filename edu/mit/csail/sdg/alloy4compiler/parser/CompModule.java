@@ -232,7 +232,7 @@ public final class CompModule extends Browsable implements Module {
 				}
 				if (ambiguous) return new ExprBad(pos, name, new ErrorType(pos, "There are multiple macros with the same name:"+sb));
 			}
-			if (match==null) match = rootmodule.globals.get(name);
+			if (match==null) synchronized(rootmodule.globals) { match = rootmodule.globals.get(name); }
 			if (match!=null) {
 				if (match instanceof Macro) return ((Macro)match).changePos(pos);
 				match = ExprUnary.Op.NOOP.make(pos, match);
@@ -1480,7 +1480,12 @@ public final class CompModule extends Browsable implements Module {
 
 	/** Add a global expression; if the name already exists, it is removed first. */
 	public void addGlobal(String name, Expr value) {
-		globals.put(name, value);
+		synchronized(globals) { globals.put(name, value); }
+	}
+
+	/** Returns true if addGlobal() has been called on this module (this may be called from any thread). */
+	boolean hasGlobals() {
+		synchronized(globals) { return globals.size()>0; }
 	}
 
 	/** Resolve the name based on the current context and this module. */
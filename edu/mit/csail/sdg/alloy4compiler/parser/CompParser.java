@@ -6,7 +6,6 @@
 
 package edu.mit.csail.sdg.alloy4compiler.parser;
 
-import java.util.Stack;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.TreeSet;
@@ -2492,7 +2491,7 @@ public class CompParser extends java_cup.runtime.lr_parser {
   public java_cup.runtime.Symbol do_action(
     int                        act_num,
     java_cup.runtime.lr_parser parser,
-    java.util.Stack            stack,
+    java_cup.runtime.parse_stack stack,
     int                        top)
     throws java.lang.Exception
   {
@@ -2532,7 +2531,7 @@ public class CompParser extends java_cup.runtime.lr_parser {
      stack.push(getSymbolFactory().startSymbol("START", 0, start_state()));
      tos = 0;
      for (_done_parsing = false; !_done_parsing; ) {
-        act = get_action(((Symbol)stack.peek()).parse_state, cur_token.sym);
+        act = get_action(stack.top_state(), cur_token.sym);
         if (act > 0) { // "shift"; thus, we shift to the encoded state by pushing it on the stack
            if (logging) System.out.println("shift " + cur_token.sym);
            cur_token.parse_state = act-1;
@@ -2544,8 +2543,9 @@ public class CompParser extends java_cup.runtime.lr_parser {
            lhs_sym = do_action((-act)-1, this, stack, tos);
            lhs_sym_num = production_tab[(-act)-1][0];
            handle_size = production_tab[(-act)-1][1];
-           for (int i = 0; i < handle_size; i++)  {  stack.pop(); tos--; }
-           act = get_reduce(((Symbol)stack.peek()).parse_state, lhs_sym_num);
+           stack.pop(handle_size);
+           tos -= handle_size;
+           act = get_reduce(stack.top_state(), lhs_sym_num);
            lhs_sym.parse_state = act;
            stack.push(lhs_sym);
            tos++;
@@ -2692,7 +2692,7 @@ public class CompParser extends java_cup.runtime.lr_parser {
        else if (x!=null && x.value instanceof Expr) p=((Expr)(x.value)).pos;
        else if (x!=null) p=x.pos;
     if (!stack.empty()) for(Map.Entry<Integer,String> e:ch.entrySet()) {
-        int key=e.getKey(), act=get_action(((Symbol)stack.peek()).parse_state, key);
+        int key=e.getKey(), act=get_action(stack.top_state(), key);
         if (act==0) continue;
         try {
             if (act>0 || alloy_confirm(key)) list.add(e.getValue());
@@ -2706,19 +2706,19 @@ public class CompParser extends java_cup.runtime.lr_parser {
   }
 
   private boolean alloy_confirm(int key) {
-    int state = ((Symbol)stack.peek()).parse_state;
-    Stack<Object> newstack=new Stack<Object>(); for(Object x:stack) newstack.push(x);
+    int top = stack.size();
+    int[] newstack = new int[top+16]; for(int i=0; i<top; i++) newstack[i] = stack.state_at(i);
     while(true) {
-      int act = get_action(state, key);
+      int act = get_action(newstack[top-1], key);
       if (act>0) return true;
       if (act==0) return false;
       int lhs_sym_num = production_tab[(-act)-1][0];
       int handle_size = production_tab[(-act)-1][1];
-      for (int i = 0; i < handle_size; i++) { if (newstack.empty()) return false; newstack.pop(); }
-      if (newstack.empty()) return false;
-      if (newstack.peek() instanceof Symbol) state=((Symbol)newstack.peek()).parse_state;
-      state=get_reduce(state, lhs_sym_num);
-      newstack.push(null);
+      if (handle_size >= top) return false;
+      top = top - handle_size;
+      int state = get_reduce(newstack[top-1], lhs_sym_num);
+      if (top == newstack.length) { int[] bigger = new int[top*2]; System.arraycopy(newstack, 0, bigger, 0, top); newstack = bigger; }
+      newstack[top++] = state;
     }
   }
 
@@ -2843,7 +2843,7 @@ class CUP$CompParser$actions {
   public final java_cup.runtime.Symbol CUP$CompParser$do_action(
     int                        CUP$CompParser$act_num,
     java_cup.runtime.lr_parser CUP$CompParser$parser,
-    java.util.Stack            CUP$CompParser$stack,
+    java_cup.runtime.parse_stack CUP$CompParser$stack,
     int                        CUP$CompParser$top)
     throws java.lang.Exception
     {
@@ -30,6 +30,9 @@ import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
+import edu.mit.csail.sdg.alloy4.ErrorWarning;
+import edu.mit.csail.sdg.alloy4.Pair;
+import edu.mit.csail.sdg.alloy4.PhaseTimer;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4compiler.ast.Command;
@@ -97,6 +100,7 @@ public final class CompUtil {
     /** Helper method that recursively parse a file and all its included subfiles
      * @param loaded - this stores the text files we've loaded while parsing; cannot be null
      * @param fc - if a file cannot be found, we consult this cache first before attempting to load it from disk/jar; cannot be null
+     * @param missing - this stores the files that could not be found, so that we used the built-in library module instead; cannot be null
      * @param pos - the position of the "open" statement
      * @param filename - the filename to open
      * @param root - the root module (this field is ignored if prefix=="")
@@ -104,7 +108,7 @@ public final class CompUtil {
      * @param thispath - the set of filenames involved in the current chain_of_file_opening
      */
     private static CompModule parseRecursively
-    (List<Object> seenDollar, Map<String,String> loaded, Map<String,String> fc, Pos pos, String filename, CompModule root, String prefix, Set<String> thispath, int initialResolution)
+    (List<Object> seenDollar, Map<String,String> loaded, Map<String,String> fc, List<String> missing, Pos pos, String filename, CompModule root, String prefix, Set<String> thispath, int initialResolution)
     throws Err, FileNotFoundException, IOException {
         // Add the filename into a ArrayList, so that we can detect cycles in the module import graph
         // How? I'll argue that (filename appears > 1 time along a chain) <=> (infinite loop in the import graph)
@@ -133,6 +137,7 @@ public final class CompUtil {
                 try {
                     String newCp = (Util.jarPrefix()+"models/"+x.filename+".als").replace('/', File.separatorChar);
                     content = Util.readAll(newCp);
+                    missing.add(cp);
                     cp = newCp;
                 } catch(IOException ex) {
                     throw new ErrorSyntax(x.pos,
@@ -140,7 +145,7 @@ public final class CompUtil {
                 }
             }
             loaded.put(cp, content);
-            CompModule y = parseRecursively(seenDollar, loaded, fc, x.pos, cp, root, (prefix.length()==0 ? x.alias : prefix+"/"+x.alias), thispath, initialResolution);
+            CompModule y = parseRecursively(seenDollar, loaded, fc, missing, x.pos, cp, root, (prefix.length()==0 ? x.alias : prefix+"/"+x.alias), thispath, initialResolution);
             x.connect(y);
         }
         thispath.remove(filename); // Remove this file from the CYCLE DETECTION LIST.
@@ -204,6 +209,55 @@ public final class CompUtil {
 
     //=============================================================================================================//
 
+    /** Immutable; one entry of the module cache: a resolved root module, the files it was parsed from, and the messages reported while doing so. */
+    private static final class CacheEntry {
+        /** The resolved root module. */
+        private final CompModule root;
+        /** This maps each file that was loaded to its content (in the order they were loaded). */
+        private final Map<String,String> files;
+        /** The files that were looked for but did not exist (so that a built-in library module was used instead). */
+        private final List<String> missing;
+        /** The messages reported while parsing and resolving, as (method name, message) pairs. */
+        private final List<Pair<String,Object>> messages;
+        /** Constructs a new cache entry. */
+        private CacheEntry(CompModule root, Map<String,String> files, List<String> missing, List<Pair<String,Object>> messages) {
+            this.root = root;
+            this.files = files;
+            this.missing = missing;
+            this.messages = messages;
+        }
+    }
+
+    /** The maximum number of root modules kept in the module cache. */
+    private static final int CACHE_SIZE = 8;
+
+    /** This maps (main filename, resolution mode) to the most recent parse of it; the least recently used entry is discarded first. */
+    private static final Map<String,CacheEntry> cache = new LinkedHashMap<String,CacheEntry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 0;
+        @Override protected boolean removeEldestEntry(Map.Entry<String,CacheEntry> eldest) { return size() > CACHE_SIZE; }
+    };
+
+    /** Discard every module in the module cache. */
+    public static void clearCache() {
+        synchronized(cache) { cache.clear(); }
+    }
+
+    /** Returns true if parsing again would load exactly the same files as the given cache entry,
+     * with the same content (where fc contains the pre-fetched files, and any other file is read from disk).
+     */
+    private static boolean isCurrent(CacheEntry entry, Map<String,String> fc) {
+        for(Map.Entry<String,String> e: entry.files.entrySet()) {
+            String name = e.getKey(), content = fc.get(name);
+            if (content==null) {
+                if (name.startsWith(Util.jarPrefix())) continue; // the built-in library modules cannot change while we are running
+                try { content = Util.readAll(name); } catch(IOException ex) { return false; }
+            }
+            if (!content.equals(e.getValue())) return false;
+        }
+        for(String name: entry.missing) if (fc.containsKey(name) || new File(name).exists()) return false;
+        return true;
+    }
+
     /** Read everything from "file" and parse it; if it mentions submodules, open them and parse them too.
      * @param rep - if nonnull, we will report compilation progress messages to it
      * @param loaded - a cache of files that have been pre-fetched (can be null if there were no prefetching)
@@ -213,23 +267,7 @@ public final class CompUtil {
      * <p> And if loaded!=null, it will contain all the files needed for this parse, and furthermore, other entries will be deleted.
      */
     public static CompModule parseEverything_fromFile (A4Reporter rep, Map<String,String> loaded, String filename) throws Err {
-        try {
-            filename = Util.canon(filename);
-            Set<String> thispath = new LinkedHashSet<String>();
-            if (loaded==null) loaded = new LinkedHashMap<String,String>();
-            Map<String,String> fc = new LinkedHashMap<String,String>(loaded);
-            loaded.clear();
-            List<Object> seenDollar = new ArrayList<Object>();
-            CompModule root = parseRecursively(seenDollar, loaded, fc, new Pos(filename,1,1), filename, null, "", thispath, 1);
-            root.seenDollar = seenDollar.size()>0;
-            return CompModule.resolveAll(rep==null ? A4Reporter.NOP : rep, root);
-        } catch(FileNotFoundException ex) {
-            throw new ErrorSyntax("File cannot be found.\n"+ex.getMessage(), ex);
-        } catch(IOException ex) {
-            throw new ErrorFatal("IOException occurred: "+ex.getMessage(), ex);
-        } catch(Throwable ex) {
-            if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Unknown exception occurred: "+ex, ex);
-        }
+        return parseEverything_fromFile(rep, loaded, filename, 1);
     }
 
     /** Read everything from "file" and parse it; if it mentions submodules, open them and parse them too.
@@ -240,6 +278,10 @@ public final class CompUtil {
      * @return the root CompModule which contains pointers to all submodules
      * @throws Err if an error occurred
      * <p> And if loaded!=null, it will contain all the files needed for this parse, and furthermore, other entries will be deleted.
+     * <p> If every file needed is the same as in an earlier call with the same filename and resolution mode,
+     * then the same CompModule is returned again (and the messages reported by that earlier call are reported again to rep);
+     * the module cache keeps the last few root modules, and clearCache() discards them.
+     * <p> A cached module is never modified on a cache hit; once addGlobal() has been called on it, it is not returned again.
      */
     public static CompModule parseEverything_fromFile (A4Reporter rep, Map<String,String> loaded, String filename, int initialResolutionMode) throws Err {
         try {
@@ -249,9 +291,44 @@ public final class CompUtil {
             Map<String,String> fc = new LinkedHashMap<String,String>(loaded);
             loaded.clear();
             List<Object> seenDollar = new ArrayList<Object>();
-            CompModule root = parseRecursively(seenDollar, loaded, fc, new Pos(filename,1,1), filename, null, "", thispath, initialResolutionMode);
+            if (rep==null) rep = A4Reporter.NOP;
+            PhaseTimer timer = PhaseTimer.start();
+            String key = initialResolutionMode + " " + filename;
+            CacheEntry entry;
+            synchronized(cache) { entry = cache.get(key); }
+            // A module with globals is in use by an evaluator (possibly in another thread), so we must not hand it out again
+            if (entry!=null && !entry.root.hasGlobals() && isCurrent(entry, fc)) {
+                loaded.putAll(entry.files);
+                for(Pair<String,Object> m: entry.messages) {
+                    if (m.a.equals("parse")) rep.parse((String)m.b);
+                    else if (m.a.equals("typecheck")) rep.typecheck((String)m.b);
+                    else if (m.a.equals("warning")) rep.warning((ErrorWarning)m.b);
+                    else rep.debug((String)m.b);
+                }
+                rep.count("files", loaded.size());
+                rep.count("cachedFiles", loaded.size());
+                timer.stop(rep, "parse");
+                return entry.root;
+            }
+            // Record the messages, so that we can report them again if this parse is reused
+            final List<Pair<String,Object>> messages = new ArrayList<Pair<String,Object>>();
+            A4Reporter recorder = new A4Reporter(rep) {
+                @Override public void parse(String msg)         { messages.add(new Pair<String,Object>("parse", msg));     super.parse(msg); }
+                @Override public void typecheck(String msg)     { messages.add(new Pair<String,Object>("typecheck", msg)); super.typecheck(msg); }
+                @Override public void warning(ErrorWarning msg) { messages.add(new Pair<String,Object>("warning", msg));   super.warning(msg); }
+                @Override public void debug(String msg)         { messages.add(new Pair<String,Object>("debug", msg));     super.debug(msg); }
+            };
+            List<String> missing = new ArrayList<String>();
+            CompModule root = parseRecursively(seenDollar, loaded, fc, missing, new Pos(filename,1,1), filename, null, "", thispath, initialResolutionMode);
             root.seenDollar = seenDollar.size()>0;
-            return CompModule.resolveAll(rep==null ? A4Reporter.NOP : rep, root);
+            rep.count("files", loaded.size());
+            timer.stop(rep, "parse");
+            CompModule ans = CompModule.resolveAll(recorder, root);
+            rep.count("sigs", ans.getAllReachableSigs().size());
+            timer.stop(rep, "resolve");
+            entry = new CacheEntry(ans, new LinkedHashMap<String,String>(loaded), missing, messages);
+            synchronized(cache) { cache.put(key, entry); }
+            return ans;
         } catch(FileNotFoundException ex) {
             throw new ErrorSyntax("File cannot be found.\n"+ex.getMessage(), ex);
         } catch(IOException ex) {
@@ -0,0 +1,94 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.parser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Util;
+
+/** This class is used by the Alloy developers to measure how many tokens per second the parser can handle.
+ *
+ * <p> The first argument is a directory (by default "resources/models"), and the optional second argument
+ * is the number of rounds (by default 8). We read every .als file in that directory and its subdirectories,
+ * and keep those that parse on their own (that is, without loading the modules they open).
+ * Then each round parses every one of them 20 times, and prints the number of tokens parsed per second.
+ * The first few rounds include the time for the JIT compiler to warm up, so only the later rounds should be compared.
+ *
+ * <p> The tokens are counted once, by running CompFilter (the lexer plus the token rewriting that happens before the parser)
+ * over each file; the parse time includes the lexer as well as the parser.
+ */
+
+public final class ParseBenchmark {
+
+    /** The number of times each round parses every file. */
+    private static final int PASSES = 20;
+
+    /** The constructor is private, since main() is the only way to use this class. */
+    private ParseBenchmark() { }
+
+    /** Add every .als file in the given directory (and its subdirectories) to the list, in alphabetical order. */
+    private static void collect(File dir, List<String> files) {
+        File[] list = dir.listFiles();
+        if (list==null) return;
+        Arrays.sort(list);
+        for(File f: list) if (f.isDirectory()) collect(f, files); else if (f.getName().endsWith(".als")) files.add(f.getAbsolutePath());
+    }
+
+    /** Parse the given file's content without opening any other module. */
+    private static void parse(String filename, String content) throws Err, IOException {
+        CompParser.alloy_parseStream(new ArrayList<Object>(), null, Collections.singletonMap(filename, content), null, 0, filename, "", 1);
+    }
+
+    /** Returns the number of tokens that CompFilter gives to the parser for the given file's content (including the final EOF). */
+    private static int count(String filename, String content) throws Exception {
+        CompFilter s = new CompFilter(new CompModule(null, filename, ""), new ArrayList<Object>(), filename, 0, new BufferedReader(new StringReader(content)));
+        int n = 1;
+        while(s.next_token().sym != CompSym.EOF) n++;
+        return n;
+    }
+
+    /** Main method that runs the benchmark. */
+    public static void main(String[] args) throws Exception {
+        String dir = args.length>0 ? args[0] : "resources/models";
+        int rounds = args.length>1 ? Integer.parseInt(args[1]) : 8;
+        List<String> all = new ArrayList<String>(), files = new ArrayList<String>(), contents = new ArrayList<String>();
+        collect(new File(dir), all);
+        long tokens = 0;
+        for(String f: all) {
+            String content = Util.convertLineBreak(Util.readAll(f));
+            try { parse(f, content); } catch(Err ex) { continue; }
+            tokens += count(f, content);
+            files.add(f);
+            contents.add(content);
+        }
+        System.out.println(files.size() + " of " + all.size() + " file(s) parse on their own, with " + tokens + " token(s) in total.");
+        if (files.isEmpty()) return;
+        for(int round=1; round<=rounds; round++) {
+            long start = System.nanoTime();
+            for(int pass=0; pass<PASSES; pass++) for(int i=0; i<files.size(); i++) parse(files.get(i), contents.get(i));
+            double sec = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Round %d: %.0f tokens/s (%.1f ms per pass)%n", round, tokens*PASSES/sec, sec*1000/PASSES);
+        }
+    }
+}
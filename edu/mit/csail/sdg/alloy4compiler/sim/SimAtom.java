@@ -18,8 +18,10 @@ package edu.mit.csail.sdg.alloy4compiler.sim;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Immutable; represents an atom.
  *
@@ -33,8 +35,25 @@ import java.util.WeakHashMap;
 
 public final class SimAtom {
 
-    /** This map is used to canonicalize the atoms. */
-    private static final WeakHashMap<SimAtom,WeakReference<SimAtom>> map = new WeakHashMap<SimAtom,WeakReference<SimAtom>>();
+    /** This weak reference remembers the label it was registered under, so that it can be removed from the map once cleared. */
+    private static final class Ref extends WeakReference<SimAtom> {
+        private final String label;
+        private Ref(SimAtom atom, ReferenceQueue<SimAtom> queue) { super(atom, queue); this.label = atom.string; }
+    }
+
+    /** This map is used to canonicalize the atoms; lookups do not lock, so evaluating formulas in parallel does not serialize here. */
+    private static final ConcurrentHashMap<String,Ref> map = new ConcurrentHashMap<String,Ref>();
+
+    /** This queue receives the references whose atoms have been garbage collected. */
+    private static final ReferenceQueue<SimAtom> queue = new ReferenceQueue<SimAtom>();
+
+    /** The smallest integer in the preconstructed integer cache. */
+    private static final int SMALLEST = -1024;
+
+    /** The preconstructed atoms for the integers SMALLEST..-SMALLEST-1, which covers every bitwidth up to 11;
+     * these are strongly reachable, so integer atoms in that range never need to be looked up or allocated.
+     */
+    private static final SimAtom[] ints = new SimAtom[-2*SMALLEST];
 
     /** The String label for the atom; all distinct atoms have distinct labels. */
     private String string;
@@ -44,20 +63,34 @@ public final class SimAtom {
 
     /** Construct a SimAtom for the given label, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
     public static SimAtom make(String label) {
-        synchronized(map) {
-            SimAtom x = new SimAtom(label);
-            WeakReference<SimAtom> ans = map.get(x);
-            if (ans != null) { SimAtom y = ans.get(); if (y!=null) return y; }
-            map.put(x, new WeakReference<SimAtom>(x));
-            return x;
+        Ref ref = map.get(label);
+        if (ref != null) { SimAtom x = ref.get(); if (x!=null) return x; }
+        // Slow path: first remove the entries of collected atoms, then try to register a new atom
+        for(Reference<? extends SimAtom> r = queue.poll(); r != null; r = queue.poll()) map.remove(((Ref)r).label, r);
+        SimAtom x = new SimAtom(label);
+        Ref mine = new Ref(x, queue);
+        while(true) {
+            ref = map.putIfAbsent(label, mine);
+            if (ref == null) return x;
+            SimAtom y = ref.get();
+            if (y != null) return y; // another thread registered this label first
+            if (map.replace(label, ref, mine)) return x; // the previous atom was collected but its entry not yet removed
         }
     }
 
     /** Construct a SimAtom for the given integer, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
-    public static SimAtom make(int i) { return make(String.valueOf(i)); }
+    public static SimAtom make(int i) {
+        return (i >= SMALLEST && i < -SMALLEST) ? ints[i - SMALLEST] : make(String.valueOf(i));
+    }
 
     /** Construct a SimAtom for the given integer, or if an existing SimAtom hasn't been garbage collected yet then return that instead. */
-    public static SimAtom make(long i) { return make(String.valueOf(i)); }
+    public static SimAtom make(long i) {
+        return (i >= SMALLEST && i < -SMALLEST) ? ints[(int)i - SMALLEST] : make(String.valueOf(i));
+    }
+
+    static {
+        for(int i=0; i<ints.length; i++) ints[i] = make(String.valueOf(i + SMALLEST));
+    }
 
     /** Preconstructed atom representing emptystring. */
     public static final SimAtom EMPTYSTRING = make("");
@@ -17,16 +17,29 @@ package edu.mit.csail.sdg.alloy4compiler.sim;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.mit.csail.sdg.alloy4.ConstList.TempList;
 import edu.mit.csail.sdg.alloy4.Env;
@@ -41,8 +54,15 @@ import edu.mit.csail.sdg.alloy4compiler.ast.*;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.PrimSig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.SubsetSig;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
 
-/** Mutable; represents an instance. 
+/** Mutable; represents an instance.
+ *
+ * <p> An instance may also be a lasso trace: a list of states (each with its own valuation of the sigs, fields, and skolems)
+ * where the last state loops back to an earlier state. Temporal operators are evaluated over the infinite unrolling of the lasso;
+ * a plain instance behaves as a single state that loops back to itself.
  * */
 
 public final class SimInstance extends VisitReturn<Object> {
@@ -56,8 +76,39 @@ public final class SimInstance extends VisitReturn<Object> {
     /** This stores the "call backs" where you can supply Java code to efficiently handle certain functions/predicates. */
     private final Map<Func,SimCallback> callbacks;
 
-    /** The exact values of each sig, field, and skolem (Note: it must not cache the value of any "defined" field, nor any builtin sig) */
-    private final Map<Expr,SimTupleset> sfs = new LinkedHashMap<Expr,SimTupleset>();
+    /** The exact values of each sig, field, and skolem in the current state (Note: it must not cache the value of any "defined" field, nor any builtin sig) */
+    private Map<Expr,SimTupleset> sfs = new LinkedHashMap<Expr,SimTupleset>();
+
+    /** The valuation of each state of the trace (one of them is "sfs"); a plain instance has exactly one state. */
+    private final List<Map<Expr,SimTupleset>> states = new ArrayList<Map<Expr,SimTupleset>>();
+
+    /** The state that the last state loops back to. */
+    private int loop = 0;
+
+    /** The current position on the unrolled trace (position i is state i if i is less than the trace length; after that the loop repeats forever). */
+    private int position = 0;
+
+    /** This caches the truth value of temporal subformulas at each position (after folding the position into the periodic part of the trace);
+     * it is only used when no local variable is bound, and it must be cleared whenever any state changes.
+     */
+    private final Map<Expr,Map<Integer,Boolean>> memo = new IdentityHashMap<Expr,Map<Integer,Boolean>>();
+
+    /** This caches the value of each subexpression that did not depend on any bound local variable when it was last evaluated;
+     * it is only valid for the current position, and it must be cleared whenever any state changes.
+     */
+    private final Map<Expr,Object> cache = new IdentityHashMap<Expr,Object>();
+
+    /** This caches the free local variables of each subexpression we've considered caching. */
+    private final Map<Expr,ExprVar[]> freeVars = new IdentityHashMap<Expr,ExprVar[]>();
+
+    /** Since some Expr objects are created during evaluation (such as the negated body of "all"), we clear "cache" and "freeVars" once they hold this many entries. */
+    private static final int CACHE_LIMIT = 10000;
+
+    /** The number of evaluations that were answered from the cache, and the number of evaluations stored into the cache. */
+    private long cacheHits = 0, cacheMisses = 0;
+
+    /** This caches the nesting depth of past-time operators in each subformula we've seen. */
+    private final Map<Expr,Integer> depths = new IdentityHashMap<Expr,Integer>();
 
     /** If nonnull, it caches the current value of STRING (this value must be cleared or updated when you change the value of sigs/fields/vars) */
     private SimTupleset cacheSTRING = null;
@@ -71,6 +122,12 @@ public final class SimInstance extends VisitReturn<Object> {
     /** This is used to detect "function recursion" (which we currently do not allow). */
     private final List<Func> current_function = new ArrayList<Func>();
 
+    /** If nonnull, quantifications whose outermost variable has enough bindings are enumerated in parallel using this pool. */
+    private ForkJoinPool pool = null;
+
+    /** The fewest bindings of the outermost variable for which we bother to enumerate a quantification in parallel. */
+    private static final int PARALLEL_THRESHOLD = 16;
+
     /** The chosen bitwidth */
     private final int bitwidth;
 
@@ -128,9 +185,6 @@ public final class SimInstance extends VisitReturn<Object> {
         }
     }
 
-    /** Temporary buffer used by the parser; access to this buffer must be synchronized on SimInstance's class. */
-    private static byte[] readcache = null;
-
     /** Helper method that read a non-negative integer followed by a line break. */
     private static int readNonNegativeIntThenLinebreak(BufferedInputStream bis) throws IOException {
         int n = 0;
@@ -144,10 +198,9 @@ public final class SimInstance extends VisitReturn<Object> {
         }
     }
 
-    /** Helper method that read "key =" then return the key part (with leading and trailing spaces removed).
-     * This method can only be called after you've synchronized on SimInstance's class.
-     */
+    /** Helper method that read "key =" then return the key part (with leading and trailing spaces removed). */
     private static String readkey(BufferedInputStream bis) throws IOException {
+        byte[] readcache = null;
         int n = 0;
         while(true) {
             int c = bis.read();
@@ -165,11 +218,11 @@ public final class SimInstance extends VisitReturn<Object> {
         while(n>0 && readcache[n-1]>0 && readcache[n-1]<=' ') n--; // skip trailing spaces
         int i = 0;
         while(i<n && readcache[i]>0 && readcache[i]<=' ') i++; // skip leading space
-        return new String(readcache, i, n-i, "UTF-8");
+        return n==0 ? "" : new String(readcache, i, n-i, "UTF-8");
     }
 
     /** Construct a new simulation context by reading the given file. */
-    public static synchronized SimInstance read(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
+    public static SimInstance read(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
         FileInputStream fis = null;
         BufferedInputStream bis = null;
         try {
@@ -211,14 +264,195 @@ public final class SimInstance extends VisitReturn<Object> {
             fis = null;
             return ans;
         } finally {
-            // free the temporary array
-            readcache = null;
             // if an exception occurred, we'll try to close to files anyway, since open file descriptors is a scarce resource
             Util.close(bis);
             Util.close(fis);
         }
     }
 
+    /** The first 4 bytes of every binary snapshot ("ASIM"). */
+    private static final int SNAPSHOT_MAGIC = 0x4153494D;
+
+    /** The version of the binary snapshot format written by writeSnapshot(). */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /** Returns the key under which the given sig/field/var is saved ("sig X", "field X f", or "var v"), or null if it is none of those. */
+    private static String key(Expr e) {
+        if (e instanceof Sig) return "sig " + ((Sig)e).label;
+        if (e instanceof Field) return "field " + ((Field)e).sig.label + " " + ((Field)e).label;
+        if (e instanceof ExprVar) return "var " + ((ExprVar)e).label;
+        return null;
+    }
+
+    /** Returns how many bytes we use for each atom index when there are n atoms in the dictionary. */
+    private static int indexWidth(int n) { return n<=256 ? 1 : (n<=65536 ? 2 : 4); }
+
+    /** Helper method that writes a string as its length (in UTF-8 bytes) followed by its UTF-8 bytes. */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Helper method that reads a string written by writeString(). */
+    private static String readString(ByteBuffer in) throws IOException {
+        int n = in.getInt();
+        if (n<0 || n>in.remaining()) throw new IOException("Corrupt snapshot: bad string length " + n);
+        if (in.hasArray()) {
+            String ans = new String(in.array(), in.arrayOffset() + in.position(), n, "UTF-8");
+            in.position(in.position() + n);
+            return ans;
+        }
+        byte[] bytes = new byte[n];
+        in.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /** Write every state of this instance into the given file using the compact binary snapshot format (see writeSnapshot(OutputStream)). */
+    public void writeSnapshot(String filename) throws IOException {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(filename);
+            writeSnapshot(fos);
+            fos.close();
+            fos = null;
+        } finally {
+            Util.close(fos);
+        }
+    }
+
+    /** Write every state of this instance into the given stream using the compact binary snapshot format (the stream is flushed but not closed).
+     * <p> The format is: the magic number "ASIM", the version, maxseq, bitwidth, the number of states, and the loop state;
+     * then the atom dictionary (the number of atoms, then each atom's label);
+     * then for each state, the number of relations, and for each relation its key ("sig X", "field X f", or "var v"),
+     * its arity, its number of tuples, and then each tuple as "arity" indices into the atom dictionary.
+     * <br> Every number is a 4-byte big-endian integer, and every string is its length in bytes followed by its UTF-8 encoding;
+     * except that the atom indices are packed into 1 byte if there are at most 256 atoms, or 2 bytes if there are at most 65536 atoms.
+     */
+    public void writeSnapshot(OutputStream stream) throws IOException {
+        // first assign an index to every atom mentioned in any state
+        IdentityHashMap<SimAtom,Integer> dictionary = new IdentityHashMap<SimAtom,Integer>();
+        List<SimAtom> atoms = new ArrayList<SimAtom>();
+        for(Map<Expr,SimTupleset> state: states) for(Map.Entry<Expr,SimTupleset> entry: state.entrySet()) if (key(entry.getKey())!=null) {
+            for(SimTuple tuple: entry.getValue()) for(int i=0, n=tuple.arity(); i<n; i++) {
+                SimAtom atom = tuple.get(i);
+                if (!dictionary.containsKey(atom)) { dictionary.put(atom, atoms.size()); atoms.add(atom); }
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        out.writeInt(maxseq);
+        out.writeInt(bitwidth);
+        out.writeInt(states.size());
+        out.writeInt(loop);
+        out.writeInt(atoms.size());
+        for(SimAtom atom: atoms) writeString(out, atom.toString());
+        int width = indexWidth(atoms.size());
+        for(Map<Expr,SimTupleset> state: states) {
+            int n = 0;
+            for(Expr e: state.keySet()) if (key(e)!=null) n++;
+            out.writeInt(n);
+            for(Map.Entry<Expr,SimTupleset> entry: state.entrySet()) {
+                String key = key(entry.getKey());
+                if (key==null) continue;
+                SimTupleset ts = entry.getValue();
+                writeString(out, key);
+                out.writeInt(ts.arity());
+                out.writeInt(ts.size());
+                for(SimTuple tuple: ts) for(int i=0, arity=tuple.arity(); i<arity; i++) {
+                    int atom = dictionary.get(tuple.get(i));
+                    if (width==1) out.writeByte(atom); else if (width==2) out.writeShort(atom); else out.writeInt(atom);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /** Construct a new simulation context by reading a binary snapshot from the given file (see writeSnapshot(OutputStream)).
+     * <p> The file is read through its channel into a single heap buffer (a mapped buffer would keep the file mapped until it is
+     * garbage collected); this method may be called by several threads at once.
+     */
+    public static SimInstance readSnapshot(Module root, String filename, List<ExprVar> vars) throws Err, IOException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(filename, "r");
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("The snapshot " + filename + " is too large.");
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while(buffer.hasRemaining()) if (channel.read(buffer)<0) throw new IOException("The snapshot " + filename + " was truncated while being read.");
+            buffer.flip();
+            SimInstance ans = readSnapshot(root, buffer, vars);
+            file.close();
+            file = null;
+            return ans;
+        } finally {
+            Util.close(file);
+        }
+    }
+
+    /** Construct a new simulation context by reading a binary snapshot from the given buffer, starting at its current position.
+     * <p> Relations whose sig/field/var cannot be found in the given module (or in the given list of vars) are ignored, as in read().
+     * <br> The buffer's position is advanced past the snapshot; the buffer must not be used by any other thread in the meantime.
+     */
+    public static SimInstance readSnapshot(Module root, ByteBuffer buffer, List<ExprVar> vars) throws Err, IOException {
+        ByteBuffer in = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (in.getInt()!=SNAPSHOT_MAGIC) throw new IOException("This is not a SimInstance snapshot.");
+            int version = in.getInt();
+            if (version!=SNAPSHOT_VERSION) throw new IOException("Unsupported snapshot version " + version + ".");
+            int maxseq = in.getInt(), bitwidth = in.getInt(), stateCount = in.getInt(), loop = in.getInt();
+            if (stateCount<1 || loop<0 || loop>=stateCount) throw new IOException("Corrupt snapshot: bad trace length or loop.");
+            if (bitwidth<0 || bitwidth>32 || maxseq<0) throw new IOException("Corrupt snapshot: bad bitwidth or maxseq.");
+            // read the atom dictionary
+            int atomCount = in.getInt();
+            if (atomCount<0 || atomCount>in.remaining()/4) throw new IOException("Corrupt snapshot: bad atom count " + atomCount);
+            SimAtom[] atoms = new SimAtom[atomCount];
+            for(int i=0; i<atomCount; i++) atoms[i] = SimAtom.make(readString(in));
+            int width = indexWidth(atomCount);
+            // map each key to the sig/field/var it denotes
+            Map<String,Expr> keys = new HashMap<String,Expr>();
+            for(final Sig s: root.getAllReachableSigs()) if (!s.builtin) {
+                keys.put(key(s), s);
+                for(final Field f: s.getFields()) if (!f.defined) keys.put(key(f), f);
+            }
+            if (vars!=null) for(ExprVar v: vars) keys.put(key(v), v);
+            // read each state
+            SimInstance ans;
+            try {
+                ans = new SimInstance(root, bitwidth, maxseq);
+            } catch(Err ex) {
+                throw new IOException("Corrupt snapshot: " + ex.msg);
+            }
+            for(int s=0; s<stateCount; s++) {
+                Map<Expr,SimTupleset> state = (s==0) ? ans.sfs : new LinkedHashMap<Expr,SimTupleset>();
+                if (s>0) ans.states.add(state);
+                for(int r=in.getInt(); r>0; r--) {
+                    String key = readString(in);
+                    int arity = in.getInt(), size = in.getInt();
+                    if (arity<0 || size<0 || (arity==0 && size>0) || (long)arity*size*width > in.remaining()) throw new IOException("Corrupt snapshot: bad relation \"" + key + "\"");
+                    LinkedHashSet<SimTuple> tuples = new LinkedHashSet<SimTuple>();
+                    for(int t=0; t<size; t++) {
+                        SimAtom[] tuple = new SimAtom[arity];
+                        for(int i=0; i<arity; i++) {
+                            int atom = (width==1) ? (in.get() & 0xFF) : (width==2 ? (in.getShort() & 0xFFFF) : in.getInt());
+                            if (atom<0 || atom>=atomCount) throw new IOException("Corrupt snapshot: bad atom index " + atom);
+                            tuple[i] = atoms[atom];
+                        }
+                        tuples.add(SimTuple.make(tuple));
+                    }
+                    Expr e = keys.get(key);
+                    if (e!=null) state.put(e, SimTupleset.make(tuples));
+                }
+            }
+            ans.loop = loop;
+            buffer.position(in.position());
+            return ans;
+        } catch(BufferUnderflowException ex) {
+            throw new IOException("Corrupt snapshot: unexpected end of data.");
+        }
+    }
+
     /** Construct a new simulation context with the given bitwidth and the given maximum sequence length. */
     public SimInstance(Module root, int bitwidth, int maxseq) throws Err {
         if (bitwidth<0 || bitwidth>32) throw new ErrorType("Bitwidth must be between 0 and 32.");
@@ -230,6 +464,39 @@ public final class SimInstance extends VisitReturn<Object> {
         if (maxseq < 0)   throw new ErrorSyntax("The maximum sequence length cannot be negative.");
         if (maxseq > 0 && maxseq > max) throw new ErrorSyntax("With integer bitwidth of "+bitwidth+", you cannot have sequence length longer than "+max);
         shiftmask = Util.shiftmask(bitwidth);
+        states.add(sfs);
+    }
+
+    /** Converts an A4TupleSet into a SimTupleset object. */
+    public static SimTupleset convert(Object object) throws Err {
+        if (!(object instanceof A4TupleSet)) throw new ErrorFatal("Unexpected type error: expecting an A4TupleSet.");
+        A4TupleSet s = (A4TupleSet)object;
+        if (s.size()==0) return SimTupleset.EMPTY;
+        List<SimTuple> list = new ArrayList<SimTuple>(s.size());
+        int arity = s.arity();
+        for(A4Tuple t: s) {
+            String[] array = new String[arity];
+            for(int i=0; i<t.arity(); i++) array[i] = t.atom(i);
+            list.add(SimTuple.make(array));
+        }
+        return SimTupleset.make(list);
+    }
+
+    /** Converts an A4Solution into a SimInstance object (with one state per state of the trace). */
+    public static SimInstance convert(Module root, A4Solution ans) throws Err {
+       SimInstance ct = new SimInstance(root, ans.getBitwidth(), ans.getMaxSeq());
+       for(int i=0; i<=ans.getLastTrace(); i++) {
+          if (i>0) ct.addState();
+          for(Sig s: ans.getAllReachableSigs()) {
+              if (!s.builtin) ct.init(s, convert(ans.eval(s, i)));
+              for(Field f: s.getFields())  if (!f.defined)  ct.init(f, convert(ans.eval(f, i)));
+          }
+          for(ExprVar a:ans.getAllAtoms())   ct.init(a, convert(ans.eval(a)));
+          for(ExprVar a:ans.getAllSkolems()) ct.init(a, convert(ans.eval(a)));
+       }
+       if (ans.getBackLoop()>=0) ct.setLoop(ans.getBackLoop());
+       ct.setState(0);
+       return ct;
     }
 
     /** Construct a deep copy of this instance (except that it shares the same root Module object as the old instance) */
@@ -244,7 +511,207 @@ public final class SimInstance extends VisitReturn<Object> {
         cacheUNIV = old.cacheUNIV;
         cacheSTRING = old.cacheSTRING;
         callbacks = new HashMap<Func,SimCallback>(old.callbacks);
-        for(Map.Entry<Expr,SimTupleset> e: old.sfs.entrySet()) sfs.put(e.getKey(), e.getValue());
+        for(Map<Expr,SimTupleset> state: old.states) states.add(new LinkedHashMap<Expr,SimTupleset>(state));
+        loop = old.loop;
+        position = old.position;
+        sfs = states.get(stateOf(position));
+    }
+
+    /** Returns the number of states in the trace (a plain instance has exactly one state). */
+    public int getTraceLength() { return states.size(); }
+
+    /** Returns the state that the last state loops back to. */
+    public int getLoop() { return loop; }
+
+    /** Returns the current state. */
+    public int getState() { return stateOf(position); }
+
+    /** Sets the state that the last state loops back to.
+     * @throws ErrorAPI if the state does not exist
+     */
+    public void setLoop(int loop) throws ErrorAPI {
+        if (loop<0 || loop>=states.size()) throw new ErrorAPI("The trace does not have a state "+loop+".");
+        this.loop = loop;
+        changed();
+    }
+
+    /** Makes the given state the current state; subsequent evaluations, and calls to init(), makeAtom() and deleteAtom(), apply to that state.
+     * @throws ErrorAPI if the state does not exist
+     */
+    public void setState(int state) throws ErrorAPI {
+        if (state<0 || state>=states.size()) throw new ErrorAPI("The trace does not have a state "+state+".");
+        moveTo(state);
+    }
+
+    /** Appends a new state at the end of the trace whose valuation is a copy of the last state's, then makes it the current state.
+     * @return the index of the new state
+     */
+    public int addState() {
+        states.add(new LinkedHashMap<Expr,SimTupleset>(states.get(states.size()-1)));
+        changed();
+        moveTo(states.size()-1);
+        return states.size()-1;
+    }
+
+    /** Returns the state at the given position of the unrolled trace. */
+    private int stateOf(int pos) {
+        int n = states.size();
+        return pos<n ? pos : loop + (pos-loop) % (n-loop);
+    }
+
+    /** Moves to the given position of the unrolled trace. */
+    private void moveTo(int pos) {
+        Map<Expr,SimTupleset> now = states.get(stateOf(pos));
+        if (now!=sfs) { sfs = now; cacheUNIV = null; cacheSTRING = null; }
+        if (pos!=position) { cacheForConstants.clear(); cache.clear(); } // since a parameter-less function or a cached subexpression may refer to other states
+        position = pos;
+    }
+
+    /** Clears every cached answer that depends on the value of the sigs, fields, skolems, or the shape of the trace. */
+    private void changed() {
+        memo.clear();
+        cache.clear();
+    }
+
+    /** Returns the number of subexpression evaluations that were saved by reusing a cached answer. */
+    public long getCacheHits() { return cacheHits; }
+
+    /** Returns the number of subexpression evaluations whose answer was stored into the cache. */
+    public long getCacheMisses() { return cacheMisses; }
+
+    /** Returns the free local variables of x (that is, the variables it refers to but does not itself bind with a quantifier or a let). */
+    private ExprVar[] freeVars(Expr x) throws Err {
+        ExprVar[] ans = freeVars.get(x);
+        if (ans!=null) return ans;
+        final LinkedHashSet<ExprVar> free = new LinkedHashSet<ExprVar>();
+        final List<ExprHasName> bound = new ArrayList<ExprHasName>();
+        x.accept(new VisitQuery<Object>() {
+            @Override public Object visit(ExprVar e) {
+                if (!bound.contains(e)) free.add(e);
+                return null;
+            }
+            @Override public Object visit(ExprLet e) throws Err {
+                e.expr.accept(this);
+                bound.add(e.var);
+                e.sub.accept(this);
+                bound.remove(bound.size()-1);
+                return null;
+            }
+            @Override public Object visit(ExprQt e) throws Err {
+                int n = bound.size();
+                for(Decl d: e.decls) { d.expr.accept(this); bound.addAll(d.names); }
+                e.sub.accept(this);
+                while(bound.size()>n) bound.remove(bound.size()-1);
+                return null;
+            }
+        });
+        ans = free.toArray(new ExprVar[free.size()]);
+        if (freeVars.size()>=CACHE_LIMIT) freeVars.clear();
+        freeVars.put(x, ans);
+        return ans;
+    }
+
+    /** Evaluates x; if x does not depend on any currently bound local variable, the answer is cached,
+     * so that evaluating it again (for example, once for each binding of an enclosing quantifier) costs only a lookup.
+     */
+    private Object eval(Expr x) throws Err {
+        // When no local variable is bound, we're not inside a quantifier, a let, or a function body, so it is unlikely to be evaluated again;
+        // and leaves are already cheap to evaluate.
+        if (env.isEmpty() || x instanceof ExprVar || x instanceof ExprConstant || x instanceof Sig || (x instanceof Field && !((Field)x).defined)) return visitThis(x);
+        for(ExprVar v: freeVars(x)) if (env.has(v)) return visitThis(x);
+        Object ans = cache.get(x);
+        if (ans!=null) { cacheHits++; return ans; }
+        ans = visitThis(x);
+        if (cache.size()>=CACHE_LIMIT) cache.clear();
+        cache.put(x, ans);
+        cacheMisses++;
+        return ans;
+    }
+
+    /** Returns how deeply the past-time operators are nested in x (including inside the bodies of the functions it calls). */
+    private int pastDepth(Expr x) throws Err {
+        Integer ans = depths.get(x);
+        if (ans!=null) return ans;
+        final int[] max = new int[1];
+        x.accept(new VisitQuery<Object>() {
+            private int depth = 0;
+            private final List<Func> visiting = new ArrayList<Func>();
+            private void past(Expr sub) throws Err {
+                depth++;
+                if (max[0]<depth) max[0]=depth;
+                sub.accept(this);
+                depth--;
+            }
+            @Override public Object visit(ExprUnary e) throws Err {
+                if (e.op==ExprUnary.Op.PREVIOUS || e.op==ExprUnary.Op.ONCE || e.op==ExprUnary.Op.HISTORICALLY) past(e.sub); else e.sub.accept(this);
+                return null;
+            }
+            @Override public Object visit(ExprBinary e) throws Err {
+                if (e.op==ExprBinary.Op.SINCE) { past(e.left); past(e.right); } else { e.left.accept(this); e.right.accept(this); }
+                return null;
+            }
+            @Override public Object visit(ExprCall e) throws Err {
+                super.visit(e);
+                if (!visiting.contains(e.fun)) { visiting.add(e.fun); e.fun.getBody().accept(this); visiting.remove(visiting.size()-1); }
+                return null;
+            }
+        });
+        depths.put(x, max[0]);
+        return max[0];
+    }
+
+    /** Returns the position where a formula with the given past-time nesting depth becomes periodic.
+     * <p> A formula without past-time operators has the same value at every unrolling of the loop;
+     * each level of past-time operators may need one more unrolling before the history it looks at repeats as well.
+     */
+    private int periodicFrom(int depth) {
+        return loop + depth*(states.size()-loop);
+    }
+
+    /** Returns the end (exclusive) of the positions that a future-time operator at the current position must examine;
+     * since the formulas beneath it are periodic after periodicFrom(depth), examining one full loop from there is enough.
+     */
+    private int horizon(int depth) {
+        return Math.max(position, periodicFrom(depth)) + (states.size()-loop);
+    }
+
+    /** Evaluates x at the given position of the unrolled trace, then moves back to the current position. */
+    private Object visitAt(Expr x, int pos) throws Err {
+        final int old = position;
+        if (pos==old) return visitThis(x);
+        moveTo(pos);
+        try { return visitThis(x); } finally { moveTo(old); }
+    }
+
+    /** Evaluates the formula x at the given position of the unrolled trace, then moves back to the current position. */
+    private boolean cform(Expr x, int pos) throws Err {
+        if (!env.isEmpty()) return cform(x, pos, null, 0); // the value may depend on the local variables, so we cannot memoize it
+        int start = periodicFrom(pastDepth(x)), key = pos<start ? pos : start + (pos-start)%(states.size()-loop);
+        Map<Integer,Boolean> map = memo.get(x);
+        if (map==null) { map = new HashMap<Integer,Boolean>(); memo.put(x, map); }
+        Boolean ans = map.get(key);
+        return ans!=null ? ans : cform(x, pos, map, key);
+    }
+
+    /** Evaluates the formula x at the given position of the unrolled trace, and if map!=null then record the answer into it. */
+    private boolean cform(Expr x, int pos, Map<Integer,Boolean> map, int key) throws Err {
+        final int old = position;
+        boolean ans;
+        moveTo(pos);
+        try { ans = cform(x); } finally { moveTo(old); }
+        if (map!=null) map.put(key, ans);
+        return ans;
+    }
+
+    /** Enables parallel enumeration of quantifiers using the given number of threads (or disables it if threads&lt;=1).
+     * <p> When enabled, the bindings of the outermost variable of "all/no/some/one/lone/sum x: X | ..." and of set comprehensions
+     * are split into chunks, and each chunk is evaluated on its own copy of this instance; the answer is the same as when evaluated sequentially.
+     * <p> Note: any registered callback may then be called from several threads at once.
+     * <p> Note: copies made with SimInstance(SimInstance) start with parallel enumeration disabled.
+     */
+    public void setParallelism(int threads) {
+        if (pool!=null) pool.shutdown();
+        pool = threads>1 ? new ForkJoinPool(threads) : null;
     }
 
     /** Register a callback. */
@@ -278,6 +745,7 @@ public final class SimInstance extends VisitReturn<Object> {
           SimAtom atom = SimAtom.make(label + i);
           if (hasAtom(atom)) continue;
           SimTupleset add = SimTupleset.make(SimTuple.make(atom));
+          changed();
           if (cacheUNIV!=null) cacheUNIV = cacheUNIV.union(add);
           for(; s!=null; s=s.parent) if (!s.builtin) {
               SimTupleset old = sfs.get(s);
@@ -303,7 +771,7 @@ public final class SimInstance extends VisitReturn<Object> {
           SimTupleset newvalue = oldvalue.removeAll(atom);
           if (oldvalue.longsize() != newvalue.longsize()) { changed=true; x.setValue(newvalue); }
        }
-       if (changed) { cacheUNIV=null; return true; } else { return false; }
+       if (changed) { cacheUNIV=null; changed(); return true; } else { return false; }
     }
 
     /** Initializes the given sig to be associated with the given unary value; should only be called at the beginning.
@@ -317,6 +785,7 @@ public final class SimInstance extends VisitReturn<Object> {
         cacheUNIV = null;
         cacheSTRING = null;
         cacheForConstants.clear();
+        changed();
     }
 
     /** Initializes the given field to be associated with the given unary value; should only be called at the beginning.
@@ -330,6 +799,7 @@ public final class SimInstance extends VisitReturn<Object> {
         cacheUNIV = null;
         cacheSTRING = null;
         cacheForConstants.clear();
+        changed();
     }
 
     /** Initializes the given var to be associated with the given unary value; should only be called at the beginning.
@@ -342,6 +812,7 @@ public final class SimInstance extends VisitReturn<Object> {
         cacheUNIV = null;
         cacheSTRING = null;
         cacheForConstants.clear();
+        changed();
     }
 
     /** Truncate the given integer based on the current chosen bitwidth (as string) plus 
@@ -358,7 +829,7 @@ public final class SimInstance extends VisitReturn<Object> {
      */
     public boolean cform(Expr x) throws Err {
         if (!x.errors.isEmpty()) throw x.errors.pick();
-        Object y = visitThis(x);
+        Object y = eval(x);
         if (y instanceof Boolean) return Boolean.TRUE.equals(y);
         throw new ErrorFatal(x.span(), "This should have been a formula.\nInstead it is "+y);
     }
@@ -369,7 +840,7 @@ public final class SimInstance extends VisitReturn<Object> {
      */
     public int cint(Expr x) throws Err {
         if (!x.errors.isEmpty()) throw x.errors.pick();
-        Object y = visitThis(x);
+        Object y = eval(x);
         if (y instanceof Integer) return (Integer)y;
         if (y instanceof SimTupleset) return ((SimTupleset) y).sum();
         throw new ErrorFatal(x.span(), "This should have been an integer expression.\nInstead it is "+y);
@@ -381,7 +852,7 @@ public final class SimInstance extends VisitReturn<Object> {
      */
     public SimTupleset cset(Expr x) throws Err {
         if (!x.errors.isEmpty()) throw x.errors.pick();
-        Object y = visitThis(x);
+        Object y = eval(x);
         if (y instanceof SimTupleset) return (SimTupleset)y;
         if (y instanceof Integer) return SimTupleset.make(SimTuple.make(SimAtom.make(((Integer) y).intValue())));
         throw new ErrorFatal(x.span(), "This should have been a set or a relation.\nInstead it is "+y);
@@ -454,6 +925,15 @@ public final class SimInstance extends VisitReturn<Object> {
               { int p=cint(x.left), q=cint(x.right), r=(p==0 ? 0 : (q==0 ? (p<0 ? 1 : -1) : (p/q))); return trunc(r); }
           case REM:
               { int p=cint(x.left), q=cint(x.right), r=(p==0 ? 0 : (q==0 ? (p<0 ? 1 : -1) : (p/q))); return trunc(p-r*q); }
+          case UNTIL:
+              for(int i=position, n=horizon(Math.max(pastDepth(a), pastDepth(b))); i<n; i++) { if (cform(b, i)) return true; if (!cform(a, i)) return false; }
+              return false;
+          case RELEASE:
+              for(int i=position, n=horizon(Math.max(pastDepth(a), pastDepth(b))); i<n; i++) { if (!cform(b, i)) return false; if (cform(a, i)) return true; }
+              return true;
+          case SINCE:
+              for(int i=position; i>=0; i--) { if (cform(b, i)) return true; if (!cform(a, i)) return false; }
+              return false;
         }
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprBinary.accept()");
     }
@@ -571,6 +1051,21 @@ public final class SimInstance extends VisitReturn<Object> {
           case CLOSURE:     return cset(x.sub).closure();
           case RCLOSURE:    return cset(x.sub).closure().union(cset(ExprConstant.IDEN));
           case TRANSPOSE:   return cset(x.sub).transpose();
+          case PRIME:       return visitAt(x.sub, position+1);
+          case AFTER:       return cform(x.sub, position+1);
+          case PREVIOUS:    return position>0 && cform(x.sub, position-1);
+          case EVENTUALLY:
+              for(int i=position, n=horizon(pastDepth(x.sub)); i<n; i++) if (cform(x.sub, i)) return true;
+              return false;
+          case ALWAYS:
+              for(int i=position, n=horizon(pastDepth(x.sub)); i<n; i++) if (!cform(x.sub, i)) return false;
+              return true;
+          case ONCE:
+              for(int i=position; i>=0; i--) if (cform(x.sub, i)) return true;
+              return false;
+          case HISTORICALLY:
+              for(int i=position; i>=0; i--) if (!cform(x.sub, i)) return false;
+              return true;
         }
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprUnary.accept()");
     }
@@ -643,7 +1138,6 @@ public final class SimInstance extends VisitReturn<Object> {
 
     /** Helper method for enumerating all possibilties for a quantification-expression. */
     private int enumerate(final TempList<SimTuple> store, int sum, final ExprQt x, final Expr body, final int i) throws Err { // if op is ALL NO SOME ONE LONE then it always returns 0 1 2
-       final int n = x.count();
        final ExprVar v = x.get(i);
        final Expr bound = x.getBound(i);
        final SimTupleset e = cset(bound);
@@ -658,35 +1152,100 @@ public final class SimInstance extends VisitReturn<Object> {
           final SimTupleset binding = it.next();
           if (bound.mult==2 && !isIn(binding, bound)) continue;
           env.put(v, binding);
-          if (i<n-1) sum = enumerate(store, sum, x, body, i+1);
-             else if (x.op==ExprQt.Op.SUM) sum += cint(body);
-             else if (x.op!=ExprQt.Op.COMPREHENSION) sum += cform(body)?1:0;
-             else if (cform(body)) {
-               SimTuple a=null, b;
-               for(int j=0; j<n; j++) { b=((SimTupleset)(env.get(x.get(j)))).getTuple(); if (a==null) a=b; else a=a.product(b); }
-               store.add(a);
-             }
+          sum = enumerateBody(store, sum, x, body, i);
           env.remove(v);
           if (sum>=2 && x.op!=ExprQt.Op.COMPREHENSION && x.op!=ExprQt.Op.SUM) return 2; // no need to enumerate further
        }
        return sum;
     }
 
+    /** Helper method for enumerating all possibilities for a quantification-expression once the first i+1 variables are bound. */
+    private int enumerateBody(final TempList<SimTuple> store, int sum, final ExprQt x, final Expr body, final int i) throws Err {
+       final int n = x.count();
+       if (i<n-1) sum = enumerate(store, sum, x, body, i+1);
+          else if (x.op==ExprQt.Op.SUM) sum += cint(body);
+          else if (x.op!=ExprQt.Op.COMPREHENSION) sum += cform(body)?1:0;
+          else if (cform(body)) {
+            SimTuple a=null, b;
+            for(int j=0; j<n; j++) { b=((SimTupleset)(env.get(x.get(j)))).getTuple(); if (a==null) a=b; else a=a.product(b); }
+            store.add(a);
+          }
+       return sum;
+    }
+
+    /** Helper method that does the same as enumerate(store, 0, x, body, 0), but splits the given bindings of the first variable into chunks
+     * and evaluates each chunk on its own copy of this instance; the chunks' answers are combined in order, so the answer is deterministic.
+     */
+    private int enumerateParallel(final TempList<SimTuple> store, final ExprQt x, final Expr body, final List<SimTupleset> bindings) throws Err {
+       final boolean counting = x.op!=ExprQt.Op.COMPREHENSION && x.op!=ExprQt.Op.SUM;
+       final int enough = (x.op==ExprQt.Op.ONE || x.op==ExprQt.Op.LONE) ? 2 : 1; // once this many witnesses are found (by any chunk), the answer is known
+       final AtomicInteger found = new AtomicInteger(0);
+       final int chunks = Math.min(bindings.size(), pool.getParallelism()*4);
+       final List<Future<Integer>> sums = new ArrayList<Future<Integer>>(chunks);
+       final List<TempList<SimTuple>> stores = new ArrayList<TempList<SimTuple>>(chunks);
+       for(int c=0; c<chunks; c++) {
+          final int from = (int)((long)bindings.size()*c/chunks), to = (int)((long)bindings.size()*(c+1)/chunks);
+          final SimInstance copy = new SimInstance(this);
+          final TempList<SimTuple> part = store==null ? null : new TempList<SimTuple>();
+          stores.add(part);
+          sums.add(pool.submit(new Callable<Integer>() {
+             public Integer call() throws Err {
+                int sum = 0;
+                for(int i=from; i<to; i++) {
+                   if (counting && found.get()>=enough) break;
+                   copy.env.put(x.get(0), bindings.get(i));
+                   int old = sum;
+                   sum = copy.enumerateBody(part, sum, x, body, 0);
+                   copy.env.remove(x.get(0));
+                   if (counting && sum>old) found.addAndGet(sum-old);
+                }
+                return sum;
+             }
+          }));
+       }
+       int sum = 0;
+       for(int c=0; c<chunks; c++) {
+          try {
+             sum += sums.get(c).get();
+          } catch(ExecutionException ex) {
+             if (ex.getCause() instanceof Err) throw (Err)(ex.getCause());
+             throw new ErrorFatal("Unexpected error during parallel evaluation.", ex.getCause());
+          } catch(InterruptedException ex) {
+             throw new ErrorFatal(x.pos, "Interrupted during parallel evaluation.");
+          }
+          if (store!=null) store.addAll(stores.get(c).makeConst());
+       }
+       return counting ? Math.min(sum, 2) : sum;
+    }
+
+    /** Helper method that enumerates the quantification (in parallel if enabled and worthwhile); returns the same answer as enumerate(store, 0, x, body, 0). */
+    private int enumerate(final TempList<SimTuple> store, final ExprQt x, final Expr body) throws Err {
+       if (pool!=null && x.getBound(0).mult()==ExprUnary.Op.ONEOF && x.getBound(0).mult!=2) {
+          final SimTupleset e = cset(x.getBound(0));
+          if (e.longsize()>=PARALLEL_THRESHOLD) {
+             final List<SimTupleset> bindings = new ArrayList<SimTupleset>(e.size());
+             for(SimTuple t: e) bindings.add(SimTupleset.make(t));
+             return enumerateParallel(store, x, body, bindings);
+          }
+       }
+       return enumerate(store, 0, x, body, 0);
+    }
+
     /** {@inheritDoc} */
     @Override public Object visit(ExprQt x) throws Err {
         Expr xx = x.desugar();
         if (xx instanceof ExprQt) x = (ExprQt)xx; else return visitThis(xx);
         if (x.op == ExprQt.Op.COMPREHENSION) {
            TempList<SimTuple> ans = new TempList<SimTuple>();
-           enumerate(ans, 0, x, x.sub, 0);
+           enumerate(ans, x, x.sub);
            return SimTupleset.make(ans.makeConst());
         }
-        if (x.op == ExprQt.Op.ALL)  return enumerate(null, 0, x, x.sub.not(), 0) == 0;
-        if (x.op == ExprQt.Op.NO)   return enumerate(null, 0, x, x.sub,       0) == 0;
-        if (x.op == ExprQt.Op.SOME) return enumerate(null, 0, x, x.sub,       0) >= 1;
-        if (x.op == ExprQt.Op.LONE) return enumerate(null, 0, x, x.sub,       0) <= 1;
-        if (x.op == ExprQt.Op.ONE)  return enumerate(null, 0, x, x.sub,       0) == 1;
-        if (x.op == ExprQt.Op.SUM)  return trunc(enumerate(null, 0, x, x.sub, 0));
+        if (x.op == ExprQt.Op.ALL)  return enumerate(null, x, x.sub.not()) == 0;
+        if (x.op == ExprQt.Op.NO)   return enumerate(null, x, x.sub)       == 0;
+        if (x.op == ExprQt.Op.SOME) return enumerate(null, x, x.sub)       >= 1;
+        if (x.op == ExprQt.Op.LONE) return enumerate(null, x, x.sub)       <= 1;
+        if (x.op == ExprQt.Op.ONE)  return enumerate(null, x, x.sub)       == 1;
+        if (x.op == ExprQt.Op.SUM)  return trunc(enumerate(null, x, x.sub));
         throw new ErrorFatal(x.pos, "Unsupported operator ("+x.op+") encountered during ExprQt.accept()");
     }
 
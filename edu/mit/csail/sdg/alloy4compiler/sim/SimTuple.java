@@ -51,6 +51,11 @@ public final class SimTuple implements Iterable<SimAtom> {
         return new SimTuple(array);
     }
 
+    /** Construct the n-ary tuple backed by the given array as-is (so the caller must not modify it any more); throws an exception if the array is empty. */
+    static SimTuple make(SimAtom[] array) {
+        return new SimTuple(array);
+    }
+
     /** Construct the binary tuple (a,b) */
     public static SimTuple make(SimAtom a, SimAtom b) {
         return new SimTuple(new SimAtom[]{a, b});
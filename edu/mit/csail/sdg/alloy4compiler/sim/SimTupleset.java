@@ -20,6 +20,7 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -49,6 +50,17 @@ public final class SimTupleset implements Iterable<SimTuple> {
     private final int max;
     private final boolean next;
 
+    /** If nonnull, this is the set of tuples in the "tuples" list; it is built on demand once the list is too long for a linear search.
+     * <br> It is only a cache: if two threads race to build it, they simply build two equal sets.
+     */
+    private volatile HashSet<SimTuple> index;
+
+    /** If nonnull, this maps each atom to the tuples (in order) that begin with that atom; it is built on demand by join(), and like "index" it is only a cache. */
+    private volatile IdentityHashMap<SimAtom,List<SimTuple>> heads;
+
+    /** Below this many tuples, a linear search is faster than building and probing the index. */
+    private static final int INDEX_THRESHOLD = 8;
+
     /** Construct a tupleset with the given 4 values (Note: caller MUST make sure there are no duplicates, even between (min,max) and tuples, and that all tuples are of same arity!) */
     private SimTupleset(Collection<SimTuple> tuples, int min, int max, boolean next) {
        this.tuples = ConstList.make(tuples);
@@ -65,6 +77,24 @@ public final class SimTupleset implements Iterable<SimTuple> {
        this.next = false;
     }
 
+    /** Construct a tupleset containing the given set of tuples, and keep that set as the index
+     * (Note: caller MUST make sure all tuples are of same arity, and must not modify the set afterwards!)
+     */
+    private static SimTupleset make(int min, int max, boolean next, LinkedHashSet<SimTuple> set) {
+       if (set.size()==0 && min>=max) return EMPTY;
+       SimTupleset ans = new SimTupleset(set, min, max, next);
+       if (set.size() >= INDEX_THRESHOLD) ans.index = set;
+       return ans;
+    }
+
+    /** Returns true if the "tuples" list contains the given tuple. */
+    private boolean contains(SimTuple that) {
+       if (tuples.size() < INDEX_THRESHOLD) return tuples.contains(that);
+       HashSet<SimTuple> set = index;
+       if (set==null) { set = new HashSet<SimTuple>(tuples); index = set; }
+       return set.contains(that);
+    }
+
     /** The tupleset containing no tuples. */
     public static final SimTupleset EMPTY = new SimTupleset(new TempList<SimTuple>(0).makeConst());
 
@@ -141,7 +171,7 @@ public final class SimTupleset implements Iterable<SimTuple> {
            Integer a = that.get(0).toInt(null), b = that.get(1).toInt(null);
            if (a!=null && b!=null && a<b && a.intValue()==b.intValue()-1 && min<=a && b<=max) return true;
         }
-        return tuples.contains(that);
+        return contains(that);
     }
 
     /** Returns true if this tupleset is unary and contains the given atom. */
@@ -151,6 +181,7 @@ public final class SimTupleset implements Iterable<SimTuple> {
           Integer a = that.toInt(null);
           if (a!=null && min<=a && a<=max) return true;
        }
+       if (tuples.size() >= INDEX_THRESHOLD) return contains(SimTuple.make(that));
        for(int i=tuples.size()-1; i>=0; i--) if (tuples.get(i).get(0)==that) return true;
        return false;
     }
@@ -207,36 +238,34 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset head(int n) {
        if (n<=0 || empty()) return EMPTY; else if (arity() <= n) return this;
        if (min<max) { // if we get here, than arity must be 2, and n must be 1.
-          TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
+          LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
           for(SimTuple x: tuples) {
              Integer a = x.head().toInt(null);
              if (a!=null && a>=min && a<max) continue;
-             SimTuple y = SimTuple.make(x.head());
-             if (!ans.contains(y)) ans.add(y);
+             ans.add(SimTuple.make(x.head()));
           }
-          return new SimTupleset(ans.makeConst(), min, max-1, false);
+          return make(min, max-1, false, ans);
        }
-       TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
-       for(SimTuple x: this) { SimTuple y = x.head(n); if (!ans.contains(y)) ans.add(y); }
-       return new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x.head(n));
+       return make(0, 0, false, ans);
     }
 
     /** Return the tupleset where each tuple is truncated to the last N atoms; if n is zero or negative, we return the emptyset; if n >= this.arity, we return this as is. */
     public SimTupleset tail(int n) {
        if (n<=0 || empty()) return EMPTY; else if (arity() <= n) return this;
        if (min<max) { // if we get here, than arity must be 2, and n must be 1.
-          TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
+          LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
           for(SimTuple x: tuples) {
              Integer a = x.tail().toInt(null);
              if (a!=null && a>min && a<=max) continue;
-             SimTuple y = SimTuple.make(x.tail());
-             if (!ans.contains(y)) ans.add(y);
+             ans.add(SimTuple.make(x.tail()));
           }
-          return new SimTupleset(ans.makeConst(), min+1, max, false);
+          return make(min+1, max, false, ans);
        }
-       TempList<SimTuple> ans = new TempList<SimTuple>(tuples.size());
-       for(SimTuple x: this) { SimTuple y = x.tail(n); if (!ans.contains(y)) ans.add(y); }
-       return new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x.tail(n));
+       return make(0, 0, false, ans);
     }
 
     /** Returns a read-only iterator over the tuples. */
@@ -285,16 +314,6 @@ public final class SimTupleset implements Iterable<SimTuple> {
         return make(list);
     }
 
-    /** Returns the index position if the list of tuples contains the tuple (a,b) (or return -1 if not found). */
-    private static int find(TempList<SimTuple> tuples, SimAtom a, SimAtom b) {
-       if (tuples.size() == 0 || tuples.get(0).arity() != 2) return -1;
-       for(int i=tuples.size()-1; i >= 0; i--) {
-          SimTuple x = tuples.get(i);
-          if (x.head()==a && x.tail()==b) return i;
-       }
-       return -1;
-    }
-
     /** {@inheritDoc} */
     @Override public String toString() {
        StringBuilder sb = null;
@@ -444,12 +463,24 @@ public final class SimTupleset implements Iterable<SimTuple> {
     public SimTupleset join(SimTupleset that) throws ErrorType {
        if (empty() || that.empty()) return EMPTY;
        if (arity()==1 && that.arity()==1) throw new ErrorType("Cannot join two unary relations.");
-       TempList<SimTuple> ans = new TempList<SimTuple>();
-       for(SimTuple a: this) for(SimTuple b: that) if (a.tail()==b.head()) {
-          SimTuple c = a.join(b);
-          if (!ans.contains(c)) ans.add(c);
+       // Group the tuples of "that" by their first atom, so each tuple in "this" only visits the tuples it actually joins with;
+       // the grouping is kept, since the same relation is often joined many times (such as "x.f" for each x in a quantifier)
+       IdentityHashMap<SimAtom,List<SimTuple>> heads = that.heads;
+       if (heads==null) {
+          heads = new IdentityHashMap<SimAtom,List<SimTuple>>();
+          for(SimTuple b: that) {
+             List<SimTuple> list = heads.get(b.head());
+             if (list==null) { list = new ArrayList<SimTuple>(2); heads.put(b.head(), list); }
+             list.add(b);
+          }
+          that.heads = heads;
        }
-       return ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst());
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple a: this) {
+          List<SimTuple> list = heads.get(a.tail());
+          if (list!=null) for(SimTuple b: list) ans.add(a.join(b));
+       }
+       return make(0, 0, false, ans);
     }
 
     /** Return the intersection of this and that. */
@@ -486,24 +517,37 @@ public final class SimTupleset implements Iterable<SimTuple> {
        return ans.size()==this.longsize() ? this : (ans.size()==0 ? EMPTY : new SimTupleset(ans.makeConst()));
     }
 
-    /** Returns the closure of this tupleset (NOTE: if this.arity!=2, we will return an empty set) */
+    /** Returns the closure of this tupleset (NOTE: if this.arity!=2, we will return an empty set)
+     * <br/> Note: the result begins with the tuples in "this" in original order, followed by the newly derived tuples.
+     */
     public SimTupleset closure() {
        if (arity()!=2) return EMPTY;
-       TempList<SimTuple> ar = new TempList<SimTuple>(size());
-       ar.addAll(this);
-       while(true) {
-          int n = ar.size();
-          for(int i=0; i<n; i++) {
-             SimTuple left = ar.get(i);
-             if (left.head()==left.tail()) continue;      // whatever "right" is, "left.right" won't add any new tuple to the final answer
-             for(int j=0; j<n; j++) if (i!=j) {           // whatever "left" is,  "left.left"  won't add any new tuple to the final answer
-                SimTuple right = ar.get(j);
-                if (right.head()==right.tail()) continue; // whatever "left" is,  "left.right" won't add any new tuple to the final answer
-                if (left.tail()==right.head() && find(ar, left.head(), right.tail())<0) ar.add(SimTuple.make(left.head(), right.tail()));
-             }
+       // Build the adjacency lists, then do one depth-first search from each atom that has a successor;
+       // this takes O(V*(V+E)) time rather than repeatedly joining every pair of tuples until nothing changes
+       IdentityHashMap<SimAtom,List<SimAtom>> next = new IdentityHashMap<SimAtom,List<SimAtom>>();
+       List<SimAtom> heads = new ArrayList<SimAtom>(); // in order of first appearance, so that the result is deterministic
+       for(SimTuple x: this) {
+          List<SimAtom> list = next.get(x.head());
+          if (list==null) { list = new ArrayList<SimAtom>(2); next.put(x.head(), list); heads.add(x.head()); }
+          list.add(x.tail());
+       }
+       LinkedHashSet<SimTuple> ans = new LinkedHashSet<SimTuple>();
+       for(SimTuple x: this) ans.add(x);
+       long size = ans.size();
+       IdentityHashMap<SimAtom,Boolean> seen = new IdentityHashMap<SimAtom,Boolean>();
+       List<SimAtom> todo = new ArrayList<SimAtom>();
+       for(SimAtom a: heads) {
+          seen.clear();
+          todo.addAll(next.get(a));
+          while(todo.size()>0) {
+             SimAtom b = todo.remove(todo.size()-1);
+             if (seen.put(b, Boolean.TRUE)!=null) continue;
+             ans.add(SimTuple.make(a, b));
+             List<SimAtom> list = next.get(b);
+             if (list!=null) todo.addAll(list);
           }
-          if (n == ar.size()) return ar.size()==longsize() ? this : new SimTupleset(ar.makeConst()); // if we went through the loop without making any change, we're done
        }
+       return ans.size()==size ? this : make(0, 0, false, ans);
     }
 
     /** Return the set of tuples which begins with the given tuple (where we remove the "matching leading part") */
@@ -0,0 +1,113 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4compiler.sim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import edu.mit.csail.sdg.alloy4.Err;
+
+/** This class measures how long the SimTupleset operators take on random relations.
+ *
+ * <p> The optional arguments are the number of tuples in each binary relation (by default 3000), the number of atoms
+ * they range over (by default 1000), and the number of rounds (by default 8). We make two random binary relations r and s
+ * (with a fixed seed, so every run uses the same relations), a unary set u that has a tenth of the atoms, and a sparser relation c
+ * over a tenth of the atoms (whose closure is not the complete relation). Then each round computes r.s, u->u, ^c, r++s, r&amp;s, r+s and r-s
+ * 20 times each, and prints the average time of each operator.
+ * The first few rounds include the time for the JIT compiler to warm up, so only the later rounds should be compared.
+ *
+ * <p> Before each call, the operands are made again from their lists of tuples (outside the timed part), so the time includes
+ * any index that an operator builds on its operands. Only the public API of SimTupleset is used, so this class can also be
+ * compiled against older versions of SimTupleset to compare them.
+ */
+
+public final class SimTuplesetBenchmark {
+
+    /** The number of times each round calls each operator. */
+    private static final int PASSES = 20;
+
+    /** The operators that we measure. */
+    private static final String[] OPS = {"r.s", "u->u", "^c", "r++s", "r&s", "r+s", "r-s"};
+
+    /** The constructor is private, since main() is the only way to use this class. */
+    private SimTuplesetBenchmark() { }
+
+    /** Returns a list of n distinct random binary tuples over the given atoms. */
+    private static List<SimTuple> random(Random random, SimAtom[] atoms, int n) {
+        Set<SimTuple> ans = new LinkedHashSet<SimTuple>();
+        n = (int) Math.min(n, (long)atoms.length * atoms.length);
+        while(ans.size() < n) ans.add(SimTuple.make(atoms[random.nextInt(atoms.length)], atoms[random.nextInt(atoms.length)]));
+        return new ArrayList<SimTuple>(ans);
+    }
+
+    /** Returns fresh copies of the operands of the given operator (as listed in OPS). */
+    private static SimTupleset[] operands(int op, List<SimTuple> r, List<SimTuple> s, List<SimTuple> u, List<SimTuple> c) {
+        if (op==1) return new SimTupleset[]{SimTupleset.make(u), SimTupleset.make(u)};
+        if (op==2) return new SimTupleset[]{SimTupleset.make(c)};
+        return new SimTupleset[]{SimTupleset.make(r), SimTupleset.make(s)};
+    }
+
+    /** Computes the given operator (as listed in OPS) on the given operands. */
+    private static SimTupleset compute(int op, SimTupleset[] x) throws Err {
+        switch(op) {
+           case 0: return x[0].join(x[1]);
+           case 1: return x[0].product(x[1]);
+           case 2: return x[0].closure();
+           case 3: return x[0].override(x[1]);
+           case 4: return x[0].intersect(x[1]);
+           case 5: return x[0].union(x[1]);
+           default: return x[0].difference(x[1]);
+        }
+    }
+
+    /** Main method that runs the benchmark. */
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length>0 ? Integer.parseInt(args[0]) : 3000;
+        int n = args.length>1 ? Integer.parseInt(args[1]) : 1000;
+        int rounds = args.length>2 ? Integer.parseInt(args[2]) : 8;
+        SimAtom[] atoms = new SimAtom[n], few = new SimAtom[Math.max(1, n/10)];
+        for(int i=0; i<n; i++) atoms[i] = SimAtom.make("A$" + i);
+        for(int i=0; i<few.length; i++) few[i] = atoms[i];
+        Random random = new Random(0);
+        List<SimTuple> r = random(random, atoms, tuples), s = random(random, atoms, tuples), c = random(random, few, few.length), u = new ArrayList<SimTuple>();
+        for(SimAtom a: few) u.add(SimTuple.make(a));
+        // Print the size of every result and the hash code of its text, so that two versions of SimTupleset can be checked to give the same tuples in the same order
+        StringBuilder sb = new StringBuilder("Results:");
+        for(int op=0; op<OPS.length; op++) {
+            SimTupleset x = compute(op, operands(op, r, s, u, c));
+            sb.append(String.format(" %s=%d#%08x", OPS[op], x.size(), x.toString().hashCode()));
+        }
+        System.out.println(sb);
+        for(int round=1; round<=rounds; round++) {
+            sb.setLength(0);
+            sb.append("Round ").append(round).append(':');
+            for(int op=0; op<OPS.length; op++) {
+                long time = 0;
+                for(int pass=0; pass<PASSES; pass++) {
+                    SimTupleset[] x = operands(op, r, s, u, c);
+                    long start = System.nanoTime();
+                    compute(op, x);
+                    time += System.nanoTime() - start;
+                }
+                sb.append(String.format(" %s %.2fms", OPS[op], time / 1e6 / PASSES));
+            }
+            System.out.println(sb);
+        }
+    }
+}
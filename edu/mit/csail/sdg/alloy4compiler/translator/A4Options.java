@@ -78,6 +78,8 @@ public final class A4Options implements Serializable {
         }
         /** Returns the unique String for this value; it will be kept consistent in future versions. */
         public String id() { return id; }
+        /** Returns true if the Portfolio solver can race this solver against SAT4J on this platform (given the directory of the solver executables). */
+        public boolean raceable(String solverDirectory) { return PortfolioSolver.raceable(this, solverDirectory); }
         /** Returns the list of SatSolver values. */
         public static SafeList<SatSolver> values() {
             SafeList<SatSolver> ans;
@@ -115,6 +117,8 @@ public final class A4Options implements Serializable {
         public static final SatSolver ZChaffJNI = new SatSolver("zchaff(jni)", "ZChaff", null, null, true);
         /** SAT4J using native Java */
         public static final SatSolver SAT4J = new SatSolver("sat4j", "SAT4J", null, null, true);
+        /** Races SAT4J, MiniSat and the command-line solvers, and uses whichever answers first */
+        public static final SatSolver Portfolio = new SatSolver("portfolio", "Portfolio (fastest of all solvers)", null, null, true);
         /** Outputs the raw CNF file only */
         public static final SatSolver CNF = new SatSolver("cnf", "Output CNF to file", null, null, true);
         /** Outputs the raw Kodkod file only */
@@ -188,6 +192,15 @@ public final class A4Options implements Serializable {
     // [HASLab]
 	public int maxTraceLength;
 
+    /** This option specifies whether the checks that share the same scope should be solved together,
+     * using one CNF for all of them and a distinct assumption literal for each check (only with SAT4J).
+     * <p> The run commands are still solved one at a time. The batched checks are translated without running
+     * the Simplifier, an unsatisfiable batched check has no unsat core, and a check that has a counterexample
+     * is solved again on its own (so that its counterexample can be shown).
+     * <p> Default value is false.
+     */
+    public boolean solveTogether = false;
+
     /** This method makes a copy of this Options object. */
     public A4Options dup() {
         A4Options x = new A4Options();
@@ -203,6 +216,7 @@ public final class A4Options implements Serializable {
         x.noOverflow = noOverflow;
         x.coreGranularity = coreGranularity;
         x.maxTraceLength = maxTraceLength; // [HASLab]
+        x.solveTogether = solveTogether;
         return x;
     }
 }
@@ -31,6 +31,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -54,14 +55,18 @@ import kodkod.engine.CapacityExceededException;
 import kodkod.engine.Evaluator;
 import kodkod.engine.Proof;
 import kodkod.engine.Solution;
+import kodkod.engine.Statistics;
 import kodkod.engine.TemporalKodkodSolver;
 import kodkod.engine.config.AbstractReporter;
 import kodkod.engine.config.BoundedExtendedOptions;
 import kodkod.engine.config.Options;
 import kodkod.engine.config.Reporter;
+import kodkod.engine.fol2sat.Translation;
 import kodkod.engine.fol2sat.TranslationRecord;
 import kodkod.engine.fol2sat.Translator;
+import kodkod.engine.ltl2fol.TemporalTranslator;
 import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
 import kodkod.engine.ucore.HybridStrategy;
 import kodkod.engine.ucore.RCEStrategy;
 import kodkod.instance.Bounds;
@@ -73,6 +78,10 @@ import kodkod.instance.TupleFactory;
 import kodkod.instance.TupleSet;
 import kodkod.instance.Universe;
 import kodkod.util.ints.IndexedEntry;
+import kodkod.util.ints.ArrayIntVector;
+import kodkod.util.ints.IntSet;
+import kodkod.util.ints.IntVector;
+import kodkod.util.collections.IdentityHashSet;
 import edu.mit.csail.sdg.alloy4.A4Reporter;
 import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.ConstMap;
@@ -81,6 +90,7 @@ import edu.mit.csail.sdg.alloy4.ErrorAPI;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.Pair;
+import edu.mit.csail.sdg.alloy4.PhaseTimer;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.SafeList;
 import edu.mit.csail.sdg.alloy4.UniqueNameGenerator;
@@ -190,6 +200,12 @@ public final class A4Solution {
 	/** If solved==true and is satisfiable, then this maps each Kodkod atom to its most specific sig. */
 	private Map<Object,PrimSig> atom2sig = new LinkedHashMap<Object,PrimSig>();
 
+	/** If nonnull, this caches the short name of each atom in the Kodkod universe (indexed by its position in the universe) as computed from atomNamesFrom. */
+	private String[] atomNames = null;
+
+	/** The atom2name map that atomNames was computed from (so that we recompute it if the atoms are renamed). */
+	private Map<Object,String> atomNamesFrom = null;
+
 	/** If solved==true and is satisfiable, then this is the Kodkod evaluator. */
 	private Evaluator eval = null;
 
@@ -293,10 +309,18 @@ public final class A4Solution {
 		this.s2k = ConstMap.make(s2k);
 		this.stringBounds = stringBounds.unmodifiableView();
 		bounds.boundExactly(KK_STRING, this.stringBounds);
-		int sym = (expected==1 ? 0 : opt.symmetry);
+		solver = makeSolver(opt, expected, bitwidth, kAtoms.size());
+	}
 
+	/** Construct the Kodkod solver for the given options.
+	 * @param expected - whether the user expected an instance or not (1 means yes, 0 means no, -1 means the user did not express an expectation)
+	 * @param atomCount - the number of atoms in the universe (used to pick a bitwidth if the bitwidth is 0)
+	 */
+	// [HASLab] temporal solver
+	private static TemporalKodkodSolver makeSolver(A4Options opt, int expected, int bitwidth, int atomCount) throws Err {
+		int sym = (expected==1 ? 0 : opt.symmetry);
 		BoundedExtendedOptions varOptions = new BoundedExtendedOptions(); // [HASLab] extended options
-		solver = new TemporalKodkodSolver(varOptions); // [HASLab] temporal solver
+		TemporalKodkodSolver solver = new TemporalKodkodSolver(varOptions); // [HASLab] temporal solver
 		solver.options().setNoOverflow(opt.noOverflow);
 		solver.options().setMaxTraceLength(opt.maxTraceLength); // [HASLab] propagate options
 //		solver.options().setFlatten(false); // added for now, since multiplication and division circuit takes forever to flatten // [HASLab] kodkod 2.0+
@@ -320,12 +344,47 @@ public final class A4Solution {
 			solver.options().setLogTranslation(2);
 			solver.options().setCoreGranularity(opt.coreGranularity);
 		} else {
-			solver.options().setSolver(SATFactory.DefaultSAT4J); // Even for "KK" and "CNF", we choose SAT4J here; later, just before solving, we'll change it to a Write2CNF solver
+			solver.options().setSolver(SATFactory.DefaultSAT4J); // Even for "KK", "CNF" and "Portfolio", we choose SAT4J here; later, just before solving, we'll change it to a Write2CNF or a Portfolio solver
 		}
 		solver.options().setSymmetryBreaking(sym);
 		solver.options().setSkolemDepth(opt.skolemDepth);
-		solver.options().setBitwidth(bitwidth > 0 ? bitwidth : (int) Math.ceil(Math.log(atoms.size())) + 1);
+		solver.options().setBitwidth(bitwidth > 0 ? bitwidth : (int) Math.ceil(Math.log(atomCount)) + 1);
 		solver.options().setIntEncoding(Options.IntEncoding.TWOSCOMPLEMENT);
+		return solver;
+	}
+
+	/** Construct a blank A4Solution with the same universe, sigs, fields, bounds and formulas as the given template,
+	 * but that will be solved for the given command using the given options.
+	 * <br> The template must not be solved, and it is not modified; so several solutions can be forked from the same template.
+	 * @param originalCommand  - the original Alloy command that generated this solution; can be "" if unknown
+	 * @param opt - the Alloy options that will affect the solution and the solver
+	 * @param expected - whether the user expected an instance or not (1 means yes, 0 means no, -1 means the user did not express an expectation)
+	 */
+	A4Solution(A4Solution template, String originalCommand, A4Options opt, int expected) throws Err {
+		if (template.solved) throw new ErrorAPI("This solution is already solved, so it cannot be forked.");
+		opt = opt.dup();
+		this.canAddSkolems = true; // [HASLab] pessoa
+		this.temporalAtoms = new GatherTemporalAtoms(); // [HASLab] pessoa
+		this.type = WritingType.evalToSingleState; // [HASLab] pessoa
+		this.unrolls = template.unrolls;
+		this.sigs = new SafeList<Sig>(template.sigs);
+		this.a2k = new LinkedHashMap<Expr,Expression>(template.a2k);
+		this.k2pos = new LinkedHashMap<Formula,Object>(template.k2pos);
+		this.rel2type = new LinkedHashMap<Relation,Type>(template.rel2type);
+		this.decl2type = new LinkedHashMap<Variable,Pair<Type,Pos>>(template.decl2type);
+		this.originalOptions = opt;
+		this.originalCommand = (originalCommand==null ? "" : originalCommand);
+		this.bitwidth = template.bitwidth;
+		this.maxseq = template.maxseq;
+		this.kAtoms = template.kAtoms;
+		this.factory = template.factory;
+		this.sigintBounds = template.sigintBounds;
+		this.seqidxBounds = template.seqidxBounds;
+		this.stringBounds = template.stringBounds;
+		this.s2k = template.s2k;
+		this.bounds = template.bounds.clone();
+		this.formulas = new ArrayList<Formula>(template.formulas);
+		this.solver = makeSolver(opt, expected, bitwidth, kAtoms.size());
 	}
 
 	/** Construct a new A4Solution that is the continuation of the old one, but with the "next" instance. */
@@ -348,6 +407,7 @@ public final class A4Solution {
 		seqidxBounds = old.seqidxBounds;
 		stringBounds = old.stringBounds;
 		solver = old.solver;
+		reporter = old.reporter;
 		bounds = old.bounds;
 		formulas = old.formulas;
 		sigs = old.sigs;
@@ -452,6 +512,7 @@ public final class A4Solution {
 	 */
 	Relation addRel(String label, TupleSet lower, TupleSet upper, Expr expr) throws ErrorFatal {
 		if (solved) throw new ErrorFatal("Cannot add a Kodkod relation since solve() has completed.");
+		if (recording!=null) recording.valid = false;
 		Relation rel;
 		if (expr instanceof  Field){
 			if (((Field) expr).isVariable != null){rel = VarRelation.nary(label, upper.arity());} // [HASLab]
@@ -483,6 +544,7 @@ public final class A4Solution {
 		if (solved) throw new ErrorFatal("Cannot add an additional sig since solve() has completed.");
 		if (expr.arity()!=1) throw new ErrorFatal("Sig "+s+" must be associated with a unary relational value.");
 		if (a2k.containsKey(s)) return;
+		if (recording!=null) recording.valid = false;
 		a2k.put(s, expr);
 		sigs.add(s);
 		if (s.isTopLevel()) a2k.put(UNIV, a2k.get(UNIV).union(expr));
@@ -496,6 +558,7 @@ public final class A4Solution {
 		if (solved) throw new ErrorFatal("Cannot add an additional field since solve() has completed.");
 		if (expr.arity()!=f.type().arity()) throw new ErrorFatal("Field "+f+" must be associated with an "+f.type().arity()+"-ary relational value.");
 		if (a2k.containsKey(f)) return;
+		if (recording!=null) recording.valid = false;
 		a2k.put(f, expr);
 	}
 
@@ -622,6 +685,18 @@ public final class A4Solution {
 	/** Returns the short unique name corresponding to the given atom if the problem is solved and is satisfiable; else returns atom.toString(). */
 	String atom2name(Object atom) { String ans=atom2name.get(atom); return ans==null ? atom.toString() : ans; }
 
+	/** Returns the short unique name of each atom in the Kodkod universe, indexed by its position in the universe; the caller must not modify the array. */
+	synchronized String[] atomNames() {
+		if (atomNames==null || atomNamesFrom!=atom2name) {
+			Universe universe = factory.universe();
+			String[] ans = new String[universe.size()];
+			for(int i=0; i<ans.length; i++) ans[i] = atom2name(universe.atom(i));
+			atomNames = ans;
+			atomNamesFrom = atom2name;
+		}
+		return atomNames;
+	}
+
 	/** Returns the most specific sig corresponding to the given atom if the problem is solved and is satisfiable; else returns UNIV. */
 	PrimSig atom2sig(Object atom) { PrimSig sig=atom2sig.get(atom); return sig==null ? UNIV : sig; }
 
@@ -696,9 +771,9 @@ public final class A4Solution {
 			if (expr.ambiguous && !expr.errors.isEmpty()) expr = expr.resolve(expr.type(), null);
 			if (!expr.errors.isEmpty()) throw expr.errors.pick();
 			Object result = TranslateAlloyToKodkod.alloy2kodkod(this, expr);
-			if (result instanceof IntExpression) return eval.evaluate((IntExpression)result) + (eval.wasOverflow() ? " (OF)" : "");
+			if (result instanceof IntExpression) return eval.evaluate((IntExpression)result, state) + (eval.wasOverflow() ? " (OF)" : "");
 			if (result instanceof Formula) return eval.evaluate((Formula)result);
-			if (result instanceof Expression) return new A4TupleSet(eval.evaluate((Expression)result), this);
+			if (result instanceof Expression) return new A4TupleSet(eval.evaluate((Expression)result, state), this);
 			throw new ErrorFatal("Unknown internal error encountered in the evaluator.");
 		} catch(CapacityExceededException ex) {
 			throw TranslateAlloyToKodkod.rethrow(ex);
@@ -722,6 +797,7 @@ public final class A4Solution {
 		if (solved) throw new ErrorFatal("Cannot alter the k->pos mapping since solve() has completed.");
 		if (formula==null || expr==null || k2pos.containsKey(formula)) return formula;
 		k2pos.put(formula, expr);
+		if (recording!=null) recording.k2pos.add(new Pair<Formula,Object>(formula, expr));
 		if (formula instanceof BinaryFormula) {
 			BinaryFormula b = (BinaryFormula)formula;
 			if (b.op() == FormulaOperator.AND) { k2pos(b.left(), expr); k2pos(b.right(), expr); }
@@ -734,6 +810,7 @@ public final class A4Solution {
 		if (solved) throw new ErrorFatal("Cannot alter the k->pos mapping since solve() has completed.");
 		if (formula==null || pos==null || pos==Pos.UNKNOWN || k2pos.containsKey(formula)) return formula;
 		k2pos.put(formula, pos);
+		if (recording!=null) recording.k2pos.add(new Pair<Formula,Object>(formula, pos));
 		if (formula instanceof BinaryFormula) {
 			BinaryFormula b = (BinaryFormula)formula;
 			if (b.op() == FormulaOperator.AND) { k2pos(b.left(), pos); k2pos(b.right(), pos); }
@@ -746,7 +823,9 @@ public final class A4Solution {
 	/** Associates the Kodkod relation to a particular Alloy Type (if it is not already associated with something) */
 	void kr2type(Relation relation, Type newType) throws Err {
 		if (solved) throw new ErrorFatal("Cannot alter the k->type mapping since solve() has completed.");
-		if (!rel2type.containsKey(relation)) rel2type.put(relation, newType);
+		if (rel2type.containsKey(relation)) return;
+		if (recording!=null) recording.valid = false;
+		rel2type.put(relation, newType);
 	}
 
 	/** Remove all mapping from Kodkod relation to Alloy Type. */
@@ -773,7 +852,10 @@ public final class A4Solution {
 		if (solved) throw new ErrorFatal("Cannot alter the k->type mapping since solve() has completed.");
 		if (type==null) type=Type.EMPTY;
 		if (pos==null) pos=Pos.UNKNOWN;
-		if (!decl2type.containsKey(var)) decl2type.put(var, new Pair<Type,Pos>(type, pos));
+		if (decl2type.containsKey(var)) return;
+		Pair<Type,Pos> typepos = new Pair<Type,Pos>(type, pos);
+		decl2type.put(var, typepos);
+		if (recording!=null) recording.decl2type.add(new Pair<Variable,Pair<Type,Pos>>(var, typepos));
 	}
 
 	//===================================================================================================//
@@ -781,6 +863,7 @@ public final class A4Solution {
 	/** Add the given formula to the list of Kodkod formulas, and associate it with the given Pos object (pos can be null if unknown). */
 	void addFormula(Formula newFormula, Pos pos) throws Err {
 		if (solved) throw new ErrorFatal("Cannot add an additional formula since solve() has completed.");
+		if (recording!=null) recording.add(newFormula, formulas);
 		if (formulas.size()>0 && formulas.get(0)==Formula.FALSE) return; // If one formula is false, we don't need the others
 		if (newFormula==Formula.FALSE) formulas.clear(); // If one formula is false, we don't need the others
 		formulas.add(newFormula);
@@ -790,12 +873,59 @@ public final class A4Solution {
 	/** Add the given formula to the list of Kodkod formulas, and associate it with the given Expr object (expr can be null if unknown) */
 	void addFormula(Formula newFormula, Expr expr) throws Err {
 		if (solved) throw new ErrorFatal("Cannot add an additional formula since solve() has completed.");
+		if (recording!=null) recording.add(newFormula, formulas);
 		if (formulas.size()>0 && formulas.get(0)==Formula.FALSE) return; // If one formula is false, we don't need the others
 		if (newFormula==Formula.FALSE) formulas.clear(); // If one formula is false, we don't need the others
 		formulas.add(newFormula);
 		if (expr!=null) k2pos(newFormula, expr);
 	}
 
+	/** Mutable until it is returned by stopRecording(), then immutable; the formulas and mappings that a translation added to an A4Solution,
+	 * so that the same translation can be added to another solution forked from the same template without translating it again.
+	 */
+	static final class Delta {
+		/** The formulas that were added, in order. */
+		private final List<Formula> formulas = new ArrayList<Formula>();
+		/** The k2pos entries that were added, in order. */
+		private final List<Pair<Formula,Object>> k2pos = new ArrayList<Pair<Formula,Object>>();
+		/** The decl2type entries that were added, in order. */
+		private final List<Pair<Variable,Pair<Type,Pos>>> decl2type = new ArrayList<Pair<Variable,Pair<Type,Pos>>>();
+		/** False if the translation did something that cannot be replayed (such as adding a relation, or adding the FALSE formula). */
+		private boolean valid = true;
+		/** Record that the given formula is being added to the given list of formulas. */
+		private void add(Formula newFormula, List<Formula> list) {
+			if (newFormula==Formula.FALSE || (list.size()>0 && list.get(0)==Formula.FALSE)) valid = false; else formulas.add(newFormula);
+		}
+	}
+
+	/** If nonnull, then every formula and mapping added to this solution is also recorded here. */
+	private Delta recording = null;
+
+	/** Start recording every formula and mapping added to this solution (see stopRecording()). */
+	void startRecording() throws Err {
+		if (solved) throw new ErrorFatal("Cannot record additional formulas since solve() has completed.");
+		recording = new Delta();
+	}
+
+	/** Stop recording, and return what was added since startRecording() was called;
+	 * returns null if some of it (such as a new relation) cannot be replayed onto another solution.
+	 */
+	Delta stopRecording() {
+		Delta ans = recording;
+		recording = null;
+		return (ans!=null && ans.valid) ? ans : null;
+	}
+
+	/** Add the formulas and mappings recorded in the given Delta, as if the translation that produced it was performed again on this solution.
+	 * <br> This solution and the solution that recorded the Delta must have been forked from the same template.
+	 */
+	void replay(Delta delta) throws Err {
+		if (solved) throw new ErrorFatal("Cannot add an additional formula since solve() has completed.");
+		for(Formula f: delta.formulas) addFormula(f, (Pos)null);
+		for(Pair<Formula,Object> p: delta.k2pos) if (!k2pos.containsKey(p.a)) k2pos.put(p.a, p.b);
+		for(Pair<Variable,Pair<Type,Pos>> p: delta.decl2type) if (!decl2type.containsKey(p.a)) decl2type.put(p.a, p.b);
+	}
+
 	/** Set the back loop instant of this instance.
  		pt.uminho.haslab */
 	void setBackLoop(int backloop) {
@@ -877,58 +1007,10 @@ public final class A4Solution {
 	private static void rename(A4Solution frame, PrimSig s, Map<Sig,List<Tuple>> nexts, UniqueNameGenerator un, int state) throws Err {
 		if (s==null) {
 			for(ExprVar sk:frame.skolems) un.seen(sk.label);
-			// Store up the skolems
-			List<Object> skolems = new ArrayList<Object>();
-			for(Map.Entry<Relation,Type> e: frame.rel2type.entrySet()) {
-				Relation r = e.getKey(); if (!frame.eval.instance().contains(r)) continue;
-				Type t = e.getValue();   if (t.arity() > r.arity()) continue; // Something is wrong; let's skip it
-				while (t.arity() < r.arity()) t = UNIV.type().product(t);
-				String n = Util.tail(r.name());
-				while(n.length()>0 && n.charAt(0)=='$') n = n.substring(1);
-				skolems.add(n);
-				skolems.add(t);
-				skolems.add(r);
-			}
-			// Find all suitable "next" or "prev" relations
-			nexts = new LinkedHashMap<Sig,List<Tuple>>();
-			for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase("next")==0) {
-				List<List<PrimSig>> fold = f.type().fold();
-				if (fold.size()==1) {
-					List<PrimSig> t = fold.get(0);
-					if (t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2) && !nexts.containsKey(t.get(1))) {
-						TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
-						if (set.size()<=1) continue;
-						TupleSet next = frame.eval.evaluate(frame.a2k(t.get(0)).join(frame.a2k(f)));
-						List<Tuple> test = isOrder(next, set);
-						if (test!=null) nexts.put(t.get(1), test);
-					} else if (t.size()==2 && t.get(0)==t.get(1) && !nexts.containsKey(t.get(0))) {
-						TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
-						if (set.size()<=1) continue;
-						TupleSet next = frame.eval.evaluate(frame.a2k(f));
-						List<Tuple> test = isOrder(next, set);
-						if (test!=null) nexts.put(t.get(1), test);
-					}
-				}
-			}
-			for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase("prev")==0) {
-				List<List<PrimSig>> fold = f.type().fold();
-				if (fold.size()==1) {
-					List<PrimSig> t = fold.get(0);
-					if (t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2) && !nexts.containsKey(t.get(1))) {
-						TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
-						if (set.size()<=1) continue;
-						TupleSet next = frame.eval.evaluate(frame.a2k(t.get(0)).join(frame.a2k(f)).transpose());
-						List<Tuple> test = isOrder(next, set);
-						if (test!=null) nexts.put(t.get(1), test);
-					} else if (t.size()==2 && t.get(0)==t.get(1) && !nexts.containsKey(t.get(0))) {
-						TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
-						if (set.size()<=1) continue;
-						TupleSet next = frame.eval.evaluate(frame.a2k(f).transpose());
-						List<Tuple> test = isOrder(next, set);
-						if (test!=null) nexts.put(t.get(1), test);
-					}
-				}
-			}
+			// The skolems and the total orders do not depend on the state, so we only find them the first time this solution is renamed
+			if (frame.renameNexts==null) findSkolemsAndOrders(frame);
+			List<Object> skolems = frame.renameSkolems;
+			nexts = frame.renameNexts;
 			// Assign atom->name and atom->MostSignificantSig
 			for(Tuple t:frame.eval.evaluate(Relation.INTS)) { frame.atom2sig.put(t.atom(0), SIGINT); }
 			for(Tuple t:frame.eval.evaluate(KK_SEQIDX))     { frame.atom2sig.put(t.atom(0), SEQIDX); }
@@ -942,7 +1024,9 @@ public final class A4Solution {
 			}
 			// Add the skolems
 			// [HASLab] pessoa: the skolems are only added in the first renaming of a solution
-			if (frame.canAddSkolems) {
+			// (after solve() has completed, addSkolem() is no longer allowed, so we can only add them when renaming an unsolved solution)
+			if (frame.canAddSkolems && !frame.solved) {
+				frame.canAddSkolems = false;
 				for (int num = skolems.size(), i = 0; i < num - 2; i = i + 3) {
 					String n = (String) skolems.get(i);
 					while (n.length() > 0 && n.charAt(0) == '$') n = n.substring(1);
@@ -963,23 +1047,91 @@ public final class A4Solution {
 		for(Tuple t: list) {
 			if (frame.atom2sig.containsKey(t.atom(0))) continue; // This means one of the subsig has already claimed this atom.
 			// [HASLab] pessoa: the atom has the index from the universe
-			String x =  frame.getAtomIdFromUniverse(signame, (String) t.atom(0));
+			String x =  frame.getAtomIdFromUniverse(signame, t.atom(0));
 			frame.atom2sig.put(t.atom(0), s);
 			frame.atom2name.put(t.atom(0), x);
-			ExprVar v = ExprVar.make(null, x, s.type());
-			TupleSet ts = t.universe().factory().range(t, t);
-			Relation r = Relation.unary(x);
-			frame.eval.instance().add(r, ts);
-			frame.a2k.put(v, r);
-			frame.atoms.add(v);
+			// The same atom gets the same name in every state where it belongs to the same sig, so we reuse its ExprVar and Relation
+			Pair<ExprVar,Relation> var = frame.atomVars.get(x);
+			if (var==null) {
+				var = new Pair<ExprVar,Relation>(ExprVar.make(null, x, s.type()), Relation.unary(x));
+				frame.atomVars.put(x, var);
+			}
+			if (!frame.eval.instance().contains(var.b)) frame.eval.instance().add(var.b, t.universe().factory().range(t, t));
+			frame.a2k.put(var.a, var.b);
+			frame.atoms.add(var.a);
 			// [HASLab] pessoa: in this map we adding as the renaming evolves in time the map between a alloy expression and a kk expression
-			frame.temporaryA2k.put(v, r);
+			frame.temporaryA2k.put(var.a, var.b);
+		}
+	}
+
+	/** Helper method that finds the skolems and the total orders (the "next" and "prev" fields that order a sig) of the given solution;
+	 * they do not depend on the state, so rename() only calls this the first time a solution is renamed.
+	 */
+	private static void findSkolemsAndOrders(A4Solution frame) throws Err {
+		// Store up the skolems
+		List<Object> skolems = new ArrayList<Object>();
+		for(Map.Entry<Relation,Type> e: frame.rel2type.entrySet()) {
+			Relation r = e.getKey(); if (!frame.eval.instance().contains(r)) continue;
+			Type t = e.getValue();   if (t.arity() > r.arity()) continue; // Something is wrong; let's skip it
+			while (t.arity() < r.arity()) t = UNIV.type().product(t);
+			String n = Util.tail(r.name());
+			while(n.length()>0 && n.charAt(0)=='$') n = n.substring(1);
+			skolems.add(n);
+			skolems.add(t);
+			skolems.add(r);
+		}
+		// Find all suitable "next" or "prev" relations
+		Map<Sig,List<Tuple>> nexts = new LinkedHashMap<Sig,List<Tuple>>();
+		for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase("next")==0) {
+			List<List<PrimSig>> fold = f.type().fold();
+			if (fold.size()==1) {
+				List<PrimSig> t = fold.get(0);
+				if (t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2) && !nexts.containsKey(t.get(1))) {
+					TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
+					if (set.size()<=1) continue;
+					TupleSet next = frame.eval.evaluate(frame.a2k(t.get(0)).join(frame.a2k(f)));
+					List<Tuple> test = isOrder(next, set);
+					if (test!=null) nexts.put(t.get(1), test);
+				} else if (t.size()==2 && t.get(0)==t.get(1) && !nexts.containsKey(t.get(0))) {
+					TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
+					if (set.size()<=1) continue;
+					TupleSet next = frame.eval.evaluate(frame.a2k(f));
+					List<Tuple> test = isOrder(next, set);
+					if (test!=null) nexts.put(t.get(1), test);
+				}
+			}
+		}
+		for(Sig sig:frame.sigs) for(Field f: sig.getFields()) if (f.label.compareToIgnoreCase("prev")==0) {
+			List<List<PrimSig>> fold = f.type().fold();
+			if (fold.size()==1) {
+				List<PrimSig> t = fold.get(0);
+				if (t.size()==3 && t.get(0).isOne!=null && t.get(1)==t.get(2) && !nexts.containsKey(t.get(1))) {
+					TupleSet set = frame.eval.evaluate(frame.a2k(t.get(1)));
+					if (set.size()<=1) continue;
+					TupleSet next = frame.eval.evaluate(frame.a2k(t.get(0)).join(frame.a2k(f)).transpose());
+					List<Tuple> test = isOrder(next, set);
+					if (test!=null) nexts.put(t.get(1), test);
+				} else if (t.size()==2 && t.get(0)==t.get(1) && !nexts.containsKey(t.get(0))) {
+					TupleSet set = frame.eval.evaluate(frame.a2k(t.get(0)));
+					if (set.size()<=1) continue;
+					TupleSet next = frame.eval.evaluate(frame.a2k(f).transpose());
+					List<Tuple> test = isOrder(next, set);
+					if (test!=null) nexts.put(t.get(1), test);
+				}
+			}
 		}
+		frame.renameSkolems = skolems;
+		frame.renameNexts = nexts;
 	}
 
 	// [HASLab] pessoa: this function returns a atom with the index equals to the index position that such atom appears on the universe
-	private String getAtomIdFromUniverse(String atom,String s){
-		return atom+"$"+this.universeList.indexOf(s);
+	private String getAtomIdFromUniverse(String atom,Object s){
+		if (atomIndex==null) {
+			atomIndex = new HashMap<Object,Integer>();
+			for(int i=universeList.size()-1; i>=0; i--) atomIndex.put(universeList.get(i), i);
+		}
+		Integer i = atomIndex.get(s);
+		return atom+"$"+(i==null ? -1 : i.intValue());
 	}
 
 	//===================================================================================================//
@@ -1005,8 +1157,12 @@ public final class A4Solution {
 		// Otherwise, prepare to do the solve...
 		final A4Options opt = originalOptions;
 		long time = System.currentTimeMillis();
+		reporter = rep;
 		rep.debug("Simplifying the bounds...\n");
+		PhaseTimer timer = PhaseTimer.start();
+		rep.count("formulas", formulas.size());
 		if (simp!=null && formulas.size()>0 && !simp.simplify(rep, this, formulas)) addFormula(Formula.FALSE, Pos.UNKNOWN);
+		timer.stop(rep, "simplify");
 		rep.translate(opt.solver.id(), bitwidth, maxseq, solver.options().skolemDepth(), solver.options().symmetryBreaking());
 		Formula fgoal = Formula.and(formulas);
 		rep.debug("Generating the solution...\n");
@@ -1048,6 +1204,7 @@ public final class A4Solution {
 			rep.resultCNF(out);
 			return null;
 		}
+		if (opt.solver.equals(SatSolver.Portfolio)) solver.options().setSolver(PortfolioSolver.factory(rep, opt));
 		if (opt.solver.equals(SatSolver.CNF)) {
 			File tmpCNF = File.createTempFile("tmp", ".cnf", new File(opt.tempDirectory));
 			String out = tmpCNF.getAbsolutePath();
@@ -1063,11 +1220,17 @@ public final class A4Solution {
 //			if (sol==null) sol = solver.solve(fgoal, bounds);
 //		} else { // [HASLab] kodkod 2.0+
 
-		rep.debug("eff: "+fgoal.toString());
-		rep.debug("eff: "+bounds.toString());
-		rep.debug("eff: "+solver.options().toString());
+		rep.debug("eff: ", fgoal);
+		rep.debug("eff: ", bounds);
+		rep.debug("eff: ", solver.options());
 		kEnumerator = new Peeker<Solution>(solver.solveAll(fgoal, bounds));
 		if (sol==null) sol = kEnumerator.next();
+		// Kodkod only reports the wall-clock time (in milliseconds) of the CNF generation and of the SAT solving
+		Statistics stats = sol.stats();
+		if (stats!=null) {
+			rep.phase("translate", stats.translationTime()*1000000L, -1, -1);
+			rep.phase("solve", stats.solvingTime()*1000000L, -1, -1);
+		}
 
 //		}
 		if (!solved[0]) rep.solve(0, 0, 0);
@@ -1118,15 +1281,147 @@ public final class A4Solution {
 		return this;
 	}
 
+	/** Solve the given unsolved frames together, then return an array where ans[i] is true iff the i-th frame is unsatisfiable.
+	 * <p> Every frame must be forked from the same template with the same symmetry breaking.
+	 * The formulas that they all share are translated once; the remaining formulas of the i-th frame are guarded by a fresh unary relation G_i,
+	 * so only one CNF is generated for each trace length, and then it is solved once per frame under the assumption that G_i is nonempty.
+	 * <p> The frames are not modified, so a frame that is not proved unsatisfiable should still be solved normally (to get its instance, skolems, core...)
+	 * <p> If the SAT solver is stopped before it could finish, then no frame is deemed unsatisfiable.
+	 */
+	static boolean[] solveTogether(A4Reporter rep, List<A4Solution> frames) throws Err {
+		final int n = frames.size();
+		final boolean[] unsat = new boolean[n];
+		if (n==0) return unsat;
+		final A4Solution first = frames.get(0);
+		if (first.originalOptions.maxTraceLength<1) return unsat;
+		// Find the formulas that every frame shares: since the names of the quantified variables in a fact may depend on the command's label,
+		// two formulas are deemed the same if they are the same object, or if they are both the translation of the same Alloy conjunct
+		final List<Map<Object,List<Formula>>> keys = new ArrayList<Map<Object,List<Formula>>>(n);
+		for(A4Solution x: frames) {
+			if (x.solved) throw new ErrorAPI("This solution is already solved.");
+			Map<Object,List<Formula>> map = new IdentityHashMap<Object,List<Formula>>();
+			for(Formula f: x.formulas) {
+				Object key = x.conjunct(f);
+				List<Formula> list = map.get(key);
+				if (list==null) map.put(key, list = new ArrayList<Formula>(1));
+				list.add(f);
+			}
+			keys.add(map);
+		}
+		final Set<Object> shared = new IdentityHashSet<Object>();
+		again:
+		for(Map.Entry<Object,List<Formula>> e: keys.get(0).entrySet()) {
+			for(Map<Object,List<Formula>> map: keys) if (map.get(e.getKey())==null || map.get(e.getKey()).size()!=e.getValue().size()) continue again;
+			shared.add(e.getKey());
+		}
+		TemporalBounds bounds = first.bounds.clone();
+		for(A4Solution x: frames) for(Relation r: x.bounds.relations()) {
+			if (!bounds.relations().contains(r)) bounds.bound(r, x.bounds.lowerBound(r), x.bounds.upperBound(r)); // the skolems of each command
+		}
+		List<Formula> fgoal = new ArrayList<Formula>();
+		for(Formula f: first.formulas) if (shared.contains(first.conjunct(f))) fgoal.add(f);
+		for(Relation r: bounds.relations()) { fgoal.add(r.eq(r)); } // Without this, kodkod refuses to grow unmentioned relations
+		TemporalKodkodSolver solver = makeSolver(first.originalOptions, -1, first.bitwidth, first.kAtoms.size());
+		BoundedExtendedOptions options = solver.options();
+		options.setSymmetryBreaking(first.solver.options().symmetryBreaking());
+		options.setSolver(IncrementalSAT4J.FACTORY);
+		// Each integer atom is already bounded exactly by its own relation, so using one of them as the guard's atom does not weaken symmetry breaking
+		TupleSet guardAtom = first.factory.setOf(first.min()<=first.max() ? (""+first.min()) : first.kAtoms.get(0));
+		Relation[] guards = new Relation[n];
+		for(int i=0; i<n; i++) {
+			A4Solution x = frames.get(i);
+			guards[i] = Relation.unary("$guard" + i);
+			bounds.bound(guards[i], guardAtom);
+			List<Formula> goal = new ArrayList<Formula>();
+			for(Formula f: x.formulas) if (!shared.contains(x.conjunct(f))) goal.add(f);
+			fgoal.add(guards[i].some().implies(Formula.and(goal)));
+		}
+		rep.translate(first.originalOptions.solver.id(), first.bitwidth, first.maxseq, options.skolemDepth(), options.symmetryBreaking());
+		rep.debug("Generating the CNF shared by ", n, " commands...\n");
+		Formula formula = TemporalTranslator.translate(Formula.and(fgoal));
+		Arrays.fill(unsat, true);
+		boolean reported = false;
+		// Just like TemporalKodkodSolver, try each trace length in turn; a frame is unsatisfiable iff it is unsatisfiable for every length
+		for(int t=1; t<=options.maxTraceLength(); t++) {
+			int pending = 0;
+			for(int i=0; i<n; i++) if (unsat[i]) pending++;
+			if (pending==0) break;
+			Translation.Whole w = Translator.translate(formula, TemporalTranslator.translate(bounds, t), options);
+			SATSolver cnf = w.cnf();
+			try {
+				// A trivial formula does not depend on any guard: if it is trivially true then every frame is satisfiable with this trace length,
+				// and if it is trivially false then no frame is (so we just move on to the next trace length)
+				if (w.trivial()) {
+					if (cnf.solve()) Arrays.fill(unsat, false);
+					continue;
+				}
+				if (!reported) { rep.solve(w.numPrimaryVariables(), cnf.numberOfVariables(), cnf.numberOfClauses()); reported = true; }
+				// Find the variable of each guard (0 if the guard was simplified away, in which case we cannot tell anything about that frame)
+				int[] lits = new int[n];
+				for(int i=0; i<n; i++) {
+					IntSet guard = w.primaryVariables(guards[i]);
+					if (cnf instanceof IncrementalSAT4J && guard!=null && guard.size()==1) lits[i] = guard.min();
+				}
+				// Solve the i-th frame by assuming G_i is nonempty and every other guard is empty (so the solver does not waste time on the other goals)
+				for(int i=0; i<n; i++) if (unsat[i]) {
+					if (lits[i]==0) { unsat[i] = false; continue; }
+					IntVector assumptions = new ArrayIntVector(n);
+					for(int j=0; j<n; j++) if (lits[j]!=0) assumptions.add(i==j ? lits[j] : (-lits[j]));
+					if (((IncrementalSAT4J)cnf).solve(assumptions.toArray())) unsat[i] = false;
+				}
+			} catch(IncrementalSAT4J.Aborted ex) {
+				// Nothing has been proved for the frames that are still pending, so they will be solved on their own
+				Arrays.fill(unsat, false);
+				break;
+			} finally {
+				cnf.free();
+			}
+		}
+		return unsat;
+	}
+
+	/** Returns the Alloy conjunct that the given formula is the translation of (or the formula itself if it is unknown). */
+	private Object conjunct(Formula f) {
+		Object x = k2pos.get(f);
+		return (x instanceof Expr) ? x : f;
+	}
+
+	/** Mark this frame as unsatisfiable (since solveTogether() proved it), then report it to the given reporter as if solve() found it to be unsatisfiable. */
+	A4Solution solvedUnsatisfiable(A4Reporter rep, Command cmd, long time) throws Err {
+		if (solved) throw new ErrorAPI("This solution is already solved.");
+		reporter = rep;
+		solved();
+		rep.resultUNSAT(cmd, time, this);
+		return this;
+	}
+
 	// [HASLab] pessoa: structure to execute the renaming as the time evolves
 	private Instance instance ;
 	private Map<Expr,Expression> originalA2k;
 	private Map<Expr,Expression> temporaryA2k =  new HashMap<>();
 	private List<Object> universeList = new ArrayList<Object>();
 
+	/** The reporter given to solve(), which also receives the "rename" and "write" phases of this solution. */
+	private A4Reporter reporter = A4Reporter.NOP;
+
+	/** Returns the reporter given to solve() (or A4Reporter.NOP if this solution was not solved by the translator). */
+	A4Reporter getReporter() { return reporter; }
+
 	// [HASLab] pessoa: boolean var to allow or not add the skolem into the original list from the second renaming
 	private boolean canAddSkolems;
 
+	/** If nonnull, the skolems found by the first renaming of this solution (as triples of name, type, and Kodkod relation). */
+	private List<Object> renameSkolems = null;
+
+	/** If nonnull, the total order of each sig found by the first renaming of this solution. */
+	private Map<Sig,List<Tuple>> renameNexts = null;
+
+	/** If nonnull, this maps each atom in universeList to its index. */
+	private Map<Object,Integer> atomIndex = null;
+
+	/** This maps each atom name chosen by rename() to the ExprVar and Kodkod relation that represent that atom, so that renaming another state reuses them. */
+	private final Map<String,Pair<ExprVar,Relation>> atomVars = new HashMap<String,Pair<ExprVar,Relation>>();
+
 	// [HASLab] pessoa: Object of GatherTemporalAtoms class in order to build a xml file with all atoms that appear in the renaming
 	public GatherTemporalAtoms temporalAtoms;
 
@@ -1144,7 +1439,10 @@ public final class A4Solution {
 			atom2name = new LinkedHashMap<Object,String>();
 			atom2sig = new LinkedHashMap<Object,PrimSig>();
 			eval = new Evaluator(instance, solver.options());
+			PhaseTimer timer = PhaseTimer.start();
 			rename(this, null, null, new UniqueNameGenerator(), state);
+			reporter.count("atoms", atom2name.size());
+			timer.stop(reporter, "rename");
 			return this;
 		} catch (Err err) {
 			err.printStackTrace();
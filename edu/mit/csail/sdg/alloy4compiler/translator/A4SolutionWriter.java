@@ -24,6 +24,7 @@ import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.Err;
 import edu.mit.csail.sdg.alloy4.ErrorAPI;
 import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.PhaseTimer;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
 import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
@@ -85,6 +86,23 @@ public final class A4SolutionWriter {
 			return toplevels;
 	}
 
+	/** If nonnull, this caches the " <atom label=\"..\"/>" element for each entry of atomNamesFrom. */
+	private String[] atomLabels = null;
+
+	/** The atom name table that atomLabels was computed from. */
+	private String[] atomNamesFrom = null;
+
+	/** Returns the XML-encoded " <atom label=\"..\"/>" element for each atom index that can appear in ts.atoms(). */
+	private String[] atomLabels(A4TupleSet ts) {
+		String[] names = ts.atomNames();
+		if (atomNamesFrom!=names) {
+			atomLabels = new String[names.length];
+			for(int i=0; i<names.length; i++) atomLabels[i] = " <atom label=\"" + Util.encode(names[i]) + "\"/>";
+			atomNamesFrom = names;
+		}
+		return atomLabels;
+	}
+
 	/** 
 	 * Write the given Expr and its Type. 
 	 * pt.uminho.haslab: writes a specific time instant. 
@@ -114,10 +132,12 @@ public final class A4SolutionWriter {
 		          }
 		          // Now, write out the tupleset
 		          A4TupleSet ts = (A4TupleSet)(sol.eval(expr,state));
-		          for(A4Tuple t: ts) {
+		          int[] atoms = ts.atoms();
+		          String[] labels = atomLabels(ts);
+		          for(int i=0, arity=ts.arity(); i<atoms.length; i+=arity) {
 		             if (prefix.length()>0) { out.print(prefix); prefix=""; }
 		             out.print("   <tuple>");
-		             for(int i=0; i<t.arity(); i++) Util.encodeXMLs(out, " <atom label=\"", t.atom(i), "\"/>");
+		             for(int j=0; j<arity; j++) out.print(labels[atoms[i+j]]);
 		             out.print(" </tuple>\n");
 		          }
 //			} else { // pt.uminho.haslab: write single xml.
@@ -359,6 +379,7 @@ public final class A4SolutionWriter {
 			Map<String, String> sources, int state) throws Err {
 		if (!sol.satisfiable())
 			throw new ErrorAPI("This solution is unsatisfiable.");
+		PhaseTimer timer = PhaseTimer.start();
 		try {
 			Util.encodeXMLs(out, "<alloy builddate=\"", Version.buildDate(), "\">\n\n");
 			// pt.uminho.haslab: write specific instant.
@@ -377,6 +398,7 @@ public final class A4SolutionWriter {
 		}
 		if (out.checkError())
 			throw new ErrorFatal("Error writing the solution XML file.");
+		timer.stop(rep!=null ? rep : sol.getReporter(), "write");
 	}
 
 	/**
@@ -20,6 +20,7 @@ import java.util.NoSuchElementException;
 
 import kodkod.instance.Tuple;
 import kodkod.instance.TupleSet;
+import kodkod.util.ints.IntIterator;
 import edu.mit.csail.sdg.alloy4.ErrorAPI;
 
 /** Immutable; represents a collection of Alloy tuples; comparison is by identity rather than by value. */
@@ -59,6 +60,26 @@ public final class A4TupleSet implements Iterable<A4Tuple> {
     /** Returns the arity. */
     public int arity() { return tuples.arity(); }
 
+    /** Returns the atoms of every tuple (in iteration order) as indices into atomNames();
+     * the i-th tuple's atoms are at positions i*arity() to i*arity()+arity()-1.
+     * <p> Unlike iterating over A4Tuple objects, this allocates nothing besides the returned array.
+     */
+    public int[] atoms() {
+        final int arity = tuples.arity(), n = tuples.universe().size();
+        final int[] ans = new int[tuples.size() * arity];
+        int i = 0;
+        for(IntIterator it = tuples.indexView().iterator(); it.hasNext(); i += arity) {
+            int index = it.next();
+            for(int j = arity-1; j >= 0; j--) { ans[i+j] = index % n; index = index / n; }
+        }
+        return ans;
+    }
+
+    /** Returns the name of each atom index that can appear in atoms().
+     * <p> The array is shared by every tupleset from the same A4Solution, so the caller must not modify it.
+     */
+    public String[] atomNames() { return sol.atomNames(); }
+
     /** Returns the number of tuples in this tuple set. */
     public int size() { return tuples.size(); }
 
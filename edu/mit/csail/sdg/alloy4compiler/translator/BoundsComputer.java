@@ -167,7 +167,7 @@ final class BoundsComputer {
         // If subset is exact, then just use the "sum" as is
         if (sig.exact) { sol.addSig(sig, sum); return sum; }
         // Allocate a relation for this subset sig, then bound it
-        rep.bound("Sig "+sig+" in "+ts+"\n");
+        rep.bound("Sig ", sig, " in ", ts, "\n");
         Relation r = sol.addRel(sig.label, null, ts, sig);
         sol.addSig(sig, r);
         // Add a constraint that it is INDEED a subset of the union of its parents
@@ -272,8 +272,8 @@ final class BoundsComputer {
                if (firstTS.size()!=(n>0 ? 1 : 0) || nextTS.size() != n-1) break;
               sol.addField(f1, sol.addRel(s.label+"."+f1.label, firstTS, firstTS,f1));
               sol.addField(f2, sol.addRel(s.label+"."+f2.label, nextTS, nextTS,f2));
-              rep.bound("Field "+s.label+"."+f1.label+" == "+firstTS+"\n");
-              rep.bound("Field "+s.label+"."+f2.label+" == "+nextTS+"\n");
+              rep.bound("Field ", s.label, ".", f1.label, " == ", firstTS, "\n");
+              rep.bound("Field ", s.label, ".", f2.label, " == ", nextTS, "\n");
               continue again;
            }
            for(Field f:s.getFields()) {
@@ -281,7 +281,7 @@ final class BoundsComputer {
               if (isOne && f.decl().expr.mult()==ExprUnary.Op.EXACTLYOF) {
                  Expression sim = sim(f.decl().expr);
                  if (sim!=null) {
-                    rep.bound("Field "+s.label+"."+f.label+" defined to be "+sim+"\n");
+                    rep.bound("Field ", s.label, ".", f.label, " defined to be ", sim, "\n");
                     sol.addField(f, sol.a2k(s).product(sim));
                     continue;
                  }
@@ -314,7 +314,7 @@ final class BoundsComputer {
             TupleSet upper = sol.query(true,exp,false), lower=sol.query(false,exp,false);
             final int n = sc.sig2scope(s);
             if (s.isOne!=null && (lower.size()!=1 || upper.size()!=1)) {
-                rep.bound("Sig "+s+" in "+upper+" with size==1\n");
+                rep.bound("Sig ", s, " in ", upper, " with size==1\n");
                 sol.addFormula(exp.one().always(), s.isOne); // pt.uminho.haslab
                 continue;
             }
@@ -322,17 +322,17 @@ final class BoundsComputer {
             if (s.isLone!=null && upper.size()>1) sol.addFormula(exp.lone().always(), s.isLone); // pt.uminho.haslab
             if (n<0) continue; // This means no scope was specified
             if (lower.size()==n && upper.size()==n && sc.isExact(s)) {
-                rep.bound("Sig "+s+" == "+upper+"\n");
+                rep.bound("Sig ", s, " == ", upper, "\n");
             }
             else if (sc.isExact(s)) {
-                rep.bound("Sig "+s+" in "+upper+" with size=="+n+"\n");
+                rep.bound("Sig ", s, " in ", upper, " with size==", n, "\n");
                 sol.addFormula(size(s,n,true).always(), Pos.UNKNOWN); // pt.uminho.haslab
             }
             else if (upper.size()<=n){
-                rep.bound("Sig "+s+" in "+upper+"\n");
+                rep.bound("Sig ", s, " in ", upper, "\n");
             }
             else {
-                rep.bound("Sig "+s+" in "+upper+" with size<="+n+"\n");
+                rep.bound("Sig ", s, " in ", upper, " with size<=", n, "\n");
                 sol.addFormula(size(s,n,false).always(), Pos.UNKNOWN); // pt.uminho.haslab
             }
         }
@@ -0,0 +1,120 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
+
+import org.sat4j.core.VecInt;
+import org.sat4j.minisat.SolverFactory;
+import org.sat4j.specs.ContradictionException;
+import org.sat4j.specs.ISolver;
+import org.sat4j.specs.TimeoutException;
+
+/** An implementation of SATSolver that uses SAT4J and that can also solve under a set of assumption literals,
+ * so that the same CNF can be solved again and again with different assumptions
+ * (this code is adapted from SAT4J from Kodkod).
+ */
+
+final class IncrementalSAT4J implements SATSolver {
+
+    /** The SAT4J solver. */
+    private final ISolver solver = SolverFactory.instance().defaultSolver();
+
+    /** FALSE if a clause was found to be contradictory, TRUE if the last call to solve() was satisfiable, else null. */
+    private Boolean sat = null;
+
+    /** The number of variables so far. */
+    private int vars = 0;
+
+    /** The number of clauses so far. */
+    private int clauses = 0;
+
+    /** This is a factory for IncrementalSAT4J instances. */
+    public static final SATFactory FACTORY = new SATFactory() {
+        /** {@inheritDoc} */
+        @Override public SATSolver instance() { return new IncrementalSAT4J(); }
+        /** {@inheritDoc} */
+        @Override public boolean incremental() { return true; }
+        /** {@inheritDoc} */
+        @Override public String toString() { return "IncrementalSAT4J"; }
+    };
+
+    /** This exception is thrown by solve() when it is stopped by cancel() before it could finish. */
+    static final class Aborted extends RuntimeException {
+        /** This ensures the class can be serialized reliably. */
+        private static final long serialVersionUID = 0;
+        /** Constructs a new Aborted exception with the given cause. */
+        Aborted(Throwable cause) { super("The SAT solver was stopped before it could finish.", cause); }
+    }
+
+    /** Constructs an empty IncrementalSAT4J solver. */
+    private IncrementalSAT4J() { }
+
+    /** {@inheritDoc} */
+    public void free() { }
+
+    /** {@inheritDoc} */
+    public void addVariables(int numVars) {
+        if (numVars < 0) throw new IllegalArgumentException("numVars < 0: " + numVars);
+        if (numVars > 0) { vars += numVars; solver.newVar(vars); }
+    }
+
+    /** {@inheritDoc} */
+    public boolean addClause(int[] lits) {
+        if (Boolean.FALSE.equals(sat)) return false;
+        try {
+            clauses++;
+            solver.addClause(new VecInt(lits.clone()));
+            return true;
+        } catch(ContradictionException ex) {
+            sat = Boolean.FALSE;
+            return false;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int numberOfVariables() { return vars; }
+
+    /** {@inheritDoc} */
+    public int numberOfClauses() { return clauses; }
+
+    /** {@inheritDoc} */
+    public boolean solve() { return solve(new int[0]); }
+
+    /** Returns true iff the clauses are satisfiable when every given literal is true; the clauses themselves are unchanged,
+     * so this can be called again with different assumptions.
+     */
+    public boolean solve(int... assumptions) {
+        if (Boolean.FALSE.equals(sat)) return false;
+        try {
+            boolean ans = solver.isSatisfiable(new VecInt(assumptions.clone()));
+            sat = ans ? Boolean.TRUE : null;
+            return ans;
+        } catch(TimeoutException ex) {
+            throw new Aborted(ex);
+        }
+    }
+
+    /** Stops the solve() call that is running in another thread (if any); that call will then throw an Aborted exception. */
+    void cancel() { solver.expireTimeout(); }
+
+    /** {@inheritDoc} */
+    public boolean valueOf(int variable) {
+        if (!Boolean.TRUE.equals(sat)) throw new IllegalStateException();
+        if (variable < 1 || variable > vars) throw new IllegalArgumentException(variable + " !in [1.." + vars + "]");
+        return solver.model(variable);
+    }
+}
@@ -0,0 +1,409 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package edu.mit.csail.sdg.alloy4compiler.translator;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
+import kodkod.engine.satlab.SATFactory;
+import kodkod.engine.satlab.SATSolver;
+import kodkod.util.ints.ArrayIntVector;
+import kodkod.util.ints.IntVector;
+
+/** An implementation of SATSolver that gives the same CNF to several SAT solvers, runs them concurrently,
+ * and returns the answer of whichever solver finishes first; the other solvers are then cancelled.
+ *
+ * <p> SAT4J and the JNI solvers run in threads of this process, whereas each command-line solver runs as a separate process
+ * on a DIMACS file. SAT4J and the command-line solvers stop as soon as they are cancelled, but a JNI solver cannot be
+ * interrupted, so its thread runs to completion in the background (and its answer is ignored); until it finishes,
+ * no JNI solver joins a new race, so that at most one such loser competes with the later races for a processor.
+ *
+ * <p> Only the winner of the first race is kept, so the clauses added afterwards (for example, to enumerate more solutions)
+ * and the later calls to solve() all go to the winner alone.
+ */
+
+final class PortfolioSolver implements SATSolver {
+
+    /** One of the SAT solvers in the race. */
+    private static abstract class Entrant {
+        /** The id of the SatSolver that this entrant stands for. */
+        final String name;
+        /** True if this entrant is not running solve() right now. */
+        private boolean idle = true;
+        /** True if this entrant has been cancelled. */
+        private boolean cancelled = false;
+        /** Constructs an entrant with the given name. */
+        Entrant(String name) { this.name = name; }
+        /** Adds the given number of variables. */
+        abstract void addVariables(int numVars);
+        /** Adds the given clause. */
+        abstract boolean addClause(int[] lits);
+        /** Solves the clauses so far (if this entrant is a command-line solver, the given DIMACS file contains them). */
+        abstract boolean solve(File cnf) throws Exception;
+        /** Returns the value of the given variable in the last solution. */
+        abstract boolean valueOf(int variable);
+        /** Stops the solve() call running in another thread, if possible. */
+        abstract void stop();
+        /** Releases the resources held by this entrant. */
+        abstract void free();
+        /** Records that solve() is about to be called in another thread. */
+        final synchronized void started() { idle = false; }
+        /** Records that the solve() call has finished; if this entrant was cancelled in the meantime, it is freed now. */
+        final synchronized void finished() { idle = true; if (cancelled) free(); }
+        /** Cancels this entrant: it is stopped, and it is freed as soon as its solve() call has finished. */
+        final synchronized void cancel() { cancelled = true; if (idle) free(); else stop(); }
+    }
+
+    /** An entrant that uses SAT4J in a thread of this process. */
+    private static final class SAT4JEntrant extends Entrant {
+        /** The SAT4J solver. */
+        private final IncrementalSAT4J solver = (IncrementalSAT4J) IncrementalSAT4J.FACTORY.instance();
+        /** Constructs a SAT4J entrant. */
+        SAT4JEntrant() { super(SatSolver.SAT4J.id()); }
+        @Override void addVariables(int numVars) { solver.addVariables(numVars); }
+        @Override boolean addClause(int[] lits) { return solver.addClause(lits); }
+        @Override boolean solve(File cnf) { return solver.solve(); }
+        @Override boolean valueOf(int variable) { return solver.valueOf(variable); }
+        @Override void stop() { solver.cancel(); }
+        @Override void free() { solver.free(); }
+    }
+
+    /** An entrant that uses a Kodkod SATSolver (such as MiniSat via JNI) in a thread of this process; it cannot be stopped. */
+    private static final class NativeEntrant extends Entrant {
+        /** The number of NativeEntrant solve() calls that have not finished yet. */
+        private static int unfinished = 0;
+        /** Returns true if a NativeEntrant solve() call has not finished yet (for example, because it lost a race). */
+        static synchronized boolean busy() { return unfinished > 0; }
+        /** The Kodkod solver. */
+        private final SATSolver solver;
+        /** Constructs an entrant that uses the given Kodkod solver. */
+        NativeEntrant(String name, SATSolver solver) { super(name); this.solver = solver; }
+        @Override void addVariables(int numVars) { solver.addVariables(numVars); }
+        @Override boolean addClause(int[] lits) { return solver.addClause(lits); }
+        @Override boolean solve(File cnf) {
+            synchronized(NativeEntrant.class) { unfinished++; }
+            try { return solver.solve(); } finally { synchronized(NativeEntrant.class) { unfinished--; } }
+        }
+        @Override boolean valueOf(int variable) { return solver.valueOf(variable); }
+        @Override void stop() { }
+        @Override void free() { solver.free(); }
+    }
+
+    /** The processes of the command-line solvers that are running right now; they are destroyed if this JVM exits first. */
+    private static final Set<Process> running = new HashSet<Process>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() { synchronized(running) { for(Process p: running) p.destroy(); } }
+        });
+    }
+
+    /** An entrant that runs a command-line solver on the DIMACS file written by the PortfolioSolver;
+     * the solver must print "s SATISFIABLE" or "s UNSATISFIABLE" followed by the "v" lines of the solution.
+     */
+    private static final class ExternalEntrant extends Entrant {
+        /** The command line, where the last element will be replaced by the name of the DIMACS file. */
+        private final String[] command;
+        /** The running process, or null if none. */
+        private volatile Process process = null;
+        /** True if stop() has been called. */
+        private volatile boolean stopped = false;
+        /** The true variables in the last solution. */
+        private final BitSet model = new BitSet();
+        /** Constructs an entrant that runs the given command line. */
+        ExternalEntrant(String name, String[] command) { super(name); this.command = command; }
+        @Override void addVariables(int numVars) { }
+        @Override boolean addClause(int[] lits) { return true; }
+        @Override boolean solve(File cnf) throws IOException, InterruptedException {
+            command[command.length-1] = cnf.getAbsolutePath();
+            Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+            synchronized(running) { running.add(p); }
+            process = p;
+            if (stopped) p.destroy();
+            Boolean sat = null;
+            model.clear();
+            BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+            try {
+                for(String line = in.readLine(); line != null; line = in.readLine()) {
+                    String[] tokens = line.trim().split("\\s+");
+                    if (tokens[0].equals("s") && tokens.length > 1) {
+                        if (tokens[1].equalsIgnoreCase("SATISFIABLE")) sat = Boolean.TRUE;
+                        else if (tokens[1].equalsIgnoreCase("UNSATISFIABLE")) sat = Boolean.FALSE;
+                    } else if (tokens[0].equals("v")) {
+                        for(int i=1; i<tokens.length; i++) { int lit = Integer.parseInt(tokens[i]); if (lit > 0) model.set(lit); }
+                    }
+                }
+                p.waitFor();
+            } finally {
+                in.close();
+                synchronized(running) { running.remove(p); }
+                process = null;
+            }
+            if (stopped || sat == null) throw new IOException(name + " did not report whether the CNF is satisfiable.");
+            return sat;
+        }
+        @Override boolean valueOf(int variable) { return model.get(variable); }
+        @Override void stop() { stopped = true; Process p = process; if (p != null) p.destroy(); }
+        @Override void free() { }
+    }
+
+    /** The reporter that receives the winner of each race (can be null). */
+    private final A4Reporter rep;
+
+    /** The entrants that are still in the race (after the first race, it contains only the winner). */
+    private final List<Entrant> entrants;
+
+    /** The DIMACS file for the command-line solvers, or null if there are no command-line solvers left. */
+    private File cnf;
+
+    /** The clauses so far, each followed by 0 (this is null if there are no command-line solvers left). */
+    private IntVector clauses;
+
+    /** The number of variables so far. */
+    private int vars = 0;
+
+    /** The number of clauses so far. */
+    private int numClauses = 0;
+
+    /** Constructs a PortfolioSolver with the given entrants. */
+    private PortfolioSolver(A4Reporter rep, List<Entrant> entrants, File cnf) {
+        this.rep = rep;
+        this.entrants = entrants;
+        this.cnf = cnf;
+        this.clauses = (cnf != null) ? new ArrayIntVector() : null;
+    }
+
+    /** This is 1 if MiniSat via JNI is available, 0 if not, and -1 if we have not checked yet. */
+    private static int minisat = -1;
+
+    /** Returns true if MiniSat via JNI is available (once its library fails to load, Kodkod throws a different error for every
+     * later attempt, so we only check it once). */
+    private static synchronized boolean minisat() {
+        if (minisat < 0) {
+            try { SATFactory.MiniSat.instance().free(); minisat = 1; } catch(LinkageError ex) { minisat = 0; }
+        }
+        return minisat > 0;
+    }
+
+    /** Returns the executable of the given command-line solver, looked up in the given directory if it is not a path already. */
+    private static String executable(SatSolver s, String solverDirectory) {
+        String ext = s.external();
+        if (solverDirectory.length()>0 && ext.indexOf(File.separatorChar)<0) ext=solverDirectory+File.separatorChar+ext;
+        return ext;
+    }
+
+    /** Maps each command-line solver executable that we have tried to whether it solved a small CNF correctly. */
+    private static final Map<String,Boolean> tried = new HashMap<String,Boolean>();
+
+    /** Returns true if the given SatSolver can join a race on this platform: MiniSat via JNI must be loadable, and a command-line
+     * solver must be Spear and must solve a small satisfiable CNF correctly (BerkMin is never raced, since SimpleGUI does not offer it).
+     * <p> SimpleGUI uses the same check to decide whether to offer Spear and the Portfolio solver, so both agree on what is usable.
+     */
+    static synchronized boolean raceable(SatSolver s, String solverDirectory) {
+        if (s == SatSolver.MiniSatJNI) return minisat();
+        if (s != SatSolver.SpearPIPE) return false;
+        String exe = executable(s, solverDirectory);
+        Boolean ans = tried.get(exe);
+        if (ans == null) {
+            ans = Boolean.FALSE;
+            if (new File(exe).canExecute()) try {
+                File cnf = File.createTempFile("tmp", ".cnf");
+                try {
+                    Util.writeAll(cnf.getAbsolutePath(), "p cnf 3 1\n1 0\n");
+                    String[] options = s.options(), command = new String[options.length + 2];
+                    command[0] = exe;
+                    System.arraycopy(options, 0, command, 1, options.length);
+                    final ExternalEntrant test = new ExternalEntrant(s.id(), command);
+                    Thread timeout = new Thread(new Runnable() {
+                        public void run() { try { Thread.sleep(20000); test.stop(); } catch(InterruptedException ex) { } }
+                    });
+                    timeout.setDaemon(true);
+                    timeout.start();
+                    try { ans = test.solve(cnf); } finally { timeout.interrupt(); }
+                } finally {
+                    cnf.delete();
+                }
+            } catch(Exception ex) {
+                // the solver cannot be raced if it fails on such a small CNF (or if we cannot even test it)
+            }
+            tried.put(exe, ans);
+        }
+        return ans;
+    }
+
+    /** Returns a factory for PortfolioSolver instances that race SAT4J, MiniSat via JNI (if its library can be loaded and if no
+     * earlier MiniSat call is still running), and every command-line solver that raceable() accepts; the winner of each race
+     * is reported to the given reporter.
+     * <p> Racing more solvers than there are processors only slows every solver down, so SAT4J is always in the race,
+     * but there is at most one other solver for each additional processor.
+     */
+    static SATFactory factory(final A4Reporter rep, A4Options opt) {
+        int others = Runtime.getRuntime().availableProcessors() - 1;
+        final boolean minisat = others > 0 && raceable(SatSolver.MiniSatJNI, opt.solverDirectory);
+        if (minisat) others--;
+        final List<SatSolver> external = new ArrayList<SatSolver>();
+        final List<String> executable = new ArrayList<String>();
+        for(SatSolver s: SatSolver.values()) {
+            if (s.external() == null || external.size() >= others || !raceable(s, opt.solverDirectory)) continue;
+            external.add(s);
+            executable.add(executable(s, opt.solverDirectory));
+        }
+        final File tmp = new File(opt.tempDirectory);
+        return new SATFactory() {
+            /** {@inheritDoc} */
+            @Override public SATSolver instance() {
+                List<Entrant> entrants = new ArrayList<Entrant>();
+                entrants.add(new SAT4JEntrant());
+                if (minisat && !NativeEntrant.busy()) entrants.add(new NativeEntrant(SatSolver.MiniSatJNI.id(), SATFactory.MiniSat.instance()));
+                File cnf = null;
+                if (external.size() > 0) try {
+                    cnf = File.createTempFile("tmp", ".cnf", tmp);
+                    cnf.deleteOnExit();
+                } catch(IOException ex) {
+                    throw new RuntimeException("Cannot create temporary directory.", ex);
+                }
+                for(int i=0; i<external.size(); i++) {
+                    String[] options = external.get(i).options();
+                    String[] command = new String[options.length + 2];
+                    command[0] = executable.get(i);
+                    System.arraycopy(options, 0, command, 1, options.length);
+                    entrants.add(new ExternalEntrant(external.get(i).id(), command));
+                }
+                return new PortfolioSolver(rep, entrants, cnf);
+            }
+            /** {@inheritDoc} */
+            @Override public boolean incremental() { return true; }
+            /** {@inheritDoc} */
+            @Override public String toString() { return "Portfolio"; }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public int numberOfVariables() { return vars; }
+
+    /** {@inheritDoc} */
+    public int numberOfClauses() { return numClauses; }
+
+    /** {@inheritDoc} */
+    public void addVariables(int numVars) {
+        if (numVars < 0) throw new IllegalArgumentException("numVars < 0: " + numVars);
+        vars += numVars;
+        for(Entrant e: entrants) e.addVariables(numVars);
+    }
+
+    /** {@inheritDoc} */
+    public boolean addClause(int[] lits) {
+        numClauses++;
+        if (clauses != null) { for(int lit: lits) clauses.add(lit); clauses.add(0); }
+        boolean ans = false;
+        for(Entrant e: entrants) if (e.addClause(lits)) ans = true;
+        return ans;
+    }
+
+    /** Write the clauses so far into the DIMACS file. */
+    private void writeCNF() throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(cnf));
+        try {
+            StringBuilder sb = new StringBuilder("p cnf ").append(vars).append(' ').append(numClauses).append('\n');
+            for(int i=0, n=clauses.size(); i<n; i++) {
+                int lit = clauses.get(i);
+                sb.append(lit).append(lit == 0 ? '\n' : ' ');
+                if (sb.length() > 8192) { out.write(sb.toString().getBytes("US-ASCII")); sb.setLength(0); }
+            }
+            out.write(sb.toString().getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean solve() {
+        if (entrants.size() == 0) throw new IllegalStateException("None of the SAT solvers in the portfolio is left.");
+        try {
+            if (cnf != null) writeCNF();
+            if (entrants.size() == 1) return entrants.get(0).solve(cnf);
+        } catch(RuntimeException ex) {
+            throw ex;
+        } catch(Exception ex) {
+            throw new RuntimeException(ex);
+        }
+        final File cnf = this.cnf;
+        final long start = System.currentTimeMillis();
+        final BlockingQueue<Object[]> answers = new LinkedBlockingQueue<Object[]>();
+        for(final Entrant e: entrants) {
+            e.started();
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    Object ans;
+                    try { ans = e.solve(cnf) ? Boolean.TRUE : Boolean.FALSE; } catch(Throwable ex) { ans = ex; }
+                    e.finished();
+                    answers.add(new Object[]{e, ans});
+                }
+            }, "Portfolio " + e.name);
+            t.setDaemon(true);
+            t.start();
+        }
+        Entrant winner = null;
+        boolean ans = false;
+        Throwable failure = null;
+        try {
+            for(int i=entrants.size(); i>0 && winner==null; i--) {
+                Object[] x = answers.take();
+                if (x[1] instanceof Boolean) { winner = (Entrant) x[0]; ans = (Boolean) x[1]; }
+                else if (failure == null) failure = (Throwable) x[1];
+            }
+        } catch(InterruptedException ex) {
+            failure = ex;
+            winner = null;
+        }
+        for(Entrant e: entrants) if (e != winner) e.cancel();
+        entrants.clear();
+        if (winner == null) throw new RuntimeException("None of the SAT solvers in the portfolio could solve the CNF.", failure);
+        entrants.add(winner);
+        if (cnf != null && !(winner instanceof ExternalEntrant)) { cnf.delete(); this.cnf = null; clauses = null; }
+        if (rep != null) rep.raced(winner.name, System.currentTimeMillis() - start);
+        return ans;
+    }
+
+    /** {@inheritDoc} */
+    public boolean valueOf(int variable) {
+        if (variable < 1 || variable > vars) throw new IllegalArgumentException(variable + " !in [1.." + vars + "]");
+        return entrants.get(0).valueOf(variable);
+    }
+
+    /** {@inheritDoc} */
+    public void free() {
+        for(Entrant e: entrants) e.cancel();
+        entrants.clear();
+        if (cnf != null) { cnf.delete(); cnf = null; clauses = null; }
+    }
+}
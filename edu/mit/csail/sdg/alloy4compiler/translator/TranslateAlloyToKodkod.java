@@ -41,6 +41,7 @@ import edu.mit.csail.sdg.alloy4.ErrorFatal;
 import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.ErrorType;
 import edu.mit.csail.sdg.alloy4.Pair;
+import edu.mit.csail.sdg.alloy4.PhaseTimer;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.SafeList;
 import edu.mit.csail.sdg.alloy4.Util;
@@ -90,6 +91,9 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
     /** The maximum allowed loop unrolling and recursion. */
     private final int unrolls;
 
+    /** If nonnull, it's the cached Translation that the frame was forked from. */
+    private Translation translation;
+
     /** Construct a translator based on the given list of sigs and the given command.
      * @param rep - if nonnull, it's the reporter that will receive diagnostics and progress reports
      * @param opt - the solving options (must not be null)
@@ -100,7 +104,9 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         this.unrolls = opt.unrolls;
         this.rep = (rep != null) ? rep : A4Reporter.NOP;
         this.cmd = cmd;
+        PhaseTimer timer = PhaseTimer.start();
         Pair<A4Solution, ScopeComputer> pair = ScopeComputer.compute(this.rep, opt, sigs, cmd);
+        timer.stop(this.rep, "scope");
         this.frame = pair.a;
         this.bitwidth = pair.a.getBitwidth();
         this.min = pair.a.min();
@@ -108,6 +114,24 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         this.a2k = null;
         this.s2k = null;
         BoundsComputer.compute(rep, frame, pair.b, sigs);
+        timer.stop(this.rep, "bounds");
+    }
+
+    /** Construct a translator that adds facts to the given frame, whose bounds have already been computed.
+     * @param rep - the reporter that will receive diagnostics and progress reports (must not be null)
+     * @param frame - the frame (must not be null)
+     * @param cmd - the command to solve (can be null if the skolem names should not be prefixed by the command's label)
+     */
+    private TranslateAlloyToKodkod (A4Reporter rep, A4Solution frame, Command cmd) throws Err {
+        this.unrolls = frame.unrolls();
+        this.rep = rep;
+        this.cmd = cmd;
+        this.frame = frame;
+        this.bitwidth = frame.getBitwidth();
+        this.min = frame.min();
+        this.max = frame.max();
+        this.a2k = null;
+        this.s2k = null;
     }
 
     /** Construct a translator based on a already-fully-constructed association map.
@@ -159,7 +183,12 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         rep.debug("Generating facts...\n");
         // convert into a form that hopefully gives better unsat core
         facts = (Expr) (new ConvToConjunction()).visitThis(facts);
-        // add the field facts and appended facts
+        makeSigFacts();
+        recursiveAddFormula(facts, null);
+    }
+
+    /** Conjoin the constraints for "field declarations" and the facts appended to each sig. */
+    private void makeSigFacts() throws Err {
 		for (Sig s : frame.getAllReachableSigs()) {
 			for (Decl d : s.getFieldDecls()) {
 				k2pos_enabled = false;
@@ -198,16 +227,109 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
 			}
 		}
 		k2pos_enabled = true;
-		recursiveAddFormula(facts);
     }
 
-    /** Break up x into conjuncts then add them each as a fact. */
-    private void recursiveAddFormula(Expr x) throws Err {
+    /** Break up x into conjuncts then add them each as a fact;
+     * if t!=null, each conjunct that was already translated for an earlier command is replayed from t rather than translated again.
+     */
+    private void recursiveAddFormula(Expr x, Translation t) throws Err {
         if (x instanceof ExprList && ((ExprList)x).op==ExprList.Op.AND) {
-            for(Expr e: ((ExprList)x).args) recursiveAddFormula(e);
-        } else {
+            for(Expr e: ((ExprList)x).args) recursiveAddFormula(e, t);
+            return;
+        }
+        if (t==null) { frame.addFormula(cform(x), x); return; }
+        String label = cmd.label;
+        Pair<A4Solution.Delta,String> old;
+        synchronized(t) { old = t.facts.get(x); }
+        if (old!=null && (old.b==null || old.b.equals(label))) { frame.replay(old.a); return; }
+        // Constant functions shared with an earlier conjunct would not be recorded in this conjunct's Delta, so translate them again
+        cacheForConstants.clear();
+        labelUsed = false;
+        frame.startRecording();
+        A4Solution.Delta delta;
+        try {
             frame.addFormula(cform(x), x);
+        } finally {
+            delta = frame.stopRecording();
+        }
+        if (delta!=null) synchronized(t) { t.facts.put(x, new Pair<A4Solution.Delta,String>(delta, labelUsed ? label : null)); }
+    }
+
+    //==============================================================================================================//
+
+    /** Stores what can be shared by every command with the same sigs and the same scope:
+     * the bounds, the constraints from the sig and field declarations, and the translation of each fact seen so far.
+     */
+    private static final class Translation {
+        /** The frame containing the bounds and the sig facts; it is only ever forked, and never solved or modified. */
+        private final A4Solution template;
+        /** This maps each conjunct to its translation, and to the command label that its skolem names depend on (or null if none). */
+        private final Map<Expr,Pair<A4Solution.Delta,String>> facts = new IdentityHashMap<Expr,Pair<A4Solution.Delta,String>>();
+        /** Constructs a new Translation with the given template. */
+        private Translation(A4Solution template) { this.template = template; }
+    }
+
+    /** The maximum number of scopes kept in the translation cache (0 means every command is translated from scratch). */
+    private static int cacheSize = 4;
+
+    /** This maps (sigs, scope, bitwidth, maxseq, unrolls, universe) to its Translation, followed by the command label if the sig facts' skolem names
+     * depend on it; the least recently used entry is discarded first.
+     */
+    private static final Map<List<Object>,Translation> cache = new LinkedHashMap<List<Object>,Translation>(16, 0.75f, true) {
+        private static final long serialVersionUID = 0;
+        @Override protected boolean removeEldestEntry(Map.Entry<List<Object>,Translation> eldest) { return size() > cacheSize; }
+    };
+
+    /** Discard every entry in the translation cache. */
+    public static void clearCache() {
+        synchronized(cache) { cache.clear(); }
+    }
+
+    /** Sets the maximum number of scopes kept in the translation cache, and discards every entry in it;
+     * if n==0, then every command is translated from scratch (as it was before the cache existed).
+     */
+    public static void setCacheSize(int n) {
+        synchronized(cache) { cacheSize = Math.max(0, n); cache.clear(); }
+    }
+
+    /** Compute the scope of the given command, then return a translator whose frame contains the bounds and every fact;
+     * the bounds, the sig facts, and every fact that an earlier command with the same sigs and the same scope already translated are reused.
+     */
+    private static TranslateAlloyToKodkod translate(A4Reporter rep, A4Options opt, Iterable<Sig> sigs, Command cmd) throws Err {
+        int size;
+        synchronized(cache) { size = cacheSize; }
+        if (size==0) { TranslateAlloyToKodkod tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd); tr.makeFacts(cmd.formula); return tr; }
+        PhaseTimer timer = PhaseTimer.start();
+        Pair<A4Solution, ScopeComputer> pair = ScopeComputer.compute(rep, opt, sigs, cmd);
+        timer.stop(rep, "scope");
+        List<Object> key = new ArrayList<Object>();
+        List<Object> atoms = new ArrayList<Object>();
+        for(Object atom: pair.a.getFactory().universe()) atoms.add(atom);
+        key.add(atoms);
+        key.add(pair.a.getBitwidth());
+        key.add(pair.a.getMaxSeq());
+        key.add(opt.unrolls);
+        for(Sig s: sigs) { key.add(s); key.add(pair.b.sig2scope(s)); key.add(pair.b.isExact(s)); }
+        // If the sig facts name their skolems after the command label, then the entry is only shared by commands with the same label
+        List<Object> labelKey = new ArrayList<Object>(key);
+        labelKey.add(cmd.label);
+        Translation t;
+        synchronized(cache) { t = cache.get(key); if (t==null) t = cache.get(labelKey); }
+        if (t==null) {
+            BoundsComputer.compute(rep, pair.a, pair.b, sigs);
+            TranslateAlloyToKodkod tr = new TranslateAlloyToKodkod(rep, pair.a, cmd);
+            tr.makeSigFacts();
+            t = new Translation(pair.a);
+            synchronized(cache) { cache.put(tr.labelUsed ? labelKey : key, t); }
+        } else {
+            rep.debug("Reusing the bounds of an earlier command with the same scope...\n");
         }
+        TranslateAlloyToKodkod tr = new TranslateAlloyToKodkod(rep, new A4Solution(t.template, cmd.toString(), opt, cmd.expects), cmd);
+        timer.stop(rep, "bounds");
+        rep.debug("Generating facts...\n");
+        tr.translation = t;
+        tr.recursiveAddFormula((Expr) (new ConvToConjunction()).visitThis(cmd.formula), t);
+        return tr;
     }
 
     //==============================================================================================================//
@@ -367,8 +489,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
         TranslateAlloyToKodkod tr = null;
         try {
             if (cmd.parent!=null || !cmd.getGrowableSigs().isEmpty()) return execute_greedyCommand(rep, sigs, cmd, opt);
-            tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd);
-            tr.makeFacts(cmd.formula);
+            tr = translate(rep, opt, sigs, cmd);
             return tr.frame.solve(rep, cmd, new Simplifier(), false);
         } catch(UnsatisfiedLinkError ex) {
             throw new ErrorFatal("The required JNI library cannot be found: "+ex.toString().trim(), ex);
@@ -406,8 +527,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
        	 	if (cmd.parent!=null || !cmd.getGrowableSigs().isEmpty()) return execute_greedyCommand(rep, sigs, cmd, opt);
        	 	if (cmd.timeexact || cmd.time < 1) {
         		rep.debug("Iteration start: "+cmd.time);
-        		tr = new TranslateAlloyToKodkod(rep, opt, sigs, cmd);
-        		tr.makeFacts(cmd.formula);
+        		tr = translate(rep, opt, sigs, cmd);
         		sol = tr.frame.solve(rep, cmd, new Simplifier(), true);
        	 	}
        	 	else {
@@ -415,8 +535,7 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
 	        	for (int currenttime = 1; currenttime <= cmd.time && (sol == null || !sol.satisfiable()); currenttime++ ) {
 	       	 		long startit = System.currentTimeMillis();
 	       	 		Command current = cmd.change(currenttime);
-	        		tr = new TranslateAlloyToKodkod(rep, opt, sigs, current);
-	        		tr.makeFacts(current.formula);
+	        		tr = translate(rep, opt, sigs, current);
 	        		sol = tr.frame.solve(rep, current, new Simplifier(), true); 
 	        		rep.debug("Iteration "+currenttime+": "+(System.currentTimeMillis() - startit));
 //	        		System.out.println("Iteration "+currenttime+": "+(System.currentTimeMillis() - startit));
@@ -436,6 +555,75 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
 
     }
 
+    /** Based on the specified "options", execute every given command in order, and return the list of resulting A4Solution objects.
+     *
+     * <p> Each command is executed just like execute_commandFromBook, except that rep.executing() is called just before each command.
+     * If opt.solveTogether is true and the solver is SAT4J, then the checks with the same scope are first solved together
+     * using a single CNF and one assumption literal per check (see A4Solution.solveTogether); the ones that are proved unsatisfiable
+     * are reported right away, and every other check is then solved on its own (so that its counterexample can be enumerated as usual).
+     * The run commands are never batched, since they are usually satisfiable, and so would be solved twice.
+     *
+     * @param rep - if nonnull, we'll send compilation diagnostic messages to it
+     * @param sigs - the list of sigs; this list must be complete
+     * @param cmds - the list of Commands to execute
+     * @param opt - the set of options guiding the execution of the commands
+     *
+     * @return the list of results, in the same order as the list of commands (an entry is null if the user chose "save to FILE" as the SAT solver)
+     */
+    public static List<A4Solution> execute_commands (A4Reporter rep, Iterable<Sig> sigs, List<Command> cmds, A4Options opt) throws Err {
+        if (rep==null) rep = A4Reporter.NOP;
+        List<A4Solution> ans = new ArrayList<A4Solution>(cmds.size());
+        TranslateAlloyToKodkod tr = null;
+        try {
+            // First translate every check that could be solved together, and group them by their scope
+            TranslateAlloyToKodkod[] trs = new TranslateAlloyToKodkod[cmds.size()];
+            Map<Pair<Translation,Boolean>,List<Integer>> groups = new LinkedHashMap<Pair<Translation,Boolean>,List<Integer>>();
+            if (opt.solveTogether && opt.solver.equals(A4Options.SatSolver.SAT4J)) for(int i=0; i<cmds.size(); i++) {
+                Command cmd = cmds.get(i);
+                if (!cmd.check || cmd.parent!=null || !cmd.getGrowableSigs().isEmpty() || !(cmd.timeexact || cmd.time < 1)) continue;
+                try { trs[i] = tr = translate(rep, opt, sigs, cmd); } catch(Err ex) { continue; } // the error will be reported when we get to this command
+                if (tr.translation==null) continue; // without the translation cache, we cannot tell which commands have the same scope
+                Pair<Translation,Boolean> key = new Pair<Translation,Boolean>(tr.translation, cmd.expects==1); // since expects==1 disables symmetry breaking
+                List<Integer> group = groups.get(key);
+                if (group==null) groups.put(key, group = new ArrayList<Integer>());
+                group.add(i);
+            }
+            boolean[] unsat = new boolean[cmds.size()];
+            long[] times = new long[cmds.size()];
+            for(int i=0; i<cmds.size(); i++) {
+                Command cmd = cmds.get(i);
+                rep.executing(cmd);
+                tr = trs[i];
+                List<Integer> group = (tr==null) ? null : groups.get(new Pair<Translation,Boolean>(tr.translation, cmd.expects==1));
+                if (group!=null && group.size()>1 && group.get(0)==i) {
+                    long start = System.currentTimeMillis();
+                    List<A4Solution> frames = new ArrayList<A4Solution>(group.size());
+                    for(int j: group) frames.add(trs[j].frame);
+                    boolean[] result;
+                    try {
+                        result = A4Solution.solveTogether(rep, frames);
+                    } catch(HigherOrderDeclException ex) {
+                        result = new boolean[group.size()]; // then each command will report this error on its own
+                    }
+                    for(int j=0; j<group.size(); j++) { unsat[group.get(j)] = result[j]; times[group.get(j)] = System.currentTimeMillis() - start; }
+                }
+                if (unsat[i]) ans.add(tr.frame.solvedUnsatisfiable(rep, cmd, times[i]));
+                else if (tr!=null) ans.add(tr.frame.solve(rep, cmd, new Simplifier(), true));
+                else ans.add(execute_commandFromBook(rep, sigs, cmd, opt));
+            }
+        } catch(UnsatisfiedLinkError ex) {
+            throw new ErrorFatal("The required JNI library cannot be found: "+ex.toString().trim(), ex);
+        } catch(CapacityExceededException ex) {
+            throw rethrow(ex);
+        } catch(HigherOrderDeclException ex) {
+            Pos p = tr!=null ? tr.frame.kv2typepos(ex.decl().variable()).b : Pos.UNKNOWN;
+            throw new ErrorType(p, "Analysis cannot be performed since it requires higher-order quantification that could not be skolemized.");
+        } catch(Throwable ex) {
+            if (ex instanceof Err) throw (Err)ex; else throw new ErrorFatal("Unknown exception occurred: "+ex, ex);
+        }
+        return ans;
+    }
+
     /** Translate the Alloy expression into an equivalent Kodkod Expression or IntExpression or Formula object.
      * @param sol - an existing satisfiable A4Solution object
      * @param expr - this is the Alloy expression we want to translate
@@ -522,13 +710,16 @@ public final class TranslateAlloyToKodkod extends VisitReturn<Object> {
      */
     public String skolem(String name) {
         if (current_function.size()==0) {
-            if (cmd!=null && cmd.label.length()>0 && cmd.label.indexOf('$')<0) return cmd.label+"_"+name; else return name;
+            if (cmd!=null && cmd.label.length()>0 && cmd.label.indexOf('$')<0) { labelUsed = true; return cmd.label+"_"+name; } else return name;
         }
         Func last=current_function.get(current_function.size()-1);
         String funcname=tail(last.label);
         if (funcname.indexOf('$')<0) return funcname+"_"+name; else return name;
     }
 
+    /** True if skolem() prefixed a name with the command's label since this flag was last cleared. */
+    private boolean labelUsed = false;
+
     //==============================================================================================================//
 
     /** If x = SOMETHING->RELATION where SOMETHING.arity==1, then return the RELATION, else return null. */
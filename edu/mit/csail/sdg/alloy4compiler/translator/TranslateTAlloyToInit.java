@@ -45,7 +45,7 @@ public final class TranslateTAlloyToInit extends VisitReturn<Expr> {
 			convertFacts(s);
 //		rep.debug("ORIGINAL: "+command.formula);
 		expr = visitThis(command.formula);
-		rep.debug("\nNEWINITFACT: "+expr);
+		rep.debug("\nNEWINITFACT: ", expr);
 		rep.debug("\nMaxTime: "+command.time);
 		Command cmd = new Command(command.check, command.overall, command.bitwidth, command.maxseq, command.time, command.timeexact, expr);
 		cmd = cmd.change(command.scope);
@@ -35,7 +35,8 @@ import edu.mit.csail.sdg.alloy4.OurPDFWriter;
 /** This class abstracts the drawing operations so that we can
  * draw the graph using different frameworks such as Java2D or PDF.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread;
+ * except that the static font metric methods (getMaxAscent, getMaxAscentAndDescent, getBounds) can be called by any thread.
  */
 
 public final strictfp class Artist {
@@ -175,7 +176,7 @@ public final strictfp class Artist {
     private static int cachedMaxDescent = -1;
 
     /** Allocates the nonbold and bold fonts, then calculates the max ascent and descent. */
-    private static void calc() {
+    private static synchronized void calc() {
        if (cachedMaxDescent >= 0) return; // already done
        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
        cachedGraphics = (Graphics2D)(image.getGraphics());
@@ -199,7 +200,7 @@ public final strictfp class Artist {
     }
 
     /** Returns the bounding box when drawing the given string using the given font size and font boldness settings. */
-    public static Rectangle2D getBounds(boolean fontBoldness, String string) {
+    public static synchronized Rectangle2D getBounds(boolean fontBoldness, String string) {
         calc();
         return (fontBoldness ? cachedBoldMetrics : cachedPlainMetrics).getStringBounds(string, cachedGraphics);
     }
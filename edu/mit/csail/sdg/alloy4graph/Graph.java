@@ -35,7 +35,8 @@ import edu.mit.csail.sdg.alloy4.Util;
 
 /** Mutable; represents a graph.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> Can be called only by the AWT event thread;
+ * except that a graph which has not yet been given to a GraphViewer can be constructed and laid out by any one thread.
  */
 
 public final strictfp class Graph {
@@ -460,7 +461,7 @@ public final strictfp class Graph {
 
    //============================================================================================================================//
 
-   /** (Re-)perform the layout. */
+   /** (Re-)perform the layout; if the current thread is interrupted, this returns early and leaves the graph only partially laid out. */
    public void layout() {
 
       // The rest of the code below assumes at least one node, so we return right away if nodes.size()==0
@@ -469,12 +470,18 @@ public final strictfp class Graph {
       // Calculate each node's width and height
       for(GraphNode n:nodes) n.calcBounds();
 
-      // Layout the nodes
+      // Layout the nodes; between each phase, we stop early if the current thread has been interrupted
+      // (since the caller is then going to throw away this graph)
+      if (cancelled()) return;
       layout_assignOrder();
+      if (cancelled()) return;
       layout_backEdges();
       final int layers = layout_decideLayer();
+      if (cancelled()) return;
       layout_dummyNodesIfNeeded();
+      if (cancelled()) return;
       layout_reorderPerLayer();
+      if (cancelled()) return;
 
       // For each layer, this array stores the height of its tallest node
       layerPH = new int[layers];
@@ -495,7 +502,10 @@ public final strictfp class Graph {
       // If there are more than one layer, then iteratively refine the X position of each component 3 times; 4 is a good number
       if (layers>1) {
          // It's important to NOT DO THIS when layers<=1, because without edges the nodes will overlap each other into the center
-         for(int i=0; i<3; i++) for(int layer=0; layer<layers; layer++) layout_xAssignment(layer(layer));
+         for(int i=0; i<3; i++) {
+            if (cancelled()) return;
+            for(int layer=0; layer<layers; layer++) layout_xAssignment(layer(layer));
+         }
       }
 
       // Calculate each node's y; we start at y==5 so that we're not touching the top-edge of the window
@@ -506,6 +516,7 @@ public final strictfp class Graph {
          py = py + ph + yJump;
       }
 
+      if (cancelled()) return;
       relayout_edges(true);
 
       // Since we're doing layout for the first time, we need to explicitly set top and bottom, since
@@ -513,6 +524,9 @@ public final strictfp class Graph {
       recalcBound(true);
    }
 
+   /** Returns true if the current thread has been interrupted (without clearing its interrupted status). */
+   private static boolean cancelled() { return Thread.currentThread().isInterrupted(); }
+
    //============================================================================================================================//
 
    /** Re-establish top/left/width/height. */
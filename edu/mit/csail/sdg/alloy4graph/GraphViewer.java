@@ -121,12 +121,15 @@ public final strictfp class GraphViewer extends JPanel {
     }
 
     /** Construct a GraphViewer that displays the given graph. */
-    public GraphViewer(final Graph graph) {
+    public GraphViewer(final Graph graph) { this(graph, true); }
+
+    /** Construct a GraphViewer that displays the given graph; if layout==false, the graph must have been laid out already. */
+    public GraphViewer(final Graph graph, boolean layout) {
         OurUtil.make(this, BLACK, WHITE, new EmptyBorder(0,0,0,0));
         setBorder(null);
         this.scale = graph.defaultScale;
         this.graph = graph;
-        graph.layout();
+        if (layout) graph.layout();
         final JMenuItem zoomIn = new JMenuItem("Zoom In");
         final JMenuItem zoomOut = new JMenuItem("Zoom Out");
         final JMenuItem zoomToFit = new JMenuItem("Zoom to Fit");
@@ -362,7 +365,6 @@ public final strictfp class GraphViewer extends JPanel {
        if (filename.exists() && !OurDialog.askOverwrite(filename.getAbsolutePath())) return;
        // Attempt to write the PNG or PDF file
        try {
-          System.gc(); // Try to avoid possible premature out-of-memory exceptions
           if (b3.isSelected())
              alloySaveAsPDF(filename.getAbsolutePath(), (int)dpi);
           else
@@ -374,15 +376,32 @@ public final strictfp class GraphViewer extends JPanel {
        }
     }
 
-    /** Export the current drawing as a PDF file with the given image resolution. */
-    public void alloySaveAsPDF(String filename, int dpi) throws IOException {
+    /** Export the current drawing as a PDF file with the given image resolution.
+     * <p> If the graph would have to be shrunk to less than 3/4 of its on-screen size to fit on one page,
+     * it is instead tiled at 3/4 of its on-screen size across as many letter-size pages as necessary.
+     */
+    public void alloySaveAsPDF(String filename, int dpi) throws IOException { saveAsPDF(graph, filename, dpi); }
+
+    /** Export the given graph (which must have been laid out already) as a PDF file with the given image resolution.
+     * <p> This method does not require a GraphViewer, and can be called by any thread (even in headless mode)
+     * as long as no other thread is using the same graph.
+     * @see #alloySaveAsPDF(String, int)
+     */
+    public static void saveAsPDF(Graph graph, String filename, int dpi) throws IOException {
        try {
           double xwidth = dpi*8L+(dpi/2L); // Width is up to 8.5 inch
           double xheight = dpi*11L;        // Height is up to 11 inch
           double scale1 = (xwidth-dpi)  / graph.getTotalWidth();  // We leave 0.5 inch on the left and right
           double scale2 = (xheight-dpi) / graph.getTotalHeight(); // We leave 0.5 inch on the left and right
           if (scale1<scale2) scale2=scale1; // Choose the scale such that the image does not exceed the page in either direction
-          OurPDFWriter x = new OurPDFWriter(filename, dpi, scale2);
+          double smallest = dpi * 0.75D / 96D; // The on-screen size assumes 96 pixels per inch
+          OurPDFWriter x;
+          if (scale2 >= smallest) {
+             x = new OurPDFWriter(filename, dpi, scale2);
+          } else {
+             scale2 = smallest; // The graph will be tiled, and must be drawn at the same scale as the tiles
+             x = new OurPDFWriter(filename, dpi, scale2, graph.getTotalWidth(), graph.getTotalHeight());
+          }
           graph.draw(new Artist(x), scale2, null, false);
           x.close();
        } catch(Throwable ex) {
@@ -391,21 +410,46 @@ public final strictfp class GraphViewer extends JPanel {
        }
     }
 
-    /** Export the current drawing as a PNG file with the given file name and image resolution. */
+    /** The maximum number of pixels in each horizontal strip rendered by alloySaveAsPNG. */
+    private static final int STRIP_PIXELS = 4*1024*1024;
+
+    /** Export the current drawing as a PNG file with the given file name and image resolution.
+     * <p> The image is rendered and written one horizontal strip at a time,
+     * so the memory needed does not grow with the height of the image.
+     */
     public void alloySaveAsPNG(String filename, double scale, double dpiX, double dpiY) throws IOException {
+       saveAsPNG(graph, filename, scale, dpiX, dpiY);
+    }
+
+    /** Export the given graph (which must have been laid out already) as a PNG file with the given file name and image resolution.
+     * <p> This method does not require a GraphViewer, and can be called by any thread (even in headless mode)
+     * as long as no other thread is using the same graph.
+     * @see #alloySaveAsPNG(String, double, double, double)
+     */
+    public static void saveAsPNG(Graph graph, String filename, double scale, double dpiX, double dpiY) throws IOException {
+       OurPNGWriter png = null;
        try {
           int width = (int) (graph.getTotalWidth()*scale);   if (width<10) width=10;
           int height = (int) (graph.getTotalHeight()*scale); if (height<10) height=10;
-          BufferedImage bf = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-          Graphics2D gr = (Graphics2D) (bf.getGraphics());
-          gr.setColor(WHITE);
-          gr.fillRect(0, 0, width, height);
-          gr.setColor(BLACK);
-          gr.scale(scale,scale);
-          gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-          graph.draw(new Artist(gr), scale, null, false);
-          OurPNGWriter.writePNG(bf, filename, dpiX, dpiY);
+          int stripHeight = Math.max(1, Math.min(height, STRIP_PIXELS/width));
+          BufferedImage bf = new BufferedImage(width, stripHeight, BufferedImage.TYPE_INT_RGB);
+          png = new OurPNGWriter(filename, width, height, dpiX, dpiY);
+          for(int y=0; y<height; y=y+stripHeight) {
+             Graphics2D gr = (Graphics2D) (bf.getGraphics());
+             gr.setColor(WHITE);
+             gr.fillRect(0, 0, width, stripHeight);
+             gr.setColor(BLACK);
+             gr.translate(0, -y);
+             gr.scale(scale,scale);
+             gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+             graph.draw(new Artist(gr), scale, null, false);
+             gr.dispose();
+             png.writeStrip(bf, Math.min(stripHeight, height-y));
+          }
+          png.close();
        } catch(Throwable ex) {
+          if (png!=null) png.abort();
+          if (ex instanceof OutOfMemoryError) throw new IOException("Out of memory trying to save the PNG file to " + filename);
           if (ex instanceof IOException) throw (IOException)ex;
           throw new IOException("Failure writing the PNG file to " + filename + " (" + ex + ")");
        }
@@ -0,0 +1,126 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4graph;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/** This class exports a graph that is too wide for one page as a tiled PDF, and checks that the last page is not blank.
+ *
+ * <p> The graph is a single row of unconnected nodes, more than 32767 units wide, so that the last column of pages
+ * lies beyond the coordinates that PDF readers were once limited to.
+ * We then read the PDF back: the page content gives the portion of the drawing that the last page shows,
+ * and the drawing itself gives the points of every path; the test passes if one of those points is inside
+ * both that portion and the drawing's /BBox (since the drawing is clipped to its /BBox when it is shown).
+ *
+ * <p> The optional argument is the PDF file to write (by default, a temporary file that is deleted afterwards).
+ * The exit code is 1 if the check failed.
+ */
+
+public final strictfp class PDFTileTest {
+
+   /** The number of nodes in the graph. */
+   private static final int NODES = 1000;
+
+   /** The dots-per-inch of the PDF. */
+   private static final int DPI = 300;
+
+   /** The constructor is private, since this class only has static methods. */
+   private PDFTileTest() { }
+
+   /** Returns the numbers in the given PDF content, grouped by the operator that follows them; each entry is {operator, operands...}. */
+   private static List<Object[]> operations(String content) {
+      List<Object[]> ans = new ArrayList<Object[]>();
+      List<Object> operands = new ArrayList<Object>();
+      for(String token: content.replace('[', ' ').replace(']', ' ').split("[ \t\r\n]+")) {
+         if (token.length()==0) continue;
+         char c = token.charAt(0);
+         if ((c>='0' && c<='9') || c=='-' || c=='.') { operands.add(Double.parseDouble(token)); continue; }
+         operands.add(0, token);
+         ans.add(operands.toArray());
+         operands.clear();
+      }
+      return ans;
+   }
+
+   /** Returns the text between the "stream" keyword that precedes the given index, and the "endstream" keyword that follows it. */
+   private static String stream(String pdf, int index) {
+      int start = pdf.lastIndexOf("stream\r\n", index) + 8;
+      return pdf.substring(start, pdf.indexOf("endstream", start));
+   }
+
+   /** Check the given PDF file, and return null if it is fine, or else a message that says what is wrong. */
+   private static String check(String filename, Graph graph) throws IOException {
+      String pdf = new String(Files.readAllBytes(new File(filename).toPath()), "ISO-8859-1");
+      // The drawing's bounding box
+      int bb = pdf.indexOf("/BBox [") + 7;
+      String[] box = pdf.substring(bb, pdf.indexOf(']', bb)).trim().split(" +");
+      double boxLeft = Double.parseDouble(box[0]), boxRight = Double.parseDouble(box[2]);
+      // The last page: after flipping the page upside down, it scales the drawing, then shifts the last tile into view
+      String page = stream(pdf, pdf.lastIndexOf("/X1 Do"));
+      List<Double> cm = new ArrayList<Double>();
+      for(Object[] op: operations(page)) if (op[0].equals("cm")) { cm.add((Double)op[1]); cm.add((Double)op[5]); }
+      if (cm.size()!=6) return "the last page does not have the expected content: " + page;
+      double scale = cm.get(2), tileLeft = -cm.get(5);
+      int mb = pdf.indexOf("/MediaBox [0 0 ") + 15;
+      double tileRight = tileLeft + (Double.parseDouble(pdf.substring(mb, pdf.indexOf(' ', mb))) - DPI) / scale;
+      if (graph.getTotalWidth() <= 32767) return "the graph is only " + graph.getTotalWidth() + " units wide";
+      if (tileLeft < 32767) return "the last page starts at " + tileLeft + ", which is not beyond 32767";
+      // The drawing: the nodes are drawn after shifting the coordinate space, so we keep track of the shifts
+      int form = pdf.indexOf("/Subtype /Form");
+      int start = pdf.indexOf("stream\r\n", form) + 8;
+      InflaterInputStream in = new InflaterInputStream(new ByteArrayInputStream(pdf.substring(start).getBytes("ISO-8859-1")));
+      StringBuilder sb = new StringBuilder();
+      byte[] buf = new byte[65536];
+      for(int n; (n = in.read(buf)) > 0;) sb.append(new String(buf, 0, n, "ISO-8859-1"));
+      double dx = 0, found = Double.NaN, rightmost = Double.NEGATIVE_INFINITY;
+      for(Object[] op: operations(sb.toString())) {
+         int n = op.length - 1;
+         if (op[0].equals("cm") && n==6) dx += (Double)op[5];
+         if ((op[0].equals("m") || op[0].equals("l") || op[0].equals("c")) && n>=2) {
+            double x = (Double)op[n-1] + dx;
+            if (rightmost < x) rightmost = x;
+            if (x>=tileLeft && x<=tileRight && x>=boxLeft && x<=boxRight) found = x;
+         }
+      }
+      System.out.println("Graph width = " + graph.getTotalWidth() + ", last page shows x=" + (long)tileLeft + ".." + (long)tileRight
+            + ", /BBox x=" + (long)boxLeft + ".." + (long)boxRight + ", rightmost point x=" + (long)rightmost);
+      if (Double.isNaN(found)) return "nothing on the last page is inside the /BBox";
+      return null;
+   }
+
+   /** Main method that runs the test. */
+   public static void main(String[] args) throws Exception {
+      Graph graph = new Graph(1);
+      for(int i=0; i<NODES; i++) new GraphNode(graph, i, "Node" + i);
+      graph.layout();
+      File file = (args.length>0) ? new File(args[0]) : File.createTempFile("tile", ".pdf");
+      String error;
+      try {
+         GraphViewer.saveAsPDF(graph, file.getPath(), DPI);
+         error = check(file.getPath(), graph);
+      } finally {
+         if (args.length==0) file.delete();
+      }
+      System.out.println(error==null ? "The last page is not blank." : "FAILED: " + error);
+      System.exit(error==null ? 0 : 1);
+   }
+}
@@ -16,6 +16,7 @@
 package edu.mit.csail.sdg.alloy4viz;
 
 import java.awt.Color;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -40,7 +41,8 @@ import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
 /** This utility class generates a graph for a particular index of the projection.
  *
- * <p><b>Thread Safety:</b> Can be called only by the AWT event thread.
+ * <p><b>Thread Safety:</b> produceGraph() can be called only by the AWT event thread;
+ * produceLayout() can be called by any thread, as long as the VizState passed to it is not shared with the AWT event thread.
  */
 
 public final class StaticGraphMaker {
@@ -66,17 +68,73 @@ public final class StaticGraphMaker {
    /** This stores a set of additional labels we want to add to an existing node. */
    private final Map<GraphNode,Set<String>> attribs = new LinkedHashMap<GraphNode,Set<String>>();
 
+   /** This maps each aggregate node to the group of atoms that it represents. */
+   private final Map<GraphNode,Aggregate> aggregates = new LinkedHashMap<GraphNode,Aggregate>();
+
+   /** This maps each (type, set, set...) combination to the aggregate node representing the atoms having exactly that type and those sets. */
+   private final Map<List<Object>,GraphNode> group2node = new LinkedHashMap<List<Object>,GraphNode>();
+
+   /** The set of types whose atoms are collapsed into aggregate nodes (because there are too many of them). */
+   private final Set<AlloyType> aggregated = new TreeSet<AlloyType>();
+
+   /** This maps each (relation, start node, end node) combination to the bundle of parallel edges between those nodes. */
+   private final Map<List<Object>,Bundle> bundles = new LinkedHashMap<List<Object>,Bundle>();
+
    /** The resulting graph. */
    private final Graph graph;
 
+   /** Represents a group of atoms (of the same type, and belonging to the same sets) collapsed into a single node. */
+   static final class Aggregate {
+      /** The type of every atom in this group. */
+      final AlloyType type;
+      /** The number of atoms in this group. */
+      private int count = 0;
+      /** Constructs an empty group. */
+      private Aggregate(AlloyType type) { this.type = type; }
+      /** Returns a human-readable label for this group. */
+      @Override public String toString() { return type.getName() + " (" + count + " atoms)"; }
+   }
+
+   /** Represents a bundle of parallel edges from the same relation; it is drawn as a single edge labeled with the number of tuples. */
+   private static final class Bundle {
+      /** The relation that every tuple in this bundle belongs to. */
+      private final AlloyRelation rel;
+      /** The start and end nodes. */
+      private final GraphNode start, end;
+      /** True if every tuple in this bundle has a matching reverse tuple (so the edge is drawn with arrows at both ends). */
+      private final boolean bidirectional;
+      /** The magic color for this relation (or null if there is none). */
+      private final Color magicColor;
+      /** If the relation's arity is greater than 2, this is the set of distinct labels for the intermediate atoms. */
+      private final Set<String> middles = new TreeSet<String>();
+      /** The number of tuples in this bundle. */
+      private int count = 0;
+      /** Constructs an empty bundle. */
+      private Bundle(AlloyRelation rel, GraphNode start, GraphNode end, boolean bidirectional, Color magicColor) {
+         this.rel = rel; this.start = start; this.end = end; this.bidirectional = bidirectional; this.magicColor = magicColor;
+      }
+   }
+
+   /** The maximum number of distinct intermediate-atom labels listed on a bundled edge. */
+   private static final int MAX_BUNDLE_MIDDLES = 3;
+
    /** Produces a single Graph from the given Instance and View and choice of Projection */
    public static JPanel produceGraph(AlloyInstance instance, VizState view, AlloyProjection proj) throws ErrorFatal {
-      view = new VizState(view);
+      return new GraphViewer(produceLayout(instance, new VizState(view), proj), false);
+   }
+
+   /** Produces a single Graph from the given Instance and View and choice of Projection, and then lays it out.
+    * <p> The caller must give us a private copy of the VizState (for example, by calling "new VizState(view)" on the AWT event thread),
+    * since this method may be called from a background thread while the AWT event thread keeps modifying the original.
+    */
+   static Graph produceLayout(AlloyInstance instance, VizState view, AlloyProjection proj) throws ErrorFatal {
       if (proj == null) proj = new AlloyProjection();
       Graph graph = new Graph(view.getFontSize() / 12.0D);
       new StaticGraphMaker(graph, instance, view, proj);
       if (graph.nodes.size()==0) new GraphNode(graph, "", "Due to your theme settings, every atom is hidden.", "Please click Theme and adjust your settings.");
-      return new GraphViewer(graph);
+      if (Thread.currentThread().isInterrupted()) return graph; // the result is going to be thrown away, so don't bother laying it out
+      graph.layout();
+      return graph;
    }
 
    /** The list of colors, in order, to assign each legend. */
@@ -127,6 +185,16 @@ public final class StaticGraphMaker {
       this.view = view;
       instance = StaticProjector.project(originalInstance, proj);
       model = instance.model;
+      final int threshold = view.getAggregateThreshold();
+      if (threshold > 0) {
+         final Map<AlloyType,Integer> typeCount = new TreeMap<AlloyType,Integer>();
+         for (AlloyAtom atom: instance.getAllAtoms()) {
+            Integer n = typeCount.get(atom.getType());
+            typeCount.put(atom.getType(), n==null ? 1 : (n+1));
+         }
+         for (Map.Entry<AlloyType,Integer> e: typeCount.entrySet())
+            if (e.getValue() > threshold && !view.isExpanded(e.getKey())) aggregated.add(e.getKey());
+      }
       for (AlloyRelation rel: model.getRelations()) {
          rels.put(rel, null);
       }
@@ -162,6 +230,28 @@ public final class StaticGraphMaker {
          Set<String> set = e.getValue();
          if (set!=null) for(String s: set) if (s.length() > 0) e.getKey().addLabel(s);
       }
+      for(Map.Entry<GraphNode,Aggregate> e: aggregates.entrySet()) {
+         e.getKey().addLabel(e.getValue().count + " atoms (double-click to expand)");
+      }
+      for(Bundle b: bundles.values()) {
+         String label = view.label.get(b.rel);
+         if (label.length()>0 && b.middles.size()>0) {
+            StringBuilder moreLabel = new StringBuilder();
+            int i = 0;
+            for (String m: b.middles) {
+               if (i == MAX_BUNDLE_MIDDLES) { moreLabel.append("; ..."); break; }
+               if (i > 0) moreLabel.append("; ");
+               moreLabel.append(m);
+               i++;
+            }
+            label = label + " [" + moreLabel + "]";
+         }
+         label = (label.length()==0) ? ("(" + b.count + ")") : (label + " (" + b.count + ")");
+         boolean layoutBack = view.layoutBack.resolve(b.rel);
+         DotDirection dir = b.bidirectional ? DotDirection.BOTH : (layoutBack ? DotDirection.BACK : DotDirection.FORWARD);
+         GraphEdge e = new GraphEdge((layoutBack ? b.end : b.start), (layoutBack ? b.start : b.end), b.rel, label, b.rel);
+         style(e, b.rel, dir, b.magicColor);
+      }
       for(Map.Entry<AlloyRelation,Integer> e: rels.entrySet()) {
          Color c = magicColor.get(e.getKey());
          if (c==null) c = Color.BLACK;
@@ -179,12 +269,27 @@ public final class StaticGraphMaker {
       if ( (hidePrivate && atom.getType().isPrivate)
             || (hideMeta    && atom.getType().isMeta)
             || !view.nodeVisible(atom, instance)) return null;
+      // If this atom's type has too many atoms, then all atoms with the same type and sets share one aggregate node
+      List<Object> group = null;
+      if (aggregated.contains(atom.getType())) {
+         group = new ArrayList<Object>();
+         group.add(atom.getType());
+         group.addAll(instance.atom2sets(atom));
+         node = group2node.get(group);
+         if (node!=null) {
+            aggregates.get(node).count++;
+            atom2node.put(atom,node);
+            return node;
+         }
+      }
       // Make the node
       DotColor color = view.nodeColor(atom, instance);
       DotStyle style = view.nodeStyle(atom, instance);
       DotShape shape = view.shape(atom, instance);
-      String label = atomname(atom, false);
-      node = new GraphNode(graph, atom, label).set(shape).set(color.getColor(view.getNodePalette())).set(style);
+      Aggregate aggregate = (group==null) ? null : new Aggregate(atom.getType());
+      String label = (group==null) ? atomname(atom, false) : view.label.get(atom.getType());
+      if (group!=null && label.length()==0) label = atom.getType().getName();
+      node = new GraphNode(graph, (group==null ? atom : aggregate), label).set(shape).set(color.getColor(view.getNodePalette())).set(style);
       // Get the label based on the sets and relations
       String setsLabel="";
       boolean showLabelByDefault = view.showAsLabel.get(null);
@@ -199,7 +304,13 @@ public final class StaticGraphMaker {
          if (list==null) attribs.put(node, list=new TreeSet<String>());
          list.add("("+setsLabel+")");
       }
-      nodes.put(node,atom);
+      if (group!=null) {
+         aggregate.count++;
+         aggregates.put(node,aggregate);
+         group2node.put(group,node);
+      } else {
+         nodes.put(node,atom);
+      }
       atom2node.put(atom,node);
       return node;
    }
@@ -222,29 +333,54 @@ public final class StaticGraphMaker {
       GraphNode start = createNode(hidePrivate, hideMeta, tuple.getStart());
       GraphNode end = createNode(hidePrivate, hideMeta, tuple.getEnd());
       if (start==null || end==null) return false;
-      boolean layoutBack = view.layoutBack.resolve(rel);
-      String label = view.label.get(rel);
+      StringBuilder moreLabel = null;
       if (tuple.getArity() > 2) {
-         StringBuilder moreLabel = new StringBuilder();
+         moreLabel = new StringBuilder();
          List<AlloyAtom> atoms=tuple.getAtoms();
          for (int i=1; i<atoms.size()-1; i++) {
             if (i>1) moreLabel.append(", ");
             moreLabel.append(atomname(atoms.get(i),false));
          }
+      }
+      if (aggregates.containsKey(start) || aggregates.containsKey(end)) {
+         // Parallel edges touching an aggregate node are bundled into a single edge per relation and direction
+         bundle(rel, start, end, bidirectional, moreLabel==null ? null : moreLabel.toString(), magicColor);
+         return true;
+      }
+      boolean layoutBack = view.layoutBack.resolve(rel);
+      String label = view.label.get(rel);
+      if (moreLabel != null) {
          if (label.length()==0) { /* label=moreLabel.toString(); */ }
          else { label=label+(" ["+moreLabel+"]"); }
       }
       DotDirection dir = bidirectional ? DotDirection.BOTH : (layoutBack ? DotDirection.BACK : DotDirection.FORWARD);
+      GraphEdge e = new GraphEdge((layoutBack ? end : start), (layoutBack ? start : end), tuple, label, rel);
+      style(e, rel, dir, magicColor);
+      edges.put(e, tuple);
+      return true;
+   }
+
+   /** Add one tuple (or, if bidirectional, one tuple and its reverse) to the bundle of parallel edges from the given relation
+    * between the given start and end nodes; middle is the label of the tuple's intermediate atoms (or null if its arity is 2).
+    */
+   private void bundle(AlloyRelation rel, GraphNode start, GraphNode end, boolean bidirectional, String middle, Color magicColor) {
+      List<Object> key = Util.<Object>asList(rel, start, end, bidirectional);
+      Bundle b = bundles.get(key);
+      if (b==null && bidirectional) b = bundles.get(Util.<Object>asList(rel, end, start, bidirectional));
+      if (b==null) bundles.put(key, b=new Bundle(rel, start, end, bidirectional, magicColor));
+      if (middle!=null) b.middles.add(middle);
+      b.count += bidirectional ? 2 : 1;
+   }
+
+   /** Set the color, style, direction, and weight of an edge representing tuple(s) from the given relation. */
+   private void style(GraphEdge e, AlloyRelation rel, DotDirection dir, Color magicColor) {
       DotStyle style = view.edgeStyle.resolve(rel);
       DotColor color = view.edgeColor.resolve(rel);
       int weight = view.weight.get(rel);
-      GraphEdge e = new GraphEdge((layoutBack ? end : start), (layoutBack ? start : end), tuple, label, rel);
       if (color == DotColor.MAGIC && magicColor != null) e.set(magicColor); else e.set(color.getColor(view.getEdgePalette()));
       e.set(style);
       e.set(dir!=DotDirection.FORWARD, dir!=DotDirection.BACK);
       e.set(weight<1 ? 1 : (weight>100 ? 10000 : 100*weight));
-      edges.put(e, tuple);
-      return true;
    }
 
    /** Create edges for every visible tuple in the given relation. */
@@ -293,6 +429,7 @@ public final class StaticGraphMaker {
       for (AlloyTuple tuple: instance.relation2tuples(rel)) {
          GraphNode start=atom2node.get(tuple.getStart());
          if (start==null) continue; // null means the node won't be shown, so we can't show any attributes
+         if (aggregates.containsKey(start)) continue; // an aggregate node would accumulate the attributes of every atom in it
          String attr="";
          List<AlloyAtom> atoms=tuple.getAtoms();
          for (int i=1; i<atoms.size(); i++) {
@@ -83,6 +83,12 @@ public final class StaticInstanceReader {
    /** This maps each AlloyAtom label to the AlloyAtom we created for it. */
    private final Map<String,AlloyAtom> string2atom = new LinkedHashMap<String,AlloyAtom>();
 
+   /** This caches string2atom.get(index2atomNames[i]) for each atom index i that we've looked up so far. */
+   private AlloyAtom[] index2atom = null;
+
+   /** The atom name table that index2atom was built for. */
+   private String[] index2atomNames = null;
+
    /** Create a new AlloyType whose label is unambiguous with any existing one. */
    private AlloyType makeType(String label, boolean isOne, boolean isAbstract, boolean isBuiltin, boolean isPrivate, boolean isMeta, boolean isEnum) {
       if (label.startsWith("this/")) label = label.substring(5);
@@ -180,6 +186,14 @@ public final class StaticInstanceReader {
       }
    }
 
+   /** Returns the AlloyAtom whose name is names[index] (or null if there is none); the answer is cached by index, since every tupleset of a solution shares the same names table. */
+   private AlloyAtom atom(String[] names, int index) {
+      if (index2atom==null || index2atomNames!=names) { index2atom = new AlloyAtom[names.length]; index2atomNames = names; }
+      AlloyAtom ans = index2atom[index];
+      if (ans==null) { ans = string2atom.get(names[index]); index2atom[index] = ans; }
+      return ans;
+   }
+
    /** Construct an AlloySet or AlloyRelation corresponding to the given expression. */
    private void setOrRel(A4Solution sol, String label, Expr expr, boolean isPrivate, boolean isMeta) throws Err {
       for(List<PrimSig> ps:expr.type().fold()) {
@@ -187,9 +201,10 @@ public final class StaticInstanceReader {
             PrimSig t = ps.get(0);
             AlloySet set = makeSet(label, isPrivate, isMeta, sig(t));
             sets.add(set);
-            for(A4Tuple tp: (A4TupleSet)(sol.eval(expr.intersect(t)))) {
-               atom2sets.get(string2atom.get(tp.atom(0))).add(set);
-            }
+            A4TupleSet tps = (A4TupleSet)(sol.eval(expr.intersect(t)));
+            int[] indices = tps.atoms();
+            String[] names = tps.atomNames();
+            for(int i=0; i<indices.length; i++) atom2sets.get(atom(names, indices[i])).add(set);
          } else {
             Expr mask = null;
             List<AlloyType> types = new ArrayList<AlloyType>(ps.size());
@@ -199,11 +214,14 @@ public final class StaticInstanceReader {
             }
             AlloyRelation rel = makeRel(label, isPrivate, isMeta, types);
             Set<AlloyTuple> ts = new LinkedHashSet<AlloyTuple>();
-            for(A4Tuple tp: (A4TupleSet)(sol.eval(expr.intersect(mask)))) { 
-               AlloyAtom[] atoms = new AlloyAtom[tp.arity()];
-               for(int i=0; i<tp.arity(); i++) {
-                  atoms[i] = string2atom.get(tp.atom(i));
-                  if (atoms[i]==null) throw new ErrorFatal("Unexpected XML inconsistency: cannot resolve atom "+tp.atom(i));
+            A4TupleSet tps = (A4TupleSet)(sol.eval(expr.intersect(mask)));
+            int[] indices = tps.atoms();
+            String[] names = tps.atomNames();
+            for(int n=tps.arity(), j=0; j<indices.length; j+=n) {
+               AlloyAtom[] atoms = new AlloyAtom[n];
+               for(int i=0; i<n; i++) {
+                  atoms[i] = atom(names, indices[j+i]);
+                  if (atoms[i]==null) throw new ErrorFatal("Unexpected XML inconsistency: cannot resolve atom "+names[indices[j+i]]);
                }
                ts.add(new AlloyTuple(atoms));
             }
@@ -75,7 +75,7 @@ public final class StaticThemeReaderWriter {
    /** Does nothing if the element is malformed. */
    private static void parseView(final XMLNode x, VizState now) {
       /*
-       * <view orientation=".." nodetheme=".." edgetheme=".." hidePrivate="yes/no" hideMeta="yes/no" useOriginalAtomNames="yes/no" fontsize="12">
+       * <view orientation=".." nodetheme=".." edgetheme=".." hidePrivate="yes/no" hideMeta="yes/no" useOriginalAtomNames="yes/no" fontsize="12" aggregate="100">
        *   <projection> .. </projection>
        *   <defaultnode../>
        *   <defaultedge../>
@@ -93,6 +93,7 @@ public final class StaticThemeReaderWriter {
       if (has(x,"hidePrivate")) now.hidePrivate(getbool(x,"hidePrivate"));
       if (has(x,"hideMeta")) now.hideMeta(getbool(x,"hideMeta"));
       if (has(x,"fontsize")) now.setFontSize(getint(x,"fontsize"));
+      if (has(x,"aggregate")) now.setAggregateThreshold(getint(x,"aggregate"));
       if (has(x,"nodetheme")) now.setNodePalette(parseDotPalette(x,"nodetheme"));
       if (has(x,"edgetheme")) now.setEdgePalette(parseDotPalette(x,"edgetheme"));
       for(XMLNode xml:x) {
@@ -141,6 +142,9 @@ public final class StaticThemeReaderWriter {
       if (view.getFontSize()!=defaultView.getFontSize()) {
          out.write(" fontsize=\""+view.getFontSize()+"\"");
       }
+      if (view.getAggregateThreshold()!=defaultView.getAggregateThreshold()) {
+         out.write(" aggregate=\""+view.getAggregateThreshold()+"\"");
+      }
       out.write(">\n");
       if (view.getProjectedTypes().size()>0) writeProjectionList(out, view.getProjectedTypes());
       out.write("\n<defaultnode" + writeNodeViz(view, defaultView, null));
@@ -0,0 +1,174 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4viz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.MailBug;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+import edu.mit.csail.sdg.alloy4graph.GraphViewer;
+
+/** This utility class renders every state of a trace to PNG or PDF files without opening the visualizer.
+ *
+ * <p> The graphs are built with StaticGraphMaker and laid out off-screen, in parallel across the available processors;
+ * it works in headless mode (-Djava.awt.headless=true), so it can be used on a build server to review counterexamples.
+ *
+ * <p> From the command line:
+ * <pre>
+ * java edu.mit.csail.sdg.alloy4viz.StaticTraceRenderer [-theme FILE.thm] [-pdf] [-dpi N] [-threads N] -out PREFIX STATE0.xml STATE1.xml...
+ * </pre>
+ * which writes PREFIX0.png, PREFIX1.png... (or .pdf) and prints how long each state took.
+ * The dpi is 72 by default for PNG and 300 for PDF; for PDF it must be between 50 and 3000.
+ *
+ * <p><b>Thread Safety:</b> Safe.
+ */
+
+public final class StaticTraceRenderer {
+
+   /** The constructor is private, since this utility class never needs to be instantiated. */
+   private StaticTraceRenderer() { }
+
+   /** This lock serializes the parsing of XML files, since A4SolutionReader was never meant to be called by several threads at once. */
+   private static final Object parseLock = new Object();
+
+   /** Render one state, then return a line describing how long each step took. */
+   private static String renderOne(File xml, String theme, String output, boolean pdf, int dpi) throws Exception {
+      long start = System.currentTimeMillis();
+      AlloyInstance instance;
+      synchronized(parseLock) { instance = StaticInstanceReader.parseInstance(xml); }
+      VizState view = new VizState(instance);
+      if (theme!=null) view.loadPaletteXML(theme);
+      long parsed = System.currentTimeMillis();
+      Graph graph = StaticGraphMaker.produceLayout(instance, view, null);
+      long laidOut = System.currentTimeMillis();
+      if (pdf) GraphViewer.saveAsPDF(graph, output, dpi); else GraphViewer.saveAsPNG(graph, output, dpi/72.0D, dpi, dpi);
+      long rendered = System.currentTimeMillis();
+      return output + ": parse " + (parsed-start) + "ms, layout " + (laidOut-parsed) + "ms, render " + (rendered-laidOut)
+         + "ms, total " + (rendered-start) + "ms";
+   }
+
+   /** Render each given XML instance file into outputPrefix+i+".png" (or ".pdf") using the given theme (which can be null);
+    * the files are rendered in parallel using the given number of threads (if threads&lt;1, we use one thread per processor).
+    * <p> If log!=null, a line with the timing of each state is written to it (in the same order as the input files).
+    * @return the list of output filenames, in the same order as the input files
+    * @throws IOException if one or more states could not be rendered (the other states are still rendered)
+    */
+   public static List<String> render(List<File> states, String theme, String outputPrefix, boolean pdf, int dpi, int threads, PrintStream log) throws IOException {
+      if (threads<1) threads = Runtime.getRuntime().availableProcessors();
+      final List<String> outputs = new ArrayList<String>(states.size());
+      final List<Future<String>> results = new ArrayList<Future<String>>(states.size());
+      final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, states.size())));
+      try {
+         for(int i=0; i<states.size(); i++) {
+            final File xml = states.get(i);
+            final String theTheme = theme, output = outputPrefix + i + (pdf ? ".pdf" : ".png");
+            final boolean thePdf = pdf;
+            final int theDpi = dpi;
+            outputs.add(output);
+            results.add(pool.submit(new Callable<String>() {
+               public String call() throws Exception { return renderOne(xml, theTheme, output, thePdf, theDpi); }
+            }));
+         }
+         String error = null;
+         for(int i=0; i<results.size(); i++) {
+            String msg;
+            try {
+               msg = results.get(i).get();
+            } catch(ExecutionException ex) {
+               Throwable cause = (ex.getCause()!=null) ? ex.getCause() : ex;
+               msg = outputs.get(i) + ": failed (" + cause + ")";
+               if (error==null) error = "Error rendering " + states.get(i) + ":\n" + MailBug.dump(cause);
+            } catch(InterruptedException ex) {
+               throw new IOException("Interrupted while rendering the trace.");
+            }
+            if (log!=null) log.println(msg);
+         }
+         if (error!=null) throw new IOException(error);
+         return outputs;
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   /** Render every state of the given solution into outputPrefix+i+".png" (or ".pdf") using the given theme (which can be null).
+    * <p> Each state is first written into a temporary XML file (one at a time, since A4Solution is not thread-safe),
+    * and then they are rendered in parallel as in render(List, String, String, boolean, int, int, PrintStream).
+    * @return the list of output filenames, in state order
+    */
+   public static List<String> render(A4Solution solution, String theme, String outputPrefix, boolean pdf, int dpi, int threads, PrintStream log) throws Err, IOException {
+      if (!solution.satisfiable()) throw new ErrorFatal("The solution is unsatisfiable, so there is nothing to render.");
+      final List<File> states = new ArrayList<File>();
+      try {
+         for(int i=0; i<=solution.getLastTrace(); i++) {
+            File tmp = File.createTempFile("alloy_state" + i + "_", ".xml");
+            states.add(tmp);
+            solution.writeXML(tmp.getAbsolutePath(), i);
+         }
+         return render(states, theme, outputPrefix, pdf, dpi, threads, log);
+      } finally {
+         for(File f: states) f.delete();
+      }
+   }
+
+   /** The command-line entry point; see the class documentation for the usage. */
+   public static void main(String[] args) throws Exception {
+      System.setProperty("java.awt.headless", "true");
+      String theme = null, prefix = null;
+      boolean pdf = false, dpiGiven = false;
+      int dpi = 0, threads = 0;
+      List<File> states = new ArrayList<File>();
+      for(int i=0; i<args.length; i++) {
+         String a = args[i];
+         if (a.equals("-pdf")) pdf = true;
+         else if (a.equals("-theme") && i+1<args.length) theme = Util.canon(args[++i]);
+         else if (a.equals("-out") && i+1<args.length) prefix = args[++i];
+         else if (a.equals("-dpi") && i+1<args.length) { dpi = Integer.parseInt(args[++i]); dpiGiven = true; }
+         else if (a.equals("-threads") && i+1<args.length) threads = Integer.parseInt(args[++i]);
+         else states.add(new File(a));
+      }
+      if (prefix==null || states.size()==0) {
+         System.err.println("Usage: java " + StaticTraceRenderer.class.getName()
+            + " [-theme FILE.thm] [-pdf] [-dpi N] [-threads N] -out PREFIX STATE0.xml STATE1.xml...");
+         System.exit(1);
+      }
+      if (!dpiGiven) dpi = pdf ? 300 : 72;
+      if (pdf ? (dpi<50 || dpi>3000) : (dpi<1)) {
+         System.err.println(pdf ? "The -dpi for a PDF must be between 50 and 3000." : "The -dpi must be at least 1.");
+         System.exit(1);
+      }
+      long start = System.currentTimeMillis();
+      try {
+         render(states, theme, prefix, pdf, dpi, threads, System.out);
+      } catch(IOException ex) {
+         System.err.println(ex.getMessage());
+         System.exit(1);
+      }
+      System.out.println("Rendered " + states.size() + " states in " + (System.currentTimeMillis()-start) + "ms.");
+   }
+}
@@ -360,10 +360,17 @@ public final class VizCustomizationPanel extends JPanel {
       JLabel pLabel = OurUtil.label("Hide private sigs/relations:");
       JLabel mLabel = OurUtil.label("Hide meta sigs/relations:");
       JLabel fLabel = OurUtil.label("Font Size:");
+      JLabel gLabel = OurUtil.label("Group atoms of a type above:");
       JComboBox fontSize = new OurCombobox(false, fontSizes.toArray(), 60, 32, vizState.getFontSize()) {
          private static final long serialVersionUID = 0;
          @Override public void do_changed(Object value) { if (fontSizes.contains(value)) vizState.setFontSize((Integer)value); }
       };
+      final List<Integer> thresholds = Util.asList(0,20,50,100,200,500,1000,5000);
+      JComboBox aggregate = new OurCombobox(false, thresholds.toArray(), 80, 32, vizState.getAggregateThreshold()) {
+         private static final long serialVersionUID = 0;
+         @Override public String do_getText(Object value) { return Integer.valueOf(0).equals(value) ? "Never" : (value+" atoms"); }
+         @Override public void do_changed(Object value) { if (thresholds.contains(value)) vizState.setAggregateThreshold((Integer)value); }
+      };
       JComboBox nodepal = new OurCombobox(false, DotPalette.values(), 100, 32, vizState.getNodePalette()) {
          private static final long serialVersionUID = 0;
          @Override public String do_getText(Object value) { return ((DotPalette)value).getDisplayedText(); }
@@ -392,6 +399,7 @@ public final class VizCustomizationPanel extends JPanel {
       parent.add(OurUtil.makeH(wcolor, 25, eLabel, 5, edgepal, 8, fLabel, 5, fontSize, 2, null));
       parent.add(OurUtil.makeH(wcolor, 25, pLabel, 5, priv,    2, null));
       parent.add(OurUtil.makeH(wcolor, 25, mLabel, 5, meta,    2, null));
+      parent.add(OurUtil.makeH(wcolor, 25, gLabel, 5, aggregate, 2, null));
    }
 
    //=============================================================================================================//
@@ -39,6 +39,7 @@ import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
@@ -51,6 +52,7 @@ import edu.mit.csail.sdg.alloy4.ConstList;
 import edu.mit.csail.sdg.alloy4.OurBorder;
 import edu.mit.csail.sdg.alloy4.OurCombobox;
 import edu.mit.csail.sdg.alloy4.OurUtil;
+import edu.mit.csail.sdg.alloy4.Runner;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
@@ -93,6 +95,21 @@ public final class VizGraphPanel extends JPanel {
 	/** The current projection choice; null if no projection is in effect. */
 	private AlloyProjection currentProjection = null;
 
+	/** The status line at the bottom of the navPanel, showing how long the current graph took to build. */
+	private final JLabel status = OurUtil.label(" ", Color.GRAY);
+
+	/** This is called (on the AWT event thread) once a graph being built in the background is ready; remakeAll() then picks it up from the cache. */
+	private final Runner graphReady = new Runner() {
+		private static final long serialVersionUID = 0;
+
+		public void run() {
+		}
+
+		public void run(Object arg) {
+			remakeAll();
+		}
+	};
+
 	/** This is the list of TypePanel(s) we've already constructed. */
 	private final Map<AlloyType, TypePanel> type2panel = new TreeMap<AlloyType, TypePanel>();
 
@@ -299,8 +316,11 @@ public final class VizGraphPanel extends JPanel {
 			navPanel.add(tp);
 			map.put(tp.getAlloyType(), tp.getAlloyAtom());
 		}
+		navPanel.add(status);
 		currentProjection = new AlloyProjection(map);
-		JPanel graph = vizState.getGraph(currentProjection);
+		JPanel graph = vizState.getGraph(currentProjection, graphReady);
+		Long millis = vizState.getBuildTime(currentProjection);
+		status.setText(millis == null ? " " : ("Graph built in " + millis + "ms"));
 		if (seeDot && (graph instanceof GraphViewer)) {
 			viewer = null;
 			JTextArea txt = OurUtil.textarea(graph.toString(), 10, 10, false, true, getFont());
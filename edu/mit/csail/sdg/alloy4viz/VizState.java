@@ -17,23 +17,34 @@ package edu.mit.csail.sdg.alloy4viz;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.Icon;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.border.EmptyBorder;
 
 import edu.mit.csail.sdg.alloy4.ConstSet;
 import edu.mit.csail.sdg.alloy4.MailBug;
 import edu.mit.csail.sdg.alloy4.OurCheckbox;
 import edu.mit.csail.sdg.alloy4.OurUtil;
+import edu.mit.csail.sdg.alloy4.Runner;
 import edu.mit.csail.sdg.alloy4graph.DotColor;
 import edu.mit.csail.sdg.alloy4graph.DotPalette;
 import edu.mit.csail.sdg.alloy4graph.DotShape;
 import edu.mit.csail.sdg.alloy4graph.DotStyle;
+import edu.mit.csail.sdg.alloy4graph.Graph;
+import edu.mit.csail.sdg.alloy4graph.GraphViewer;
 
 /** Mutable; this stores an unprojected model as well as the current theme customization.
  *
@@ -60,6 +71,8 @@ public final class VizState {
       hidePrivate = old.hidePrivate;
       hideMeta = old.hideMeta;
       fontSize = old.fontSize;
+      aggregateThreshold = old.aggregateThreshold;
+      expanded.addAll(old.expanded);
       nodePalette = old.nodePalette;
       edgePalette = old.edgePalette;
       nodeColor.putAll(old.nodeColor);
@@ -90,6 +103,8 @@ public final class VizState {
       hidePrivate = true;
       hideMeta    = true;
       fontSize    = 12;
+      aggregateThreshold = 100;
+      expanded.clear();
       nodePalette = DotPalette.CLASSIC;
       edgePalette = DotPalette.CLASSIC;
       nodeColor.clear();       nodeColor.put(null, DotColor.WHITE);
@@ -126,7 +141,7 @@ public final class VizState {
       edgeColor.put(ext,DotColor.BLACK); weight.put(ext,100); layoutBack.put(ext,true);
       edgeColor.put(in,DotColor.BLACK); weight.put(in,100); layoutBack.put(in,true);
       // Done
-      cache.clear();
+      flush();
       changedSinceLastSave=false;
    }
 
@@ -137,7 +152,7 @@ public final class VizState {
       this.originalInstance=unprojectedInstance;
       for (AlloyType t:getProjectedTypes()) if (!unprojectedInstance.model.hasType(t)) projectedTypes.remove(t);
       currentModel = StaticProjector.project(unprojectedInstance.model, projectedTypes);
-      cache.clear();
+      flush();
    }
 
    /** Erase the current theme customizations and then load it from a file.
@@ -146,7 +161,7 @@ public final class VizState {
    public void loadPaletteXML(String filename) throws IOException {
       resetTheme();
       StaticThemeReaderWriter.readAlloy(filename,this);
-      cache.clear();
+      flush();
       changedSinceLastSave=false;
    }
 
@@ -161,26 +176,144 @@ public final class VizState {
    /** Caches previously generated graphs. */
    private LinkedHashMap<AlloyProjection,JPanel> cache=new LinkedHashMap<AlloyProjection,JPanel>();
 
+   /** For each cached graph that was built in the background, this stores how long (in milliseconds) it took to build. */
+   private final LinkedHashMap<AlloyProjection,Long> buildTime=new LinkedHashMap<AlloyProjection,Long>();
+
+   /** The background thread that constructs and lays out graphs on behalf of getGraph(projection,whenReady). */
+   private static final ExecutorService builder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "Alloy graph builder");
+         t.setDaemon(true);
+         t.setPriority(Thread.NORM_PRIORITY - 1);
+         return t;
+      }
+   });
+
+   /** The graph computation currently running in the background (or null if there is none). */
+   private Future<?> pending = null;
+
+   /** The projection that the pending graph computation is for (or null if there is none). */
+   private AlloyProjection pendingProjection = null;
+
+   /** This is incremented every time the cache is flushed, so that stale background computations can detect they are obsolete. */
+   private int generation = 0;
+
+   /** Flush any cached generated graphs, and cancel the background computation (if any). */
+   private void flush() {
+      cache.clear();
+      buildTime.clear();
+      generation++;
+      if (pending!=null) { pending.cancel(true); pending=null; pendingProjection=null; }
+   }
+
+   /** Returns a panel that displays the given error. */
+   private static JPanel errorPanel(Throwable ex) {
+      String msg = "An error has occurred: " + ex + "\n\nStackTrace:\n" + MailBug.dump(ex) + "\n";
+      JScrollPane scroll = OurUtil.scrollpane(OurUtil.textarea(msg, 0, 0, false, false));
+      JPanel ans = new JPanel();
+      ans.setLayout(new BorderLayout());
+      ans.add(scroll, BorderLayout.CENTER);
+      ans.setBackground(Color.WHITE);
+      return ans;
+   }
+
+   /** Returns a GraphViewer for the given graph (which must have been laid out already);
+    * double-clicking on an aggregate node in it will expand that node's type and then refresh the enclosing VizGraphPanel.
+    */
+   private GraphViewer viewer(Graph graph) {
+      final GraphViewer viewer = new GraphViewer(graph, false);
+      viewer.addMouseListener(new MouseAdapter() {
+         @Override public void mouseClicked(MouseEvent ev) {
+            if (ev.getClickCount()!=2 || ev.getButton()!=MouseEvent.BUTTON1) return;
+            Object x = viewer.alloyGetAnnotationAtXY(ev.getX(), ev.getY());
+            if (!(x instanceof StaticGraphMaker.Aggregate)) return;
+            expand(((StaticGraphMaker.Aggregate)x).type);
+            VizGraphPanel panel = (VizGraphPanel) SwingUtilities.getAncestorOfClass(VizGraphPanel.class, viewer);
+            if (panel!=null) panel.remakeAll();
+         }
+      });
+      return viewer;
+   }
+
    /** Generate a VizGraphPanel for a given projection choice, using the current settings. */
    public JPanel getGraph(AlloyProjection projectionChoice) {
       JPanel ans = cache.get(projectionChoice);
       if (ans!=null) return ans;
       AlloyInstance inst = originalInstance;
       try {
-         ans = StaticGraphMaker.produceGraph(inst, this, projectionChoice);
+         ans = viewer(StaticGraphMaker.produceLayout(inst, new VizState(this), projectionChoice));
          cache.put(projectionChoice, ans);
       } catch(Throwable ex) {
-         String msg = "An error has occurred: " + ex + "\n\nStackTrace:\n" + MailBug.dump(ex) + "\n";
-         JScrollPane scroll = OurUtil.scrollpane(OurUtil.textarea(msg, 0, 0, false, false));
-         ans = new JPanel();
-         ans.setLayout(new BorderLayout());
-         ans.add(scroll, BorderLayout.CENTER);
-         ans.setBackground(Color.WHITE);
+         ans = errorPanel(ex);
       }
       ans.setBorder(null);
       return ans;
    }
 
+   /** Generate a VizGraphPanel for a given projection choice, using the current settings, without blocking the AWT event thread.
+    *
+    * <p> If the graph is already cached, it is returned right away. Otherwise, the graph is constructed and laid out
+    * on a background thread, and a placeholder panel is returned; once the graph is ready, it is cached and
+    * whenReady.run(millis) is called on the AWT event thread (where millis is a Long denoting the time it took to build the graph),
+    * so the caller can call getGraph again to retrieve it.
+    *
+    * <p> Any previous background computation for a different projection is cancelled;
+    * and any change to the theme or the projection cancels the background computation as well (without calling whenReady).
+    */
+   public JPanel getGraph(final AlloyProjection projectionChoice, final Runner whenReady) {
+      JPanel ans = cache.get(projectionChoice);
+      if (ans!=null) return ans;
+      if (pending==null || !projectionChoice.equals(pendingProjection)) {
+         if (pending!=null) pending.cancel(true);
+         final VizState snapshot = new VizState(this);
+         final AlloyInstance inst = originalInstance;
+         final int gen = generation;
+         pendingProjection = projectionChoice;
+         pending = builder.submit(new Runnable() {
+            public void run() {
+               final long start = System.currentTimeMillis();
+               Graph graph = null;
+               Throwable error = null;
+               try {
+                  graph = StaticGraphMaker.produceLayout(inst, snapshot, projectionChoice);
+               } catch(Throwable ex) {
+                  error = ex;
+               }
+               if (Thread.currentThread().isInterrupted()) return;
+               final Graph g = graph;
+               final Throwable err = error;
+               final long millis = System.currentTimeMillis() - start;
+               SwingUtilities.invokeLater(new Runnable() {
+                  public void run() {
+                     if (gen!=generation || !projectionChoice.equals(pendingProjection)) return; // obsolete
+                     pending = null;
+                     pendingProjection = null;
+                     JPanel result;
+                     try {
+                        result = (err!=null) ? errorPanel(err) : viewer(g);
+                     } catch(Throwable ex) {
+                        result = errorPanel(ex);
+                     }
+                     // We cache the error panel as well, otherwise the caller's refresh would simply trigger the same computation again
+                     result.setBorder(null);
+                     cache.put(projectionChoice, result);
+                     buildTime.put(projectionChoice, millis);
+                     whenReady.run(Long.valueOf(millis));
+                  }
+               });
+            }
+         });
+      }
+      ans = OurUtil.make(new JPanel(new BorderLayout()), Color.BLACK, Color.WHITE, new EmptyBorder(0, 0, 0, 0));
+      ans.add(OurUtil.label("Generating the graph; please wait...", Color.GRAY), BorderLayout.NORTH);
+      return ans;
+   }
+
+   /** Returns how long (in milliseconds) the cached graph for the given projection took to build in the background,
+    * or null if that graph is not cached or was not built by getGraph(projection,whenReady).
+    */
+   public Long getBuildTime(AlloyProjection projectionChoice) { return buildTime.get(projectionChoice); }
+
    /** True if the theme has been modified since last save. */
    private boolean changedSinceLastSave=false;
 
@@ -188,7 +321,7 @@ public final class VizState {
    public boolean changedSinceLastSave() { return changedSinceLastSave; }
 
    /** Sets the "changed since last save" flag, then flush any cached generated graphs. */
-   private void change() { changedSinceLastSave=true; cache.clear(); }
+   private void change() { changedSinceLastSave=true; flush(); }
 
    /** If oldValue is different from newValue, then sets the "changed since last save" flag and flush the cache. */
    private void changeIf(Object oldValue, Object newValue) {
@@ -320,6 +453,26 @@ public final class VizState {
 
    /*============================================================================================*/
 
+   /** If a type has more than this many atoms, they are collapsed into aggregate nodes (0 means never). */
+   private int aggregateThreshold = 100;
+
+   /** The set of types that the user has expanded, and therefore should not be collapsed regardless of the threshold. */
+   private final Set<AlloyType> expanded = new TreeSet<AlloyType>();
+
+   /** Returns the number of atoms a type can have before its atoms are collapsed into aggregate nodes (0 means never). */
+   public int getAggregateThreshold() { return aggregateThreshold; }
+
+   /** Sets the number of atoms a type can have before its atoms are collapsed into aggregate nodes (0 means never). */
+   public void setAggregateThreshold(int n) { if (aggregateThreshold!=n && n>=0) { change(); aggregateThreshold=n; } }
+
+   /** Returns true if the user has asked to show every atom of the given type, regardless of the threshold. */
+   public boolean isExpanded(AlloyType type) { return expanded.contains(type); }
+
+   /** Show every atom of the given type, regardless of the threshold; this does not count as a theme change. */
+   public void expand(AlloyType type) { if (expanded.add(type)) flush(); }
+
+   /*============================================================================================*/
+
    /** The default node palette. */
    private DotPalette nodePalette;
 
@@ -0,0 +1,181 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.OurTabbedSyntaxWidget;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+
+/** This helper class is used by SimpleGUI to parse and typecheck the text buffers in a background thread.
+ *
+ * <p> Each call to changed() restarts a timer; once the user has stopped typing for a while, we take a snapshot of every
+ * text buffer and parse+typecheck it (along with every module it opens) in a background thread.
+ * If the buffers change again before that analysis is done, its result is thrown away.
+ * The result of the latest analysis is kept, so that SimpleGUI can fill the "Execute" menu without parsing on the AWT thread.
+ *
+ * <p> Except for the background thread itself, only the AWT Event Thread may call methods in this class.
+ */
+
+final class BackgroundParser {
+
+    /** Immutable; the result of analysing one snapshot of the text buffers. */
+    static final class Result {
+        /** The snapshot of the text buffers that was analysed. */
+        final Map<String,String> snapshot;
+        /** The main file that was analysed. */
+        final String filename;
+        /** The resolution mode that was used. */
+        final int resolutionMode;
+        /** The commands in the main file, or null if the main file has a syntax error. */
+        final List<Command> commands;
+        /** The first error found in the main file or in a module it opens, or null if there is no error. */
+        final Err error;
+        /** Constructs a new Result object. */
+        private Result(Map<String,String> snapshot, String filename, int resolutionMode, List<Command> commands, Err error) {
+            this.snapshot = snapshot;
+            this.filename = filename;
+            this.resolutionMode = resolutionMode;
+            this.commands = commands;
+            this.error = error;
+        }
+        /** Returns true if this is the result for the given snapshot and main file. */
+        boolean isFor(Map<String,String> snapshot, String filename, int resolutionMode) {
+            return this.filename.equals(filename) && this.resolutionMode==resolutionMode && this.snapshot.equals(snapshot);
+        }
+    }
+
+    /** The text buffers being analysed. */
+    private final OurTabbedSyntaxWidget text;
+
+    /** This is called on the AWT Event Thread whenever a new result becomes available (it can then call latest()). */
+    private final Runnable listener;
+
+    /** This timer fires once the text buffers have not changed for a while. */
+    private final Timer timer;
+
+    /** The background thread that performs the analysis. */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Alloy background parser");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /** This is incremented whenever a new snapshot is taken, so that the background thread can tell whether its result is stale. */
+    private volatile int generation = 0;
+
+    /** The resolution mode to use in the next analysis. */
+    private int resolutionMode = 1;
+
+    /** If nonnull, the analysis that has been submitted but may not have finished yet. */
+    private Future<?> pending = null;
+
+    /** If nonnull, the result of the latest analysis. */
+    private Result latest = null;
+
+    /** Constructs a BackgroundParser for the given text buffers; it waits for "delay" milliseconds of inactivity before analysing them. */
+    BackgroundParser(OurTabbedSyntaxWidget text, int delay, Runnable listener) {
+        this.text = text;
+        this.listener = listener;
+        this.timer = new Timer(delay, new ActionListener() {
+            public void actionPerformed(ActionEvent e) { analyse(); }
+        });
+        this.timer.setRepeats(false);
+    }
+
+    /** Tell this BackgroundParser that the text buffers may have changed; they will be analysed once the user stops typing. */
+    void changed(int resolutionMode) {
+        this.resolutionMode = resolutionMode;
+        timer.restart();
+    }
+
+    /** Returns the result of the latest analysis, or null if no analysis has finished yet. */
+    Result latest() { return latest; }
+
+    /** Returns the result of the latest analysis if it is for exactly the given snapshot, main file and resolution mode; else returns null. */
+    Result get(Map<String,String> snapshot, String filename, int resolutionMode) {
+        Result r = latest;
+        return (r!=null && r.isFor(snapshot, filename, resolutionMode)) ? r : null;
+    }
+
+    /** Stop analysing; any analysis in progress will be ignored. */
+    void stop() {
+        timer.stop();
+        generation++;
+        executor.shutdownNow();
+    }
+
+    /** Take a snapshot of the text buffers, then analyse it in the background thread (unless it is the same as the last one). */
+    private void analyse() {
+        final Map<String,String> snapshot = text.takeSnapshot();
+        final String filename = Util.canon(text.get().getFilename());
+        final int mode = resolutionMode;
+        if (get(snapshot, filename, mode)!=null) return; // Only the caret or the current tab changed
+        final int gen = ++generation;
+        if (pending!=null) pending.cancel(false); // If it has not started yet, it never will
+        pending = executor.submit(new Runnable() {
+            public void run() {
+                if (gen!=generation) return;
+                final Result r = analyse(snapshot, filename, mode);
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (gen!=generation) return; // A newer snapshot has been taken since then
+                        latest = r;
+                        listener.run();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Parse and typecheck the given snapshot (this is called by the background thread). */
+    private static Result analyse(Map<String,String> snapshot, String filename, int mode) {
+        Err error = null;
+        List<Command> commands = null;
+        try {
+            commands = CompUtil.parseEverything_fromFile(A4Reporter.NOP, new LinkedHashMap<String,String>(snapshot), filename, mode).getAllCommands();
+        } catch(Err ex) {
+            error = ex;
+        } catch(Throwable ex) {
+            error = new ErrorFatal("Cannot parse the model.\n" + ex.toString(), ex);
+        }
+        if (commands==null) {
+            // The error may be a type error or an error in another module; then the commands in the main file are still usable
+            String content = snapshot.get(filename);
+            if (content!=null) try { commands = CompUtil.parseOneModule_fromString(content); } catch(Throwable ex) { }
+        }
+        return new Result(snapshot, filename, mode, commands, error);
+    }
+}
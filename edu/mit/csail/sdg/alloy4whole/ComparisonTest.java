@@ -0,0 +1,77 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.Util;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
+
+/** The driver shared by the regression harnesses that analyze a model two ways and compare the results.
+ *
+ * <p> A harness only implements check(); its main() calls run(), which checks every file given on the command line
+ * (or the harness's built-in models if there is none), prints the number of mismatches and of files that could not be checked,
+ * and exits with code 1 if either is nonzero.
+ */
+
+abstract class ComparisonTest {
+
+    /** The number of mismatches found so far; check() increments it whenever the two results disagree. */
+    int mismatches = 0;
+
+    /** Check the given model or instance file; if content!=null, it is the file's content, else the file is read from disk. */
+    abstract void check(String filename, String content) throws Exception;
+
+    /** Print the totals gathered while checking the files, then return what to append to the final summary line (by default, nothing). */
+    String totals() { return ""; }
+
+    /** Parse the given model; if content!=null, it is the model's source, else the model is read from the file. */
+    static Module parse(String filename, String content) throws Err {
+        Map<String,String> loaded = null;
+        if (content!=null) { loaded = new LinkedHashMap<String,String>(); loaded.put(Util.canon(filename), content); }
+        return CompUtil.parseEverything_fromFile(A4Reporter.NOP, loaded, filename);
+    }
+
+    /** Returns the options for analyzing the given model with SAT4J (Pardinus cannot solve without a maximum trace length). */
+    static A4Options options(String filename) {
+        A4Options opt = new A4Options();
+        opt.solver = A4Options.SatSolver.SAT4J;
+        opt.maxTraceLength = 10;
+        opt.originalFilename = filename;
+        return opt;
+    }
+
+    /** Check every file in args (or every {filename, content} pair in models, if args is empty), then print the summary and exit. */
+    final void run(String[] args, String[][] models) {
+        int failures = 0;
+        int n = args.length>0 ? args.length : models.length;
+        for(int i=0; i<n; i++) {
+            try {
+                if (args.length>0) check(args[i], null); else check(models[i][0], models[i][1]);
+            } catch(Throwable ex) {
+                failures++;
+                System.out.println("   FAILED: " + ex.toString().trim());
+            }
+        }
+        System.out.println(mismatches + " mismatch(es)" + totals() + ", " + failures + " file(s) could not be checked.");
+        System.exit((mismatches>0 || failures>0) ? 1 : 0);
+    }
+}
@@ -0,0 +1,242 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4.ErrorFatal;
+import edu.mit.csail.sdg.alloy4.Pair;
+import edu.mit.csail.sdg.alloy4.XMLNode;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Expr;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprBinary;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprCall;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprConstant;
+import edu.mit.csail.sdg.alloy4compiler.ast.ExprUnary;
+import edu.mit.csail.sdg.alloy4compiler.ast.Func;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
+import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
+import edu.mit.csail.sdg.alloy4compiler.ast.VisitQuery;
+import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimAtom;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimInstance;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimTuple;
+import edu.mit.csail.sdg.alloy4compiler.sim.SimTupleset;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
+import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod;
+
+/** A regression harness that checks the SimInstance interpreter against the Kodkod evaluator.
+ *
+ * <p> Each argument is either a model (every command is executed, and every satisfiable solution is checked)
+ * or an instance XML file (which is checked as-is; its model is taken from the embedded sources if any, else from the file it names).
+ * For every state of each solution, we evaluate every sig, every field, every fact, the command's formula, and a set of expressions generated
+ * from the fields (joins, transposes, closures, cardinalities, unions, intersections, differences, and subset tests)
+ * using both A4Solution.eval() and SimInstance; we report every disagreement, and the throughput of each engine for each kind of expression.
+ * An expression that A4Solution.eval() cannot evaluate (for example, a cardinality over a mutable relation) is reported as unchecked,
+ * formulas are only checked at the first state (since the Kodkod evaluator always evaluates a formula from the start of the trace),
+ * and expressions that compute integers are not checked when the model uses no integers (since Kodkod then picks its own bitwidth);
+ * likewise, expressions over univ, Int, iden or a reflexive closure are not checked when the Kodkod evaluator does not report the integer atoms.
+ */
+
+public final class DifferentialTest extends ComparisonTest {
+
+    /** The kinds of expressions we check; the throughput is reported separately for each. */
+    private static final String[] KINDS = {"sigs", "fields", "facts", "generated"};
+
+    /** The total number of nanoseconds that Kodkod and SimInstance spent on each kind of expression. */
+    private final long[] kodkodTime = new long[KINDS.length], simTime = new long[KINDS.length];
+
+    /** The number of expressions of each kind we evaluated. */
+    private final int[] count = new int[KINDS.length];
+
+    /** The total number of nanoseconds spent converting solutions into SimInstance objects. */
+    private long convertTime = 0;
+
+    /** The number of expressions that the Kodkod evaluator could not evaluate (so there was nothing to compare against). */
+    private int unchecked = 0;
+
+    /** Constructs a DifferentialTest with nothing checked yet. */
+    private DifferentialTest() { }
+
+    /** Returns true if the value computed by A4Solution.eval() is the same as the value computed by SimInstance. */
+    private static boolean same(Object kodkod, Object sim) throws Err {
+        if (kodkod instanceof A4TupleSet) {
+            if (sim instanceof Integer) sim = SimTupleset.make(SimTuple.make(SimAtom.make((Integer)sim)));
+            return SimInstance.convert(kodkod).equals(sim);
+        }
+        if (kodkod instanceof String) { // A4Solution.eval() returns an integer as a String, possibly followed by " (OF)"
+            String k = (String)kodkod;
+            if (k.endsWith(" (OF)")) k = k.substring(0, k.length()-5);
+            if (sim instanceof SimTupleset) sim = ((SimTupleset)sim).sum();
+            return k.equals(String.valueOf(sim));
+        }
+        return kodkod!=null && kodkod.equals(sim);
+    }
+
+    /** Returns true if the given expression (including the body of every function or predicate it calls)
+     * computes an integer anywhere (if ints==true), or refers to the integer atoms through univ, Int, iden, or a reflexive closure (if atoms==true).
+     */
+    private static boolean usesIntegers(Expr expr, final boolean ints, final boolean atoms) throws Err {
+        final Set<Func> seen = new HashSet<Func>();
+        return null != new VisitQuery<Object>() {
+            @Override public Object visit(ExprBinary x) throws Err { return (ints && x.type().is_int()) ? x : super.visit(x); }
+            @Override public Object visit(ExprUnary x) throws Err {
+                return ((ints && x.type().is_int()) || (atoms && x.op==ExprUnary.Op.RCLOSURE)) ? x : super.visit(x);
+            }
+            @Override public Object visit(ExprConstant x) throws Err {
+                return ((ints && x.type().is_int()) || (atoms && x.op==ExprConstant.Op.IDEN)) ? x : null;
+            }
+            @Override public Object visit(Sig x) throws Err { return (atoms && (x==Sig.UNIV || x==Sig.SIGINT)) ? x : null; }
+            @Override public Object visit(ExprCall x) throws Err {
+                if (ints && x.type().is_int()) return x;
+                if (seen.add(x.fun)) { Object ans = x.fun.getBody().accept(this); if (ans!=null) return ans; }
+                return super.visit(x);
+            }
+        }.visitThis(expr);
+    }
+
+    /** Add x to the list if it typechecks. */
+    private static void add(Map<String,Expr> list, Expr x) {
+        if (x.errors.isEmpty() && !x.ambiguous) list.put(x.toString(), x);
+    }
+
+    /** Returns the expressions of each kind to check for the given module (the command's formula is checked as a fact if cmd!=null). */
+    private static List<Map<String,Expr>> expressions(Module world, Command cmd) throws Err {
+        List<Map<String,Expr>> ans = new ArrayList<Map<String,Expr>>();
+        for(int i=0; i<KINDS.length; i++) ans.add(new LinkedHashMap<String,Expr>());
+        List<Field> fields = new ArrayList<Field>();
+        for(Sig s: world.getAllReachableSigs()) if (!s.builtin) {
+            add(ans.get(0), s);
+            add(ans.get(3), s.cardinality().typecheck_as_int());
+            for(Field f: s.getFields()) if (!f.defined) {
+                fields.add(f);
+                add(ans.get(1), f);
+                add(ans.get(3), s.join(f).typecheck_as_set());
+                add(ans.get(3), f.cardinality().typecheck_as_int());
+                if (f.type().arity()==2) {
+                    add(ans.get(3), f.transpose().typecheck_as_set());
+                    add(ans.get(3), f.closure().typecheck_as_set());
+                    add(ans.get(3), f.reflexiveClosure().typecheck_as_set());
+                    add(ans.get(3), f.join(f).typecheck_as_set());
+                }
+            }
+        }
+        for(int i=0; i<fields.size(); i++) for(int j=i+1; j<fields.size(); j++) {
+            Field a = fields.get(i), b = fields.get(j);
+            if (a.type().arity()!=b.type().arity()) continue;
+            add(ans.get(3), a.plus(b).typecheck_as_set());
+            add(ans.get(3), a.intersect(b).typecheck_as_set());
+            add(ans.get(3), a.minus(b).typecheck_as_set());
+            add(ans.get(3), a.in(b).typecheck_as_formula());
+        }
+        for(Module m: world.getAllReachableModules()) for(Pair<String,Expr> f: m.getAllFacts()) add(ans.get(2), f.b);
+        if (cmd!=null) add(ans.get(2), cmd.formula);
+        return ans;
+    }
+
+    /** Evaluate every expression at every state of the given solution using both engines, and report every disagreement. */
+    private void check(String name, Module world, Command cmd, A4Solution sol) throws Err {
+        long start = System.nanoTime();
+        SimInstance sim = SimInstance.convert(world, sol);
+        convertTime += System.nanoTime() - start;
+        List<Map<String,Expr>> exprs = expressions(world, cmd);
+        // If the model uses no integers, Kodkod picks its own bitwidth, so its integers may wrap around where SimInstance's do not;
+        // and if the Kodkod evaluator does not see the integer atoms, then univ, Int and iden differ from SimInstance's
+        final boolean atoms = sol.getBitwidth()>0 && !sol.eval(Sig.SIGINT).iterator().hasNext();
+        if (sol.getBitwidth()==0 || atoms) for(Map<String,Expr> m: exprs) for(Iterator<Expr> it=m.values().iterator(); it.hasNext();)
+            if (usesIntegers(it.next(), sol.getBitwidth()==0, atoms)) it.remove();
+        int before = mismatches;
+        for(int state=0; state<=sol.getLastTrace(); state++) {
+            sim.setState(state);
+            for(int kind=0; kind<KINDS.length; kind++) for(Map.Entry<String,Expr> e: exprs.get(kind).entrySet()) {
+                if (state>0 && e.getValue().type().is_bool) continue; // the Kodkod evaluator can only evaluate a formula at the first state
+                Object k, s;
+                long t0 = System.nanoTime();
+                try { k = sol.eval(e.getValue(), state); } catch(Throwable ex) { k = ex; }
+                long t1 = System.nanoTime();
+                try { s = sim.visitThis(e.getValue()); } catch(Throwable ex) { s = ex; }
+                long t2 = System.nanoTime();
+                kodkodTime[kind] += t1-t0;
+                simTime[kind] += t2-t1;
+                count[kind]++;
+                if ((k instanceof Throwable && s instanceof Throwable) || (!(k instanceof Throwable) && same(k, s))) continue;
+                if (k instanceof Throwable) {
+                    unchecked++;
+                    System.out.println("   UNCHECKED in state " + state + ": " + e.getKey() + "\n      Kodkod: " + k);
+                    continue;
+                }
+                mismatches++;
+                System.out.println("   MISMATCH in state " + state + ": " + e.getKey() + "\n      Kodkod: " + k + "\n      Sim:    " + s);
+            }
+        }
+        System.out.println("   " + name + ": " + (sol.getLastTrace()+1) + " state(s), " + (mismatches-before) + " mismatch(es).");
+    }
+
+    /** Check every satisfiable command of the given model, or the instance in the given XML file (content is always null). */
+    @Override void check(String filename, String content) throws Exception {
+        System.out.println("File = " + filename);
+        if (filename.endsWith(".xml")) {
+            XMLNode x = new XMLNode(new File(filename));
+            if (!x.is("alloy")) throw new ErrorFatal("The XML file must start with <alloy>.");
+            String mainname = null;
+            Map<String,String> fc = new LinkedHashMap<String,String>();
+            for(XMLNode sub: x) if (sub.is("instance") && mainname==null) mainname = sub.getAttribute("filename");
+            for(XMLNode sub: x) if (sub.is("source")) fc.put(sub.getAttribute("filename"), sub.getAttribute("content"));
+            if (mainname==null || mainname.length()==0) throw new ErrorFatal("The XML file does not say which model it came from.");
+            Module world = CompUtil.parseEverything_fromFile(A4Reporter.NOP, fc.isEmpty() ? null : fc, mainname);
+            A4Solution sol = A4SolutionReader.read(world.getAllReachableSigs(), x);
+            check(filename, world, null, sol);
+            return;
+        }
+        Module world = parse(filename, null);
+        A4Options opt = options(filename);
+        opt.maxTraceLength = 20; // the same default as the GUI
+        for(Command cmd: world.getAllCommands()) {
+            A4Solution sol = TranslateAlloyToKodkod.execute_command(A4Reporter.NOP, world.getAllReachableSigs(), cmd, opt);
+            if (sol.satisfiable()) check(cmd.toString(), world, cmd, sol);
+            else System.out.println("   " + cmd + ": unsatisfiable, skipped.");
+        }
+    }
+
+    /** Print the throughput of each engine, then return the number of expressions the Kodkod evaluator could not evaluate. */
+    @Override String totals() {
+        System.out.println("\nKind       Count    Kodkod (expr/s)    Sim (expr/s)    Speedup");
+        for(int i=0; i<KINDS.length; i++) if (count[i]>0) {
+            double k = count[i] * 1e9 / Math.max(1, kodkodTime[i]), s = count[i] * 1e9 / Math.max(1, simTime[i]);
+            System.out.println(String.format("%-10s %5d %18.0f %15.0f %9.2fx", KINDS[i], count[i], k, s, s/k));
+        }
+        System.out.println(String.format("Converting solutions into SimInstance took %.1fms.", convertTime/1e6));
+        return ", " + unchecked + " expression(s) the Kodkod evaluator could not evaluate";
+    }
+
+    /** Main method that checks every file given on the command line, then prints the throughput of each engine. */
+    public static void main(String[] args) {
+        new DifferentialTest().run(args, new String[0][]);
+    }
+}
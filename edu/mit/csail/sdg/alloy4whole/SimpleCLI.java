@@ -25,6 +25,7 @@ import java.util.List;
 
 import edu.mit.csail.sdg.alloy4.A4Reporter;
 import edu.mit.csail.sdg.alloy4.ErrorWarning;
+import edu.mit.csail.sdg.alloy4.MetricsReporter;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
@@ -146,12 +147,16 @@ public final class SimpleCLI {
         SatSolver solver = A4Options.SatSolver.make("mem", "mem", "/zweb/sat/mem");
         final SimpleReporter rep = new SimpleReporter();
         final StringBuilder sb = rep.sb;
+        // If -Dmetrics=FILE is given, the time spent in each phase of each command is written as JSON into FILE
+        final String metricsFile = System.getProperty("metrics");
+        final MetricsReporter metrics = (metricsFile!=null) ? new MetricsReporter(rep) : null;
+        final A4Reporter solveRep = (metrics!=null) ? metrics : rep;
         for(String filename:args) {
             try {
                 // Parse+Typecheck
                 rep.sb.append("\n\nMain file = "+filename+"\n");
                 if (db) db("Parsing+Typechecking...");
-                Module world = CompUtil.parseEverything_fromFile(rep, null, filename);
+                Module world = CompUtil.parseEverything_fromFile(solveRep, null, filename);
                 if (db) db(" ok\n");
                 List<Command> cmds=world.getAllCommands();
                 for(ErrorWarning msg: rep.warnings) rep.sb.append("Relevance Warning:\n" + (msg.toString().trim()) + "\n\n");
@@ -215,10 +220,10 @@ public final class SimpleCLI {
                     }
                     rep.sb.append("Executing \""+c+"\"\n");
                     options.skolemDepth=0;
-                    A4Solution s = TranslateAlloyToKodkod.execute_commandFromBook(rep, world.getAllReachableSigs(), c, options);
+                    A4Solution s = TranslateAlloyToKodkod.execute_commandFromBook(solveRep, world.getAllReachableSigs(), c, options);
                     if (s.satisfiable()) { validate(s); if (s.isIncremental()) { s=s.next(); if (s.satisfiable()) validate(s); } }
                     options.skolemDepth=2;
-                    s = TranslateAlloyToKodkod.execute_commandFromBook(rep, world.getAllReachableSigs(), c, options);
+                    s = TranslateAlloyToKodkod.execute_commandFromBook(solveRep, world.getAllReachableSigs(), c, options);
                     if (s.satisfiable()) { validate(s); if (s.isIncremental()) { s=s.next(); if (s.satisfiable()) validate(s); } }
                 }
             } catch(Throwable ex) {
@@ -227,5 +232,6 @@ public final class SimpleCLI {
             if (db) { if (args.length!=1) db(" ERROR!\n"); else db("\n\n"); }
         }
         rep.close();
+        if (metrics!=null) metrics.writeJSON(metricsFile);
     }
 }
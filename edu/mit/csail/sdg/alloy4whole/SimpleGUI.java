@@ -103,7 +103,6 @@ import edu.mit.csail.sdg.alloy4.OurUtil;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Runner;
-import edu.mit.csail.sdg.alloy4.Subprocess;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Util.BooleanPref;
 import edu.mit.csail.sdg.alloy4.Util.IntPref;
@@ -121,14 +120,10 @@ import edu.mit.csail.sdg.alloy4compiler.ast.Sig;
 import edu.mit.csail.sdg.alloy4compiler.ast.Sig.Field;
 import edu.mit.csail.sdg.alloy4compiler.parser.CompUtil;
 import edu.mit.csail.sdg.alloy4compiler.sim.SimInstance;
-import edu.mit.csail.sdg.alloy4compiler.sim.SimTuple;
-import edu.mit.csail.sdg.alloy4compiler.sim.SimTupleset;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Options.SatSolver;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
 import edu.mit.csail.sdg.alloy4compiler.translator.A4SolutionReader;
-import edu.mit.csail.sdg.alloy4compiler.translator.A4Tuple;
-import edu.mit.csail.sdg.alloy4compiler.translator.A4TupleSet;
 import edu.mit.csail.sdg.alloy4viz.VizGUI;
 import edu.mit.csail.sdg.alloy4whole.SimpleReporter.SimpleCallback1;
 import edu.mit.csail.sdg.alloy4whole.SimpleReporter.SimpleTask1;
@@ -184,6 +179,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** True if Alloy Analyzer should record the raw Kodkod input and output. */
     private static final BooleanPref RecordKodkod = new BooleanPref("RecordKodkod");
 
+    /** True if Alloy Analyzer should solve the checks with the same scope together when executing every command. */
+    private static final BooleanPref SolveTogether = new BooleanPref("SolveTogether");
+
     /** True if Alloy Analyzer should enable the new Implicit This name resolution. */
     private static final BooleanPref ImplicitThis = new BooleanPref("ImplicitThis");
     
@@ -346,6 +344,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** The list of commands (this field will be cleared to null when the text buffer is edited). */
     private List<Command> commands = null;
 
+    /** The background parser that re-parses the text buffers whenever the user stops typing (null until the text area is created). */
+    private BackgroundParser parser = null;
+
     /** The latest executed command. */
     private int latestCommand = 0;
 
@@ -387,11 +388,19 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** Sets the flag "lastFocusIsOnEditor" to be false. */
     void notifyFocusLost() { lastFocusIsOnEditor=false; }
 
+    /** Shades the first error found by the background parser (or removes the shading if it found no error). */
+    private void notifyParsed() {
+        BackgroundParser.Result parsed = parser.latest();
+        if (parsed==null) return;
+        text.shadeQuietly(parsed.error==null ? null : parsed.error.pos);
+    }
+
     /** Updates the status bar at the bottom of the screen. */
     private Runner notifyChange() {
         if (wrap) return wrapMe();
         commands=null;
         if (text==null) return null; // If this was called prior to the "text" being fully initialized
+        if (parser!=null) parser.changed((Version.experimental && ImplicitThis.get()) ? 2 : 1);
         OurSyntaxWidget t = text.get();
         if (Util.onMac()) frame.getRootPane().putClientProperty("windowModified", Boolean.valueOf(t.modified()));
         if (t.isFile()) frame.setTitle(t.getFilename()); else frame.setTitle("Alloy Analyzer (Electrum) "+Version.version());
@@ -777,6 +786,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
     /** This method performs File->Quit. */
     private Runner doQuit() {
         if (!wrap) if (text.closeAll()) {
+            if (parser!=null) parser.stop();
             try { WorkerEngine.stop(); } finally { System.exit(0); }
         }
         return wrapMe();
@@ -937,8 +947,15 @@ public final class SimpleGUI implements ComponentListener, Listener {
             wrap = false;
         }
         List<Command> cp = commands;
+        BackgroundParser.Result parsed = null;
+        if (cp==null && parser!=null) {
+            // If the background parser has already analysed the current text, we can skip parsing it again here
+            parsed = parser.get(text.takeSnapshot(), Util.canon(text.get().getFilename()), (Version.experimental && ImplicitThis.get()) ? 2 : 1);
+            if (parsed!=null) cp = parsed.commands;
+        }
         if (cp==null) {
             try {
+                if (parsed!=null && parsed.error!=null) throw parsed.error;
                 cp=CompUtil.parseOneModule_fromString(text.get().getText());
             }
             catch(Err e) {
@@ -961,7 +978,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
             }
             commands=cp;
         }
-        text.clearShade();
+        if (parsed!=null && parsed.error!=null) text.shadeQuietly(parsed.error.pos); else text.clearShade(); // Keep shading the type error, if any
         log.clearError(); // To clear any residual error message
         if (cp==null) { runmenu.getItem(0).setEnabled(false); runmenu.getItem(3).setEnabled(false); return null; }
         if (cp.size()==0) { runmenu.getItem(0).setEnabled(false); return null; }
@@ -1013,6 +1030,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
         opt.tempDirectory = alloyHome() + fs + "tmp";
         opt.solverDirectory = alloyHome() + fs + "binary";
         opt.recordKodkod = RecordKodkod.get();
+        opt.solveTogether = SolveTogether.get();
         opt.noOverflow = NoOverflow.get();
         opt.unrolls = Version.experimental ? Unrolls.get() : (-1);
         opt.skolemDepth = SkolemDepth.get();
@@ -1026,7 +1044,10 @@ public final class SimpleGUI implements ComponentListener, Listener {
         task.map = text.takeSnapshot();
         task.options = opt.dup();
         task.resolutionMode = (Version.experimental && ImplicitThis.get()) ? 2 : 1;
+        task.verbosity = Verbosity.get().ordinal();
         task.tempdir = maketemp();
+        // As in SimpleCLI, -Dmetrics=FILE writes the time spent in each phase of each command as JSON into FILE
+        task.metricsFile = System.getProperty("metrics");
         try {
             runmenu.setEnabled(false);
             runbutton.setVisible(false);
@@ -1290,6 +1311,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
             //
             menuItem(optmenu, "Visualize Automatically: "+(AutoVisualize.get()?"Yes":"No"), doOptAutoVisualize());
             menuItem(optmenu, "Record the Kodkod Input/Output: "+(RecordKodkod.get()?"Yes":"No"), doOptRecordKodkod());
+            menuItem(optmenu, "Solve Checks with the Same Scope Together: "+(SolveTogether.get()?"Yes":"No"), doOptSolveTogether())
+               .setToolTipText("<html>Only applies to the checks in Execute All, with SAT4J. The formulas are not simplified,<br>"
+               +"no unsat core is reported for an unsatisfiable check, and a check with a counterexample is solved again on its own.</html>");
             if (Version.experimental) menuItem(optmenu, "Enable \"implicit this\" name resolution: "+(ImplicitThis.get()?"Yes":"No"), doOptImplicitThis());
             if (Version.experimental) menuItem(optmenu, "Forbid Overflow: "+(NoOverflow.get()?"Yes":"No"), doOptNoOverflow());
         } finally {
@@ -1409,6 +1433,12 @@ public final class SimpleGUI implements ComponentListener, Listener {
         return wrapMe();
     }
 
+    /** This method toggles the "solve checks with the same scope together" checkbox. */
+    private Runner doOptSolveTogether() {
+        if (!wrap) SolveTogether.set(!SolveTogether.get());
+        return wrapMe();
+    }
+
     /** This method toggles the "enable new `implicit this' name resolution" checkbox. */
     private Runner doOptImplicitThis() {
         if (!wrap) ImplicitThis.set(!ImplicitThis.get());
@@ -1632,6 +1662,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
             SimpleCallback1 cb = new SimpleCallback1(SimpleGUI.this, viz, log, Verbosity.get().ordinal(), latestAlloyVersionName, latestAlloyVersion);
             SimpleTask2 task = new SimpleTask2();
             task.filename = arg;
+            task.verbosity = Verbosity.get().ordinal();
             try {
                 WorkerEngine.run(task, SubMemory.get(), SubStack.get(), alloyHome() + fs + "binary", "", cb);
 //                task.run(cb);
@@ -1655,33 +1686,6 @@ public final class SimpleGUI implements ComponentListener, Listener {
         }
     };
 
-    /** Converts an A4TupleSet into a SimTupleset object. */
-    private static SimTupleset convert(Object object) throws Err {
-        if (!(object instanceof A4TupleSet)) throw new ErrorFatal("Unexpected type error: expecting an A4TupleSet.");
-        A4TupleSet s = (A4TupleSet)object;
-        if (s.size()==0) return SimTupleset.EMPTY;
-        List<SimTuple> list = new ArrayList<SimTuple>(s.size());
-        int arity = s.arity();
-        for(A4Tuple t: s) {
-            String[] array = new String[arity];
-            for(int i=0; i<t.arity(); i++) array[i] = t.atom(i);
-            list.add(SimTuple.make(array));
-        }
-        return SimTupleset.make(list);
-    }
-
-    /** Converts an A4Solution into a SimInstance object. */
-    private static SimInstance convert(Module root, A4Solution ans) throws Err {
-       SimInstance ct = new SimInstance(root, ans.getBitwidth(), ans.getMaxSeq());
-        for(Sig s: ans.getAllReachableSigs()) {
-            if (!s.builtin) ct.init(s, convert(ans.eval(s)));
-            for(Field f: s.getFields())  if (!f.defined)  ct.init(f, convert(ans.eval(f)));
-        }
-        for(ExprVar a:ans.getAllAtoms())   ct.init(a, convert(ans.eval(a)));
-        for(ExprVar a:ans.getAllSkolems()) ct.init(a, convert(ans.eval(a)));
-        return ct;
-    }
-
     /** This object performs expression evaluation. */
     private static Computer evaluator = new Computer() {
         private String filename = null;
@@ -1718,7 +1722,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
             try {
                 Expr e = CompUtil.parseOneExpression_fromString(root, str);
                 if ("yes".equals(System.getProperty("debug")) && Verbosity.get()==Verbosity.FULLDEBUG) {
-                    SimInstance simInst = convert(root, ans);
+                    SimInstance simInst = SimInstance.convert(root, ans);
                     return simInst.visitThis(e).toString() + (simInst.wasOverflow() ? " (OF)" : "");
                 } else
                    return ans.eval(e).toString();
@@ -1728,18 +1732,6 @@ public final class SimpleGUI implements ComponentListener, Listener {
         }
     };
 
-    /** Returns true iff the output says "s SATISFIABLE" (while ignoring comment lines and value lines) */
-    private static boolean isSat(String output) {
-        int i=0, n=output.length();
-        // skip COMMENT lines and VALUE lines
-        while(i<n && (output.charAt(i)=='c' || output.charAt(i)=='v')) {
-            while(i<n && (output.charAt(i)!='\r' && output.charAt(i)!='\n')) i++;
-            while(i<n && (output.charAt(i)=='\r' || output.charAt(i)=='\n')) i++;
-            continue;
-        }
-        return output.substring(i).startsWith("s SATISFIABLE");
-    }
-
     //====== Main Method ====================================================//
 
     /** Main method that launches the program; this method might be called by an arbitrary thread. */
@@ -1934,6 +1926,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
         text = new OurTabbedSyntaxWidget(fontName, fontSize, TabSize.get());
         text.listeners.add(this);
         text.enableSyntax(! SyntaxDisabled.get());
+        parser = new BackgroundParser(text, 400, new Runnable() {
+            public void run() { notifyParsed(); }
+        });
 
         // Add everything to the frame, then display the frame
         Container all=frame.getContentPane();
@@ -1978,8 +1973,7 @@ public final class SimpleGUI implements ComponentListener, Listener {
 //            String test1 = Subprocess.exec(20000, new String[]{binary+fs+"berkmin", binary+fs+"tmp.cnf"});
 //            if (!isSat(test1)) satChoices.remove(SatSolver.BerkMinPIPE);
             satChoices.remove(SatSolver.BerkMinPIPE);
-            String test2 = Subprocess.exec(20000, new String[]{binary+fs+"spear", "--model", "--dimacs", binary+fs+"tmp.cnf"});
-            if (!isSat(test2)) satChoices.remove(SatSolver.SpearPIPE);
+            if (!SatSolver.SpearPIPE.raceable(binary)) satChoices.remove(SatSolver.SpearPIPE);
             if (!loadLibrary("minisat")) {
                 log.logBold("Warning: JNI-based SAT solver does not work on this platform.\n");
                 log.log("This is okay, since you can still use SAT4J as the solver.\n"+
@@ -1990,6 +1984,9 @@ public final class SimpleGUI implements ComponentListener, Listener {
             }
             if (!loadLibrary("minisatprover")) satChoices.remove(SatSolver.MiniSatProverJNI);
             if (!loadLibrary("zchaff"))        satChoices.remove(SatSolver.ZChaffJNI);
+            boolean race = false;
+            for(SatSolver s: satChoices) if (s.raceable(binary)) race = true;
+            if (!race || Runtime.getRuntime().availableProcessors() < 2) satChoices.remove(SatSolver.Portfolio);
             SatSolver now = SatSolver.get();
             if (!satChoices.contains(now)) {
                 now=SatSolver.ZChaffJNI;
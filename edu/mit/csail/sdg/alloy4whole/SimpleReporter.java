@@ -38,11 +38,13 @@ import edu.mit.csail.sdg.alloy4.ErrorSyntax;
 import edu.mit.csail.sdg.alloy4.ErrorType;
 import edu.mit.csail.sdg.alloy4.ErrorWarning;
 import edu.mit.csail.sdg.alloy4.MailBug;
+import edu.mit.csail.sdg.alloy4.MetricsReporter;
 import edu.mit.csail.sdg.alloy4.OurDialog;
 import edu.mit.csail.sdg.alloy4.Pair;
 import edu.mit.csail.sdg.alloy4.Pos;
 import edu.mit.csail.sdg.alloy4.Util;
 import edu.mit.csail.sdg.alloy4.Version;
+import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerBatchCallback;
 import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerCallback;
 import edu.mit.csail.sdg.alloy4.WorkerEngine.WorkerTask;
 import edu.mit.csail.sdg.alloy4.XMLNode;
@@ -70,7 +72,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 		System.out.println(s);
 	}
 
-	public static final class SimpleCallback1 implements WorkerCallback {
+	public static final class SimpleCallback1 implements WorkerBatchCallback {
 		private final SimpleGUI gui;
 		private final VizGUI viz;
 		private final SwingLogPanel span;
@@ -79,6 +81,8 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 		private int len2 = 0, len3 = 0, verbosity = 0;
 		private final String latestName;
 		private final int latestVersion;
+		/** True while we are receiving a batch of messages; the log is then committed once at the end of the batch. */
+		private boolean inBatch = false;
 
 		public SimpleCallback1(SimpleGUI gui, VizGUI viz, SwingLogPanel span, int verbosity, String latestName,
 				int latestVersion) {
@@ -107,15 +111,30 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 			gui.doStop(1);
 		}
 
+		public void beginBatch() {
+			inBatch = true;
+		}
+
+		public void endBatch() {
+			inBatch = false;
+			span.flush();
+		}
+
+		/** Commits the log, unless we are in the middle of a batch. */
+		private void flush() {
+			if (!inBatch)
+				span.flush();
+		}
+
 		public void callback(Object msg) {
 			if (msg == null) {
 				span.logBold("Done\n");
-				span.flush();
+				flush();
 				return;
 			}
 			if (msg instanceof String) {
 				span.logBold(((String) msg).trim() + "\n");
-				span.flush();
+				flush();
 				return;
 			}
 			if (msg instanceof Throwable) {
@@ -163,7 +182,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 							+ ",\nbut the most recent is Alloy build#" + latestVersion + ":\n( version " + latestName
 							+ " )\nPlease try to upgrade to the newest version,"
 							+ "\nas the problem may have been fixed already.\n");
-				span.flush();
+				flush();
 				if (!fatal)
 					gui.doVisualize("POS: " + ex.pos.x + " " + ex.pos.y + " " + ex.pos.x2 + " " + ex.pos.y2 + " "
 							+ ex.pos.filename);
@@ -172,7 +191,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 			if (msg instanceof Throwable) {
 				Throwable ex = (Throwable) msg;
 				span.logBold(ex.toString().trim() + "\n");
-				span.flush();
+				flush();
 				return;
 			}
 			if (!(msg instanceof Object[]))
@@ -230,6 +249,12 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 				len3 = span.getLength();
 				span.logBold("   Solving...\n");
 			}
+			if (array[0].equals("raced")) {
+				span.setLength(len3);
+				span.log("   " + array[1]);
+				len3 = span.getLength();
+				span.logBold("   Solving...\n");
+			}
 			if (array[0].equals("warnings")) {
 				if (warnings.size() == 0)
 					span.setLength(len2);
@@ -314,7 +339,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 					span.log(", as expected");
 				if (array.length == 5) {
 					span.log(". " + array[3] + "ms.\n\n");
-					span.flush();
+					flush();
 					return;
 				}
 				String core = (String) (array[5]);
@@ -323,7 +348,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 				if (core.length() == 0) {
 					results.add("");
 					span.log("   No unsat core is available in this case. " + array[8] + "ms.\n\n");
-					span.flush();
+					flush();
 					return;
 				}
 				results.add(core);
@@ -336,7 +361,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 					span.log(" reduced from " + mbefore + " to " + mafter + " top-level formulas. " + array[8]
 							+ "ms.\n\n");
 			}
-			span.flush();
+			flush();
 		}
 	}
 
@@ -357,22 +382,31 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 		cb("warning", ex);
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public boolean isEnabled(int level) {
+		return verbosity >= level;
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void scope(final String msg) {
-		cb("scope", msg);
+		if (isEnabled(SCOPE))
+			cb("scope", msg);
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public void bound(final String msg) {
-		cb("bound", msg);
+		if (isEnabled(BOUND))
+			cb("bound", msg);
 	}
 
 	/** {@inheritDoc} */
 	@Override
 	public void debug(final String msg) {
-		cb("debug", msg.trim());
+		if (isEnabled(DEBUG))
+			cb("debug", msg.trim());
 	}
 
 	/** {@inheritDoc} */
@@ -394,6 +428,12 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 		lastTime = System.currentTimeMillis();
 	}
 
+	/** {@inheritDoc} */
+	@Override
+	public void raced(String solver, long solvingTime) {
+		cb("raced", "Solver=" + solver + " answered first. " + solvingTime + "ms.\n");
+	}
+
 	/** {@inheritDoc} */
 	@Override
 	public void resultSAT(Object command, long solvingTime, Object solution) {
@@ -503,6 +543,13 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 	/** Whether we should record Kodkod input/output. */
 	private final boolean recordKodkod;
 
+	/**
+	 * The verbosity chosen in the GUI (which only shows scope, bound, and debug
+	 * messages if it is at least SCOPE, BOUND, and DEBUG respectively); we drop
+	 * the other messages here rather than sending them to the GUI.
+	 */
+	private final int verbosity;
+
 	/**
 	 * The time that the last action began; we subtract it from
 	 * System.currentTimeMillis() to determine the elapsed time.
@@ -524,6 +571,12 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 	/** The filename where we can write a temporary Java file or Core file. */
 	private String tempfile = null;
 
+	/**
+	 * If nonnull, this is the MetricsReporter that forwards to this reporter;
+	 * the phases reported while writing the XML files are sent to it.
+	 */
+	private MetricsReporter metrics = null;
+
 	// ========== These fields may be altered as each successful command
 	// generates a Kodkod or Metamodel instance
 
@@ -561,9 +614,10 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 	private static String latestMetamodelXML = null;
 
 	/** Constructor is private. */
-	private SimpleReporter(WorkerCallback cb, boolean recordKodkod) {
+	private SimpleReporter(WorkerCallback cb, boolean recordKodkod, int verbosity) {
 		this.cb = cb;
 		this.recordKodkod = recordKodkod;
+		this.verbosity = verbosity;
 	}
 
 	/** Helper method to write out a full XML file. */
@@ -580,6 +634,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 	static final class SimpleTask2 implements WorkerTask {
 		private static final long serialVersionUID = 0;
 		public String filename = "";
+		public int verbosity = 0;
 		public transient WorkerCallback out = null;
 
 		private void cb(Object... objs) throws Exception {
@@ -621,7 +676,8 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 			int tries = 0;
 			while (true) {
 				sol = sol.next();
-				cb("debug", sol.toString()); // [HASLab]
+				if (verbosity >= A4Reporter.DEBUG)
+					cb("debug", sol.toString()); // [HASLab]
 				if (!sol.satisfiable()) {
 					cb("pop", "There are no more satisfying instances.\n\n"
 							+ "Note: due to symmetry breaking and other optimizations,\n"
@@ -670,7 +726,13 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 		public boolean bundleWarningNonFatal;
 		public int bundleIndex;
 		public int resolutionMode;
+		public int verbosity;
 		public Map<String, String> map;
+		/**
+		 * If nonnull, the time spent in each phase of each command is written
+		 * as JSON into this file (see MetricsReporter).
+		 */
+		public String metricsFile;
 
 		public SimpleTask1() {
 		}
@@ -681,8 +743,11 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 
 		public void run(WorkerCallback out) throws Exception {
 			cb(out, "S2", "Starting the solver...\n\n");
-			final SimpleReporter rep = new SimpleReporter(out, options.recordKodkod);
-			final CompModule world = CompUtil.parseEverything_fromFile(rep, map, options.originalFilename,
+			final SimpleReporter rep = new SimpleReporter(out, options.recordKodkod, verbosity);
+			if (metricsFile != null)
+				rep.metrics = new MetricsReporter(rep);
+			final A4Reporter solveRep = (rep.metrics != null) ? rep.metrics : rep;
+			final CompModule world = CompUtil.parseEverything_fromFile(solveRep, map, options.originalFilename,
 					resolutionMode);
 			final List<Sig> sigs = world.getAllReachableSigs();
 			final ConstList<Command> cmds = world.getAllCommands();
@@ -704,6 +769,35 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 				synchronized (SimpleReporter.class) {
 					latestMetamodelXML = outf;
 				}
+			} else if (bundleIndex < 0 && options.solveTogether) {
+				synchronized (SimpleReporter.class) {
+					latestModule = world;
+					latestKodkodSRC = ConstMap.make(map);
+				}
+				final A4Reporter each = new A4Reporter(solveRep) {
+					@Override
+					public void executing(Object command) {
+						int i = cmds.indexOf(command);
+						rep.tempfile = tempdir + File.separatorChar + i + ".cnf";
+						rep.cb("bold", "Executing \"" + command + "\"\n");
+					}
+				};
+				List<A4Solution> ais = TranslateAlloyToKodkod.execute_commands(each, world.getAllReachableSigs(), cmds,
+						options);
+				for (int i = 0; i < ais.size(); i++) {
+					final String tempCNF = tempdir + File.separatorChar + i + ".cnf";
+					A4Solution ai = ais.get(i);
+					if (ai == null)
+						result.add(null);
+					else if (ai.satisfiable())
+						result.add(tempCNF + ".xml");
+					else if (ai.highLevelCore().a.size() > 0)
+						result.add(tempCNF + ".core");
+					else
+						result.add("");
+					if (ai != null && rep.isEnabled(DEBUG))
+						rep.cb("debug", ai.toString()); // [HASLab]
+				}
 			} else
 				for (int i = 0; i < cmds.size(); i++)
 					if (bundleIndex < 0 || i == bundleIndex) {
@@ -717,7 +811,7 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 						rep.tempfile = tempCNF;
 						cb(out, "bold", "Executing \"" + cmd + "\"\n");
 
-						A4Solution ai = TranslateAlloyToKodkod.execute_commandFromBook(rep,
+						A4Solution ai = TranslateAlloyToKodkod.execute_commandFromBook(solveRep,
 								world.getAllReachableSigs(), cmd, options);
 						if (ai == null)
 							result.add(null);
@@ -727,10 +821,13 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 							result.add(tempCNF + ".core");
 						else
 							result.add("");
-						rep.cb("debug", ai.toString()); // [HASLab]
+						if (ai != null && rep.isEnabled(DEBUG))
+							rep.cb("debug", ai.toString()); // [HASLab]
 
 					}
 			(new File(tempdir)).delete(); // In case it was UNSAT, or canceled...
+			if (rep.metrics != null)
+				rep.metrics.writeJSON(metricsFile);
 			if (result.size() > 1) {
 				rep.cb("bold", "" + result.size() + " commands were executed. The results are:\n");
 				for (int i = 0; i < result.size(); i++) {
@@ -798,19 +895,26 @@ public final class SimpleReporter extends A4Reporter { // pt.uminho.haslab:
 			GenerateXmlsFiles.kkSRC = kkSRC;
 		}
 
+		/** Returns the reporter that the XML writer should report its phases to. */
+		private A4Reporter phaseReporter() {
+			if (simpleReporter != null && simpleReporter.metrics != null)
+				return simpleReporter.metrics;
+			return simpleReporter;
+		}
+
 		@Override
 		public void run() {
 			try { // pt.uminho.haslab
 //				a4Solution.type = A4Solution.WritingType.evalToAllStates;
 				for (int i = 0; i <= a4Solution.getLastTrace(); i++) {
 					a4Solution.renameTemporal(i);
-					writeXML(simpleReporter, latestModule, filename + "Time" + i + ".xml", a4Solution, kkSRC, i);
-					if (simpleReporter != null) simpleReporter.debug(i +": "+a4Solution);
+					writeXML(phaseReporter(), latestModule, filename + "Time" + i + ".xml", a4Solution, kkSRC, i);
+					if (simpleReporter != null) simpleReporter.debug(i, ": ", a4Solution);
 				}
 				a4Solution.type = A4Solution.WritingType.evalToSingleState;
 //				writeXML(simpleReporter, latestModule, filename + ".xml", a4Solution, kkSRC, 0); 
 				a4Solution.temporalAtoms.optimizeTemporalAtoms();
-				writeXML(simpleReporter, latestModule, filename + "Evaluator.xml", a4Solution, kkSRC, 0);
+				writeXML(phaseReporter(), latestModule, filename + "Evaluator.xml", a4Solution, kkSRC, 0);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
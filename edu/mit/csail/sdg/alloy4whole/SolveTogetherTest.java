@@ -0,0 +1,115 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.util.List;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod;
+
+/** A regression harness for A4Options.solveTogether: a check that is solved together with the other checks
+ * that share its scope must have the same outcome as when it is solved on its own.
+ *
+ * <p> Each argument is a model file; with no arguments, we check a few built-in models, including a temporal one
+ * with mutable sigs and fields, and checks whose translation is trivially true or trivially false.
+ * For each model, we call TranslateAlloyToKodkod.execute_commands() on every command twice (with solveTogether off, then on),
+ * and report every command that is satisfiable one way and unsatisfiable the other way, as well as the time each way took.
+ */
+
+public final class SolveTogetherTest extends ComparisonTest {
+
+    /** The built-in models that are checked when no file is given on the command line. */
+    private static final String[][] MODELS = {
+        {"static.als",
+         "sig Node { succ: lone Node }\n"
+        +"fact { no n: Node | n in n.^succ }\n"
+        +"pred chain { some n: Node | #n.^succ = 2 }\n"
+        +"pred loop { some n: Node | n in n.succ }\n"
+        +"assert acyclic { no n: Node | n in n.^succ }\n"
+        +"assert lonely { no succ }\n"
+        +"run chain for 3\n"
+        +"run loop for 3\n"
+        +"check acyclic for 3\n"
+        +"check lonely for 3\n"
+        +"run { some none } for 3\n"
+        +"check { some none } for 3\n"
+        +"check { no none } for 3\n"
+        +"check lonely for 2\n"},
+        {"temporal.ele",
+         "sig Node { var succ: lone Node }\n"
+        +"var sig Token in Node {}\n"
+        +"fact { no Token and always { one Token implies after one Token } }\n"
+        +"fact { always no n: Node | n in n.^succ }\n"
+        +"pred grab { eventually some Token }\n"
+        +"pred change { some succ and eventually no succ }\n"
+        +"assert atMostOne { always lone Token }\n"
+        +"assert stays { always (some Token implies after some Token) }\n"
+        +"assert never { always no Token }\n"
+        +"assert acyclic { always no n: Node | n in n.^succ }\n"
+        +"run grab for 3\n"
+        +"run change for 3\n"
+        +"check atMostOne for 3\n"
+        +"check stays for 3\n"
+        +"check never for 3\n"
+        +"check acyclic for 3\n"
+        +"check { some none } for 3\n"
+        +"check { always no none } for 3\n"}
+    };
+
+    /** Constructs a SolveTogetherTest with nothing checked yet. */
+    private SolveTogetherTest() { }
+
+    /** Execute every command of the given module, with or without solving the commands with the same scope together. */
+    private static List<A4Solution> execute(String filename, Module world, boolean together) throws Err {
+        A4Options opt = options(filename);
+        opt.solveTogether = together;
+        return TranslateAlloyToKodkod.execute_commands(A4Reporter.NOP, world.getAllReachableSigs(), world.getAllCommands(), opt);
+    }
+
+    /** Returns "SAT" or "UNSAT" for the given solution (or "ERROR" if the command could not be executed). */
+    private static String outcome(A4Solution sol) {
+        return sol==null ? "ERROR" : (sol.satisfiable() ? "SAT" : "UNSAT");
+    }
+
+    /** Execute every command of the given model one at a time, then with the checks batched, and compare the outcomes. */
+    @Override void check(String filename, String content) throws Err {
+        System.out.println("File = " + filename);
+        Module world = parse(filename, content);
+        List<Command> cmds = world.getAllCommands();
+        long t0 = System.currentTimeMillis();
+        List<A4Solution> each = execute(filename, world, false);
+        long t1 = System.currentTimeMillis();
+        List<A4Solution> together = execute(filename, world, true);
+        long t2 = System.currentTimeMillis();
+        for(int i=0; i<cmds.size(); i++) {
+            String a = outcome(each.get(i)), b = outcome(together.get(i));
+            if (a.equals(b)) { System.out.println("   " + cmds.get(i) + ": " + a); continue; }
+            mismatches++;
+            System.out.println("   MISMATCH " + cmds.get(i) + ": " + a + " when solved alone, " + b + " when solved together");
+        }
+        System.out.println("   " + cmds.size() + " command(s); " + (t1-t0) + "ms alone, " + (t2-t1) + "ms together.");
+    }
+
+    /** Main method that checks every file given on the command line (or the built-in models if there is none). */
+    public static void main(String[] args) {
+        new SolveTogetherTest().run(args, MODELS);
+    }
+}
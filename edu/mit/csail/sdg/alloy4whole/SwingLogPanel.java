@@ -341,9 +341,15 @@ final class SwingLogPanel {
         if (n>lastSize) {
             try {doc.remove(lastSize, n-lastSize);} catch (BadLocationException e) {}
         }
-        if (batch.size()>0) {
-            for(String msg: batch) { reallyLog(msg, styleRegular); }
+        if (batch.size()==1) {
+            reallyLog(batch.get(0), styleRegular);
             batch.clear();
+        } else if (batch.size()>1) {
+            // Insert the whole batch at once, so the document is only updated once
+            StringBuilder sb = new StringBuilder();
+            for(String msg: batch) { sb.append(msg); }
+            batch.clear();
+            reallyLog(sb.toString(), styleRegular);
         }
     }
 
@@ -0,0 +1,130 @@
+/* Alloy Analyzer 4 -- Copyright (c) 2006-2009, Felix Chang
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation files
+ * (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy, modify,
+ * merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF
+ * OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package edu.mit.csail.sdg.alloy4whole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import kodkod.ast.Relation;
+
+import edu.mit.csail.sdg.alloy4.A4Reporter;
+import edu.mit.csail.sdg.alloy4.Err;
+import edu.mit.csail.sdg.alloy4compiler.ast.Command;
+import edu.mit.csail.sdg.alloy4compiler.ast.Module;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Options;
+import edu.mit.csail.sdg.alloy4compiler.translator.A4Solution;
+import edu.mit.csail.sdg.alloy4compiler.translator.TranslateAlloyToKodkod;
+
+/** A regression harness for the translation cache in TranslateAlloyToKodkod, which forks the bounds and sig facts
+ * of an earlier command with the same scope, and replays the facts it translated; a cached translation must behave
+ * exactly like a translation from scratch.
+ *
+ * <p> Each argument is a model file; with no arguments, we check a few built-in models whose commands share a scope,
+ * and whose sig facts and facts have existential quantifiers (so their skolem names are prefixed by the command label).
+ * For each model, we execute every command in order without the cache (TranslateAlloyToKodkod.setCacheSize(0)), then again with the cache;
+ * and we report every command whose quantified variable names, satisfiability, or skolem names differ. (We do not compare the instances themselves,
+ * since Kodkod may number the variables differently on each run, and so may find a different instance even without the cache.)
+ */
+
+public final class TranslationCacheTest extends ComparisonTest {
+
+    /** The built-in models that are checked when no file is given on the command line. */
+    private static final String[][] MODELS = {
+        {"skolem.als",
+         "sig Node { succ: set Node }\n"
+        +"one sig Root extends Node { } { some n: Node | n in succ }\n"
+        +"fact { some n: Node | no n.succ }\n"
+        +"pred reach { some n: Node | n in Root.^succ and no n.succ }\n"
+        +"assert noloop { no n: Node | n in n.succ }\n"
+        +"run reach for 3\n"
+        +"run reach for 3\n"
+        +"check noloop for 3\n"
+        +"run first { some succ } for 3\n"
+        +"run second { some succ } for 3\n"
+        +"run reach for 4\n"},
+        {"temporal.ele",
+         "sig Node { var succ: set Node }\n"
+        +"one sig Root extends Node { } { some n: Node | n in succ }\n"
+        +"fact { some n: Node | always no n.succ }\n"
+        +"pred grow { eventually some n: Node | n in Root.succ.succ }\n"
+        +"assert stable { always Root.succ = Root.succ' }\n"
+        +"run grow for 3\n"
+        +"check stable for 3\n"
+        +"run first { eventually no succ } for 3\n"
+        +"run second { eventually no succ } for 3\n"}
+    };
+
+    /** The translation cache size to use when checking the cached translation (the same as the default). */
+    private static final int CACHE_SIZE = 4;
+
+    /** Constructs a TranslationCacheTest with nothing checked yet. */
+    private TranslationCacheTest() { }
+
+    /** The pattern that matches the declaration of a quantified variable in the Kodkod input generated by TranslateKodkodToJava. */
+    private static final Pattern VARIABLE = Pattern.compile("Variable\\.(?:unary|nary)\\(\"([^\"]*)\"");
+
+    /** Returns a sorted list of the names of the quantified variables in the Kodkod input of the given solution
+     * (these are the names that Kodkod gives to the skolems it makes from them).
+     */
+    private static List<String> variables(A4Solution sol) {
+        List<String> ans = new ArrayList<String>();
+        Matcher m = VARIABLE.matcher(sol.debugExtractKInput());
+        // The translator names its own helper variables "v" followed by a global counter, so those names depend on what was translated earlier
+        while(m.find()) ans.add(m.group(1).matches("v[0-9]+") ? "v#" : m.group(1));
+        Collections.sort(ans);
+        return ans;
+    }
+
+    /** Returns a sorted list of the names of the skolem relations in the given satisfiable solution. */
+    private static List<String> skolems(A4Solution sol) throws Err {
+        List<String> ans = new ArrayList<String>();
+        for(Relation r: sol.debugExtractKInstance().relations()) if (r.name().startsWith("$")) ans.add(r.name());
+        Collections.sort(ans);
+        return ans;
+    }
+
+    /** Execute every command of the given model without the cache, then with the cache, and compare the results. */
+    @Override void check(String filename, String content) throws Err {
+        System.out.println("File = " + filename);
+        Module world = parse(filename, content);
+        A4Options opt = options(filename);
+        List<Command> cmds = world.getAllCommands();
+        List<A4Solution> fresh = new ArrayList<A4Solution>();
+        TranslateAlloyToKodkod.setCacheSize(0);
+        for(Command cmd: cmds) fresh.add(TranslateAlloyToKodkod.execute_command(A4Reporter.NOP, world.getAllReachableSigs(), cmd, opt));
+        TranslateAlloyToKodkod.setCacheSize(CACHE_SIZE);
+        for(int i=0; i<cmds.size(); i++) {
+            A4Solution cached = TranslateAlloyToKodkod.execute_command(A4Reporter.NOP, world.getAllReachableSigs(), cmds.get(i), opt);
+            String diff = null;
+            if (!variables(cached).equals(variables(fresh.get(i))))
+                diff = "variables " + variables(cached) + " with the cache, " + variables(fresh.get(i)) + " without";
+            else if (cached.satisfiable() != fresh.get(i).satisfiable())
+                diff = "satisfiable=" + cached.satisfiable() + " with the cache, " + fresh.get(i).satisfiable() + " without";
+            else if (cached.satisfiable() && !skolems(cached).equals(skolems(fresh.get(i))))
+                diff = "skolems " + skolems(cached) + " with the cache, " + skolems(fresh.get(i)) + " without";
+            if (diff!=null) { mismatches++; System.out.println("   MISMATCH " + cmds.get(i) + ": " + diff); continue; }
+            System.out.println("   " + cmds.get(i) + ": " + (cached.satisfiable() ? "SAT " + skolems(cached) : "UNSAT") + ", variables " + variables(cached));
+        }
+    }
+
+    /** Main method that checks every file given on the command line (or the built-in models if there is none). */
+    public static void main(String[] args) {
+        new TranslationCacheTest().run(args, MODELS);
+    }
+}
@@ -1,7 +1,6 @@
                     
 package java_cup.runtime;
 
-import java.util.Stack;
 
 /** This class implements a skeleton table driven LR parser.  In general,
  *  LR parsers are a form of bottom up shift-reduce parsers.  Shift-reduce
@@ -107,6 +106,7 @@ import java.util.Stack;
  *
  * @see     java_cup.runtime.Symbol
  * @see     java_cup.runtime.Symbol
+ * @see     java_cup.runtime.parse_stack
  * @see     java_cup.runtime.virtual_parse_stack
  * @version last updated: 7/3/96
  * @author  Frank Flannery
@@ -263,7 +263,7 @@ public abstract class lr_parser {
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
   /** The parse stack itself. */
-  protected Stack stack = new Stack();
+  protected parse_stack stack = new parse_stack();
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
@@ -312,9 +312,9 @@ public abstract class lr_parser {
    */
   public abstract Symbol do_action(
     int       act_num, 
-    lr_parser parser, 
-    Stack     stack, 
-    int       top) 
+    lr_parser   parser, 
+    parse_stack stack, 
+    int         top) 
     throws java.lang.Exception;
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -564,7 +564,7 @@ public Symbol parse() throws java.lang.Exception
       /* current state is always on the top of the stack */
 
       /* look up action out of the current state with the current input */
-      act = get_action(((Symbol)stack.peek()).parse_state, cur_token.sym);
+      act = get_action(stack.top_state(), cur_token.sym);
 
       /* decode the action -- > 0 encodes shift */
       if (act > 0)
@@ -589,14 +589,11 @@ public Symbol parse() throws java.lang.Exception
           handle_size = production_tab[(-act)-1][1];
 
           /* pop the handle off the stack */
-          for (int i = 0; i < handle_size; i++)
-        {
-          stack.pop();
-          tos--;
-        }
+          stack.pop(handle_size);
+          tos -= handle_size;
           
           /* look up the state to go to from the one popped back to */
-          act = get_reduce(((Symbol)stack.peek()).parse_state, lhs_sym_num);
+          act = get_reduce(stack.top_state(), lhs_sym_num);
 
           /* shift to that state */
           lhs_sym.parse_state = act;
@@ -655,7 +652,7 @@ public Symbol parse() throws java.lang.Exception
       for (int i=0; i<stack.size(); i++)
     {
       debug_message("Symbol: " + ((Symbol)stack.elementAt(i)).sym +
-            " State: " + ((Symbol)stack.elementAt(i)).parse_state);
+            " State: " + stack.state_at(i));
     }
       debug_message("==========================================");
     }
@@ -755,7 +752,7 @@ public Symbol parse() throws java.lang.Exception
       //debug_stack();
 
       /* look up action out of the current state with the current input */
-      act = get_action(((Symbol)stack.peek()).parse_state, cur_token.sym);
+      act = get_action(stack.top_state(), cur_token.sym);
 
       /* decode the action -- > 0 encodes shift */
       if (act > 0)
@@ -784,16 +781,13 @@ public Symbol parse() throws java.lang.Exception
           debug_reduce((-act)-1, lhs_sym_num, handle_size);
 
           /* pop the handle off the stack */
-          for (int i = 0; i < handle_size; i++)
-        {
-          stack.pop();
-          tos--;
-        }
+          stack.pop(handle_size);
+          tos -= handle_size;
           
           /* look up the state to go to from the one popped back to */
-          act = get_reduce(((Symbol)stack.peek()).parse_state, lhs_sym_num);
+          act = get_reduce(stack.top_state(), lhs_sym_num);
           debug_message("# Reduce rule: top state " +
-                 ((Symbol)stack.peek()).parse_state +
+                 stack.top_state() +
                  ", lhs sym " + lhs_sym_num + " -> state " + act); 
 
           /* shift to that state */
@@ -914,7 +908,7 @@ public Symbol parse() throws java.lang.Exception
   protected boolean shift_under_error()
     {
       /* is there a shift under error Symbol */
-      return get_action(((Symbol)stack.peek()).parse_state, error_sym()) > 0;
+      return get_action(stack.top_state(), error_sym()) > 0;
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
@@ -943,8 +937,8 @@ public Symbol parse() throws java.lang.Exception
       /* pop the stack */
       if (debug) 
         debug_message("# Pop stack by one, state was # " +
-                      ((Symbol)stack.peek()).parse_state);
-          left = ((Symbol)stack.pop()); // TUM 20060327 removed .left   
+                      stack.top_state());
+          left = stack.pop(); // TUM 20060327 removed .left   
       tos--;
 
       /* if we have hit bottom, we fail */
@@ -956,11 +950,11 @@ public Symbol parse() throws java.lang.Exception
     }
 
       /* state on top of the stack can shift under error, find the shift */
-      act = get_action(((Symbol)stack.peek()).parse_state, error_sym());
+      act = get_action(stack.top_state(), error_sym());
       if (debug) 
     {
       debug_message("# Recover state found (#" + 
-            ((Symbol)stack.peek()).parse_state + ")");
+            stack.top_state() + ")");
       debug_message("# Shifting on error to state #" + (act-1));
     }
 
@@ -1147,7 +1141,7 @@ public Symbol parse() throws java.lang.Exception
       debug_message("# Reparsing saved input with actions");
       debug_message("# Current Symbol is #" + cur_err_token().sym);
       debug_message("# Current state is #" + 
-            ((Symbol)stack.peek()).parse_state);
+            stack.top_state());
     }
 
       /* continue until we accept or have read all lookahead input */
@@ -1157,7 +1151,7 @@ public Symbol parse() throws java.lang.Exception
 
       /* look up action out of the current state with the current input */
       act = 
-        get_action(((Symbol)stack.peek()).parse_state, cur_err_token().sym);
+        get_action(stack.top_state(), cur_err_token().sym);
 
       /* decode the action -- > 0 encodes shift */
       if (act > 0)
@@ -1200,14 +1194,11 @@ public Symbol parse() throws java.lang.Exception
           if (debug) debug_reduce((-act)-1, lhs_sym_num, handle_size);
 
           /* pop the handle off the stack */
-          for (int i = 0; i < handle_size; i++)
-        {
-          stack.pop();
-          tos--;
-        }
+          stack.pop(handle_size);
+          tos -= handle_size;
           
           /* look up the state to go to from the one popped back to */
-          act = get_reduce(((Symbol)stack.peek()).parse_state, lhs_sym_num);
+          act = get_reduce(stack.top_state(), lhs_sym_num);
 
           /* shift to that state */
           lhs_sym.parse_state = act;
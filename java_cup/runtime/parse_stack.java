@@ -0,0 +1,149 @@
+package java_cup.runtime;
+
+/** This class implements the parse stack used by lr_parser.  It replaces 
+ *  the java.util.Stack used by earlier versions: it is not synchronized, 
+ *  and it keeps the state number of each entry in an int[] alongside the 
+ *  Symbol[] so that the parser can look up its next action without 
+ *  dereferencing the Symbol on top of the stack.  The state of each entry 
+ *  is taken from the parse_state field of the Symbol when it is pushed, 
+ *  so that field is still valid for code that reads it. <p>
+ *
+ *  Generated action code only uses peek(), elementAt() and size(), which 
+ *  have the same meaning as in java.util.Stack (index 0 is the bottom). 
+ *  Like java.util.Stack, peek() and elementAt() return Object, so that 
+ *  the casts to Symbol that CUP puts in the action code are not redundant. 
+ *
+ * @see     java_cup.runtime.lr_parser
+ * @see     java_cup.runtime.virtual_parse_stack
+ */
+
+public class parse_stack {
+  /*-----------------------------------------------------------*/
+  /*--- Constructor(s) ----------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Constructor to build an empty stack. */
+  public parse_stack()
+    {
+      symbols = new Symbol[64];
+      states  = new int[64];
+      size    = 0;
+    }
+
+  /*-----------------------------------------------------------*/
+  /*--- (Access to) Instance Variables ------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** The Symbol objects on the stack; only [0, size) are in use. */
+  protected Symbol[] symbols;
+
+  /** The state number of each Symbol on the stack; only [0, size) are in use. */
+  protected int[] states;
+
+  /** The number of entries on the stack. */
+  protected int size;
+
+  /*-----------------------------------------------------------*/
+  /*--- General Methods ---------------------------------------*/
+  /*-----------------------------------------------------------*/
+
+  /** Push a Symbol (in the state given by its parse_state field) onto the stack. */
+  public void push(Symbol sym)
+    {
+      if (size == symbols.length)
+        {
+          Symbol[] new_symbols = new Symbol[size * 2];
+          int[]    new_states  = new int[size * 2];
+          System.arraycopy(symbols, 0, new_symbols, 0, size);
+          System.arraycopy(states,  0, new_states,  0, size);
+          symbols = new_symbols;
+          states  = new_states;
+        }
+      symbols[size] = sym;
+      states[size]  = sym.parse_state;
+      size++;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Pop the stack, and return the Symbol that was on top. */
+  public Symbol pop()
+    {
+      if (size == 0) throw new java.util.EmptyStackException();
+      Symbol sym = symbols[--size];
+      symbols[size] = null;
+      return sym;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Pop n entries off the stack (this is used to pop the handle of a production). */
+  public void pop(int n)
+    {
+      if (n > size) throw new java.util.EmptyStackException();
+      for (int i = 0; i < n; i++) symbols[--size] = null;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Return the Symbol on top of the stack (without popping it). */
+  public Object peek()
+    {
+      if (size == 0) throw new java.util.EmptyStackException();
+      return symbols[size-1];
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Return the state number on top of the stack (without popping it). */
+  public int top_state()
+    {
+      if (size == 0) throw new java.util.EmptyStackException();
+      return states[size-1];
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Return the Symbol at the given index (where 0 is the bottom of the stack). */
+  public Object elementAt(int index)
+    {
+      if (index < 0 || index >= size) throw new ArrayIndexOutOfBoundsException(index);
+      return symbols[index];
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Return the state number at the given index (where 0 is the bottom of the stack). */
+  public int state_at(int index)
+    {
+      if (index < 0 || index >= size) throw new ArrayIndexOutOfBoundsException(index);
+      return states[index];
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Return the number of entries on the stack. */
+  public int size()
+    {
+      return size;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Indicate whether the stack is empty. */
+  public boolean empty()
+    {
+      return size == 0;
+    }
+
+  /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
+
+  /** Remove every entry from the stack. */
+  public void removeAllElements()
+    {
+      while (size > 0) symbols[--size] = null;
+    }
+
+  /*-----------------------------------------------------------*/
+
+}
@@ -26,7 +26,7 @@ public class virtual_parse_stack {
   /*-----------------------------------------------------------*/
 
   /** Constructor to build a virtual stack out of a real stack. */
-public virtual_parse_stack(Stack shadowing_stack) throws java.lang.Exception
+public virtual_parse_stack(parse_stack shadowing_stack) throws java.lang.Exception
     {
       /* sanity check */
       if (shadowing_stack == null)
@@ -50,7 +50,7 @@ public virtual_parse_stack(Stack shadowing_stack) throws java.lang.Exception
    *  the bottom of the virtual portion of the stack, but is always left
    *  unmodified.
    */
-  protected Stack real_stack;
+  protected parse_stack real_stack;
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/
 
@@ -79,19 +79,14 @@ public virtual_parse_stack(Stack shadowing_stack) throws java.lang.Exception
    */
   protected void get_from_real()
     {
-      Symbol stack_sym;
-
       /* don't transfer if the real stack is empty */
       if (real_next >= real_stack.size()) return;
 
-      /* get a copy of the first Symbol we have not transfered */
-      stack_sym = (Symbol)real_stack.elementAt(real_stack.size()-1-real_next);
+      /* put the state number of the first entry we have not transfered onto the virtual stack */
+      vstack.push(new Integer(real_stack.state_at(real_stack.size()-1-real_next)));
 
       /* record the transfer */
       real_next++;
-
-      /* put the state number from the Symbol onto the virtual stack */
-      vstack.push(new Integer(stack_sym.parse_state));
     }
 
   /*. . . . . . . . . . . . . . . . . . . . . . . . . . . . . .*/